@@ -0,0 +1,124 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+
+/**
+ * The access check of {@link AppAccessFilter}, compared to the chain of one ant matcher per spec
+ * that Spring Security evaluated before.
+ * Both variants parse a fresh request, as they would for every incoming request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppAccessBenchmark {
+
+	@Param({ "10", "1000" })
+	private int specCount;
+
+	private AppAccessFilter filter;
+	private List<AntPathRequestMatcher> matchers;
+	private List<Set<String>> matcherRoles;
+	private Authentication authentication;
+	private String[] uris;
+	private int next;
+
+	@Setup
+	public void setup() {
+		ShinyProxySpecProvider specProvider = new ShinyProxySpecProvider();
+		specProvider.setEnvironment(BenchmarkSupport.createEnvironment(Collections.emptyMap()));
+		List<ShinyProxySpec> specs = new ArrayList<>();
+		matchers = new ArrayList<>();
+		matcherRoles = new ArrayList<>();
+		uris = new String[specCount];
+		for (int i = 0; i < specCount; i++) {
+			String group = "GROUP" + (i % 10);
+			specs.add(BenchmarkSupport.createSpec(i, group));
+			matchers.add(new AntPathRequestMatcher("/app/app" + i));
+			matcherRoles.add(new HashSet<>(Arrays.asList("ROLE_" + group)));
+			uris[i] = "/app/app" + i;
+		}
+		specProvider.setSpecs(specs);
+		filter = new AppAccessFilter(specProvider);
+
+		Collection<GrantedAuthority> authorities = Arrays.asList(new SimpleGrantedAuthority("ROLE_GROUP1"), new SimpleGrantedAuthority("ROLE_GROUP2"));
+		authentication = new UsernamePasswordAuthenticationToken("user", "", authorities);
+	}
+
+	private MockHttpServletRequest nextRequest() {
+		next = (next + 1) % uris.length;
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", uris[next]);
+		request.setServletPath(uris[next]);
+		return request;
+	}
+
+	@Benchmark
+	public boolean accessFilter() {
+		MockHttpServletRequest request = nextRequest();
+		return filter.isAllowed(AppRoute.of(request).getAppName(), authentication);
+	}
+
+	@Benchmark
+	public boolean antMatcherChain() {
+		MockHttpServletRequest request = nextRequest();
+		for (int i = 0; i < matchers.size(); i++) {
+			if (matchers.get(i).matches(request)) {
+				Set<String> roles = matcherRoles.get(i);
+				for (GrantedAuthority authority: authentication.getAuthorities()) {
+					if (roles.contains(authority.getAuthority())) return true;
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+}
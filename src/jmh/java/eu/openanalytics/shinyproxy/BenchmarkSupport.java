@@ -0,0 +1,103 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.security.core.Authentication;
+import org.springframework.util.ReflectionUtils;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.service.UserService;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+
+/**
+ * In-memory stand-ins for the containerproxy services and the Spring wiring, so that the benchmarks
+ * measure ShinyProxy's own code without a running application context.
+ */
+public class BenchmarkSupport {
+
+	public static StandardEnvironment createEnvironment(Map<String, Object> properties) {
+		StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new MapPropertySource("benchmark", new HashMap<>(properties)));
+		return environment;
+	}
+
+	/**
+	 * Set a field that is normally injected by Spring.
+	 */
+	public static void inject(Object target, String fieldName, Object value) {
+		Field field = ReflectionUtils.findField(target.getClass(), fieldName);
+		if (field == null) throw new IllegalArgumentException(String.format("No field %s on %s", fieldName, target.getClass().getName()));
+		ReflectionUtils.makeAccessible(field);
+		ReflectionUtils.setField(field, target, value);
+	}
+
+	public static ShinyProxySpec createSpec(int index, String... accessGroups) {
+		ShinyProxySpec spec = new ShinyProxySpec();
+		spec.setId("app" + index);
+		spec.setDisplayName("App " + index);
+		spec.setDescription("Benchmark app " + index);
+		spec.setContainerImage("openanalytics/shinyproxy-demo");
+		spec.setContainerCmd(new String[] { "R", "-e", "shinyproxy::run_01_hello()" });
+		spec.setPort(3838);
+		if (accessGroups.length > 0) spec.setAccessGroups(accessGroups);
+		return spec;
+	}
+
+	public static Proxy createProxy(String userId, ProxySpec spec) {
+		Proxy proxy = new Proxy();
+		proxy.setId(userId + "-" + spec.getId());
+		proxy.setUserId(userId);
+		proxy.setSpec(spec);
+		proxy.setStatus(ProxyStatus.Up);
+		return proxy;
+	}
+
+	public static class StubUserService extends UserService {
+
+		private volatile String currentUserId;
+
+		public StubUserService(String currentUserId) {
+			this.currentUserId = currentUserId;
+		}
+
+		public void setCurrentUserId(String currentUserId) {
+			this.currentUserId = currentUserId;
+		}
+
+		@Override
+		public String getCurrentUserId() {
+			return currentUserId;
+		}
+
+		@Override
+		public boolean isAdmin(Authentication auth) {
+			return false;
+		}
+	}
+}
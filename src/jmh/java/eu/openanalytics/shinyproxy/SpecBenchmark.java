@@ -0,0 +1,103 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+
+/**
+ * Spec lookup, conversion and merging, with a growing number of configured specs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpecBenchmark {
+
+	@Param({ "10", "1000", "10000" })
+	private int specCount;
+
+	private ShinyProxySpecProvider specProvider;
+	private ShinyProxySpecMergeStrategy mergeStrategy;
+	private List<ShinyProxySpec> shinyProxySpecs;
+	private String[] ids;
+	private int next;
+
+	@Setup
+	public void setup() {
+		specProvider = new ShinyProxySpecProvider();
+		specProvider.setEnvironment(BenchmarkSupport.createEnvironment(Collections.emptyMap()));
+		mergeStrategy = new ShinyProxySpecMergeStrategy();
+
+		shinyProxySpecs = new ArrayList<>();
+		ids = new String[specCount];
+		for (int i = 0; i < specCount; i++) {
+			shinyProxySpecs.add(BenchmarkSupport.createSpec(i, "GROUP" + (i % 10)));
+			ids[i] = "app" + i;
+		}
+		specProvider.setSpecs(shinyProxySpecs);
+	}
+
+	private String nextId() {
+		next = (next + 1) % ids.length;
+		return ids[next];
+	}
+
+	@Benchmark
+	public ProxySpec getSpec() {
+		return specProvider.getSpec(nextId());
+	}
+
+	@Benchmark
+	public ProxySpec convert() {
+		return ShinyProxySpecProvider.convert(shinyProxySpecs.get(next++ % specCount));
+	}
+
+	@Benchmark
+	public SpecRegistry setSpecs() {
+		specProvider.setSpecs(shinyProxySpecs);
+		return specProvider.getRegistry();
+	}
+
+	@Benchmark
+	public ProxySpec merge() throws Exception {
+		return mergeStrategy.merge(specProvider.getSpec(nextId()), null, null);
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.controllers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.env.Environment;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.ui.ModelMap;
+
+import eu.openanalytics.containerproxy.auth.impl.NoneAuthenticationBackend;
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.shinyproxy.BenchmarkSupport;
+import eu.openanalytics.shinyproxy.BenchmarkSupport.StubUserService;
+import eu.openanalytics.shinyproxy.LogoService;
+import eu.openanalytics.shinyproxy.ProxyIndex;
+import eu.openanalytics.shinyproxy.SharedProxyService;
+import eu.openanalytics.shinyproxy.UISettingsProvider;
+import eu.openanalytics.shinyproxy.registry.LocalProxyRegistry;
+import eu.openanalytics.shinyproxy.registry.ProxyRegistrySync;
+
+/**
+ * The helpers of {@link BaseController} that run on every page and app request.
+ * Only the proxy lookups depend on the number of active proxies, so only those are run for each proxy count.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BaseControllerBenchmark {
+
+	private static final String APP_URI = "/app_direct/01_hello/session/4f2a/dataobj/table?w=&nonce=0.123";
+
+	private static final Pattern appPattern = Pattern.compile(".*?/app[^/]*/([^/]*)/?.*");
+
+	private BaseController controller;
+	private Environment environment;
+	private NoneAuthenticationBackend authenticationBackend;
+	private String logoURL;
+	private Path logoFile;
+
+	private static class BenchmarkController extends BaseController {
+	}
+
+	@State(Scope.Thread)
+	public static class Proxies {
+
+		@Param({ "10", "1000", "10000" })
+		private int proxyCount;
+
+		private BaseController controller;
+		private StubUserService userService;
+		private List<Proxy> proxies;
+
+		@Setup
+		public void setup() {
+			// Every proxy belongs to another user, the current user owns the proxy in the middle.
+			ProxySpec spec = new ProxySpec();
+			spec.setId("01_hello");
+			ProxyIndex proxyIndex = new ProxyIndex();
+			proxies = new ArrayList<>();
+			for (int i = 0; i < proxyCount; i++) {
+				Proxy proxy = BenchmarkSupport.createProxy("user" + i, spec);
+				proxies.add(proxy);
+				proxyIndex.put(proxy);
+			}
+			userService = new StubUserService("user" + (proxyCount / 2));
+			controller = createController(userService, proxyIndex);
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		logoFile = Files.createTempFile("shinyproxy-benchmark", ".png");
+		Files.write(logoFile, new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+		logoURL = logoFile.toUri().toString();
+
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("proxy.title", "ShinyProxy Benchmark");
+		properties.put("proxy.logo-url", logoURL);
+		properties.put("proxy.support.mail-to-address", "support@example.com");
+		environment = BenchmarkSupport.createEnvironment(properties);
+
+		LogoService logoService = new LogoService();
+		BenchmarkSupport.inject(logoService, "environment", environment);
+		logoService.init();
+
+		authenticationBackend = new NoneAuthenticationBackend();
+		UISettingsProvider uiSettingsProvider = new UISettingsProvider();
+		BenchmarkSupport.inject(uiSettingsProvider, "environment", environment);
+		BenchmarkSupport.inject(uiSettingsProvider, "authenticationBackend", authenticationBackend);
+		uiSettingsProvider.refresh();
+
+		StubUserService userService = new StubUserService("user0");
+		controller = createController(userService, new ProxyIndex());
+		controller.environment = environment;
+		controller.authenticationBackend = authenticationBackend;
+		controller.logoService = logoService;
+		controller.uiSettingsProvider = uiSettingsProvider;
+
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(
+				userService.getCurrentUserId(), "", Arrays.asList(new SimpleGrantedAuthority("ROLE_SCIENTISTS"))));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		SecurityContextHolder.clearContext();
+		Files.deleteIfExists(logoFile);
+	}
+
+	private static BaseController createController(StubUserService userService, ProxyIndex proxyIndex) {
+		ProxyRegistrySync proxyRegistrySync = new ProxyRegistrySync();
+		BenchmarkSupport.inject(proxyRegistrySync, "registry", new LocalProxyRegistry());
+
+		BaseController controller = new BenchmarkController();
+		controller.userService = userService;
+		controller.proxyIndex = proxyIndex;
+		controller.proxyRegistrySync = proxyRegistrySync;
+		controller.sharedProxyService = new SharedProxyService();
+		return controller;
+	}
+
+	@Benchmark
+	public String getAppName() {
+		return controller.getAppName(APP_URI);
+	}
+
+	@Benchmark
+	public String getAppNameRegex() {
+		Matcher matcher = appPattern.matcher(APP_URI);
+		return matcher.matches() ? matcher.group(1) : null;
+	}
+
+	@Benchmark
+	public Proxy findUserProxy(Proxies state) {
+		return state.controller.findUserProxy(new MockHttpServletRequest("GET", APP_URI));
+	}
+
+	/**
+	 * The lookup as it was done before the proxy index: a scan over all active proxies.
+	 */
+	@Benchmark
+	public Proxy findUserProxyScan(Proxies state) {
+		String appName = state.controller.getAppName(APP_URI);
+		String userId = state.userService.getCurrentUserId();
+		for (Proxy proxy: state.proxies) {
+			if (appName.equals(proxy.getSpec().getId()) && userId.equals(proxy.getUserId())) return proxy;
+		}
+		return null;
+	}
+
+	@Benchmark
+	public ModelMap prepareMap() {
+		ModelMap map = new ModelMap();
+		controller.prepareMap(map, new MockHttpServletRequest("GET", "/"));
+		return map;
+	}
+
+	/**
+	 * The page model as it was built before the UI settings were bound once: every setting is looked up in the environment
+	 * on every render. The logo is resolved through the current LogoService, so that only the settings lookups differ.
+	 */
+	@Benchmark
+	public ModelMap prepareMapBaseline() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+		ModelMap map = new ModelMap();
+		map.put("title", environment.getProperty("proxy.title", "ShinyProxy"));
+		map.put("logo", controller.resolveImageURI(environment.getProperty("proxy.logo-url")));
+
+		String hideNavBarParam = request.getParameter("sp_hide_navbar");
+		if (Objects.equals(hideNavBarParam, "true")) {
+			map.put("showNavbar", false);
+		} else {
+			map.put("showNavbar", !Boolean.parseBoolean(environment.getProperty("proxy.hide-navbar")));
+		}
+
+		map.put("bootstrapCss", "/webjars/bootstrap/3.4.1/css/bootstrap.min.css");
+		map.put("bootstrapJs", "/webjars/bootstrap/3.4.1/js/bootstrap.min.js");
+		map.put("jqueryJs", "/webjars/jquery/3.5.0/jquery.min.js");
+		map.put("cookieJs", "/webjars/js-cookie/2.2.1/js.cookie.min.js");
+
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		boolean isLoggedIn = authentication != null && !(authentication instanceof AnonymousAuthenticationToken) && authentication.isAuthenticated();
+		map.put("isLoggedIn", isLoggedIn);
+		map.put("isAdmin", controller.userService.isAdmin(authentication));
+		map.put("isSupportEnabled", isLoggedIn && environment.getProperty("proxy.support.mail-to-address") != null);
+		map.put("logoutUrl", authenticationBackend.getLogoutURL());
+		return map;
+	}
+
+	@Benchmark
+	public String resolveImageURI() {
+		return controller.resolveImageURI(logoURL);
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.util.StreamUtils;
+
+/**
+ * A load test that opens many concurrent sessions on a running ShinyProxy, and reports the request latencies and the
+ * number of live platform threads of ShinyProxy (from its jvm.threads.live metric) while the sessions are active.
+ * 
+ * Each session gets its own cookie and thus its own anonymous user: it launches the app via app_direct and then sends
+ * a number of requests to it. Run against a ShinyProxy with authentication none, and preferably a shared spec or a
+ * lightweight container backend, e.g. with
+ * 
+ * mvn -Pbenchmark test-compile exec:java -Dexec.mainClass=eu.openanalytics.shinyproxy.load.LoadTest -Dexec.args="--app=01_hello --sessions=2000"
+ */
+public class LoadTest {
+
+	private static final Pattern METRIC_VALUE = Pattern.compile("\"value\"\\s*:\\s*([0-9.]+)");
+
+	private final String url;
+	private final String app;
+	private final int sessions;
+	private final int requests;
+
+	private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+	private final AtomicInteger failedSessions = new AtomicInteger();
+	private final AtomicInteger maxServerThreads = new AtomicInteger();
+	private volatile boolean running = true;
+
+	public LoadTest(String url, String app, int sessions, int requests) {
+		this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+		this.app = app;
+		this.sessions = sessions;
+		this.requests = requests;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg: args) {
+			if (!arg.startsWith("--") || !arg.contains("=")) throw new IllegalArgumentException("Invalid argument: " + arg);
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+		}
+		String app = options.get("app");
+		if (app == null) throw new IllegalArgumentException("Missing argument: --app=<spec id>");
+		new LoadTest(options.getOrDefault("url", "http://localhost:8080"), app,
+				Integer.parseInt(options.getOrDefault("sessions", "1000")),
+				Integer.parseInt(options.getOrDefault("requests", "10"))).run();
+	}
+
+	public void run() throws Exception {
+		int baselineThreads = getServerThreads();
+		System.out.println(String.format("Server threads before the test: %d", baselineThreads));
+
+		Thread sampler = new Thread(this::sampleServerThreads, "load-test-sampler");
+		sampler.setDaemon(true);
+		sampler.start();
+
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(sessions);
+		long startTime = System.currentTimeMillis();
+		for (int i = 0; i < sessions; i++) {
+			Thread session = new Thread(() -> {
+				try {
+					start.await();
+					runSession();
+				} catch (Exception e) {
+					failedSessions.incrementAndGet();
+				} finally {
+					done.countDown();
+				}
+			}, "load-test-session-" + i);
+			session.setDaemon(true);
+			session.start();
+		}
+		start.countDown();
+		done.await();
+		running = false;
+		long duration = System.currentTimeMillis() - startTime;
+
+		List<Long> sorted = new ArrayList<>(latencies);
+		Collections.sort(sorted);
+		System.out.println(String.format("Sessions: %d (%d failed) in %d ms", sessions, failedSessions.get(), duration));
+		System.out.println(String.format("Requests: %d", sorted.size()));
+		if (!sorted.isEmpty()) {
+			System.out.println(String.format("Latency (ms): p50 %d, p95 %d, p99 %d, max %d",
+					percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99), sorted.get(sorted.size() - 1)));
+		}
+		System.out.println(String.format("Server threads: %d before, at most %d during the test", baselineThreads, maxServerThreads.get()));
+	}
+
+	private void runSession() throws IOException {
+		String cookie = null;
+		String appUrl = url + "/app_direct/" + app + "/";
+		// The first request launches the app, the following ones are proxied to it.
+		for (int i = 0; i <= requests; i++) {
+			long start = System.nanoTime();
+			HttpURLConnection connection = (HttpURLConnection) new URL(appUrl).openConnection();
+			connection.setInstanceFollowRedirects(false);
+			if (cookie != null) connection.setRequestProperty("Cookie", cookie);
+			int status = connection.getResponseCode();
+			try (InputStream in = (status >= 400) ? connection.getErrorStream() : connection.getInputStream()) {
+				if (in != null) StreamUtils.drain(in);
+			}
+			String setCookie = connection.getHeaderField("Set-Cookie");
+			if (setCookie != null) cookie = setCookie.split(";", 2)[0];
+			if (status >= 400) throw new IOException("Request failed with status " + status);
+			if (i > 0) latencies.add((System.nanoTime() - start) / 1000000);
+		}
+	}
+
+	private void sampleServerThreads() {
+		while (running) {
+			try {
+				maxServerThreads.accumulateAndGet(getServerThreads(), Math::max);
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				// Keep sampling: the server may be too busy to answer.
+			}
+		}
+	}
+
+	private int getServerThreads() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url + "/actuator/metrics/jvm.threads.live").openConnection();
+		try (InputStream in = connection.getInputStream()) {
+			Matcher matcher = METRIC_VALUE.matcher(StreamUtils.copyToString(in, StandardCharsets.UTF_8));
+			if (!matcher.find()) throw new IOException("Unexpected response of the jvm.threads.live metric");
+			return (int) Double.parseDouble(matcher.group(1));
+		}
+	}
+
+	private static long percentile(List<Long> sorted, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index));
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.startup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The time from launching ShinyProxy until its main page is served: from the packaged jar, from the unpacked jar,
+ * and from the unpacked jar with the class-data-sharing archive of the fast-start profile.
+ * 
+ * Needs the output of the fast-start profile: build with mvn -Pfast-start package first,
+ * then run with mvn -Pbenchmark test-compile exec:exec -Djmh.includes=startup
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StartupBenchmark {
+
+	private static final long TIMEOUT_MS = 120000;
+
+	private static final List<String> ARGS = Arrays.asList(
+			"--proxy.authentication=none",
+			"--proxy.heartbeat-enabled=false",
+			"--proxy.image-pull.enabled=false");
+
+	@Param({ "jar", "unpacked", "fast-start" })
+	private String mode;
+
+	private File targetDirectory;
+	private File fastStartDirectory;
+	private File jar;
+
+	@Setup
+	public void setup() {
+		targetDirectory = new File("target").getAbsoluteFile();
+		fastStartDirectory = new File(targetDirectory, "fast-start");
+		if (!new File(fastStartDirectory, "shinyproxy.jsa").exists()) {
+			throw new IllegalStateException("No fast-start build found in " + fastStartDirectory + ": run mvn -Pfast-start package first");
+		}
+		File[] jars = targetDirectory.listFiles((dir, name) -> name.startsWith("shinyproxy-") && name.endsWith(".jar"));
+		if (jars == null || jars.length == 0) throw new IllegalStateException("No packaged jar found in " + targetDirectory);
+		jar = jars[0];
+	}
+
+	@Benchmark
+	public int startup() throws Exception {
+		int port = findFreePort();
+		Process process = start(port);
+		try {
+			return awaitMainPage(port);
+		} finally {
+			process.destroy();
+			if (!process.waitFor(30, TimeUnit.SECONDS)) process.destroyForcibly();
+		}
+	}
+
+	private Process start(int port) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add("java");
+		File directory = fastStartDirectory;
+		switch (mode) {
+		case "jar":
+			command.add("-jar");
+			command.add(jar.getPath());
+			directory = targetDirectory;
+			break;
+		case "unpacked":
+			command.add("@classpath.args");
+			command.add("eu.openanalytics.containerproxy.ContainerProxyApplication");
+			break;
+		case "fast-start":
+			command.add("@classpath.args");
+			command.add("-XX:SharedArchiveFile=shinyproxy.jsa");
+			command.add("eu.openanalytics.containerproxy.ContainerProxyApplication");
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid mode: " + mode);
+		}
+		command.addAll(ARGS);
+		command.add("--server.port=" + port);
+		return new ProcessBuilder(command)
+				.directory(directory)
+				.redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(targetDirectory, "startup-benchmark.log")))
+				.start();
+	}
+
+	private static int awaitMainPage(int port) throws Exception {
+		URL url = new URL("http://localhost:" + port + "/");
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+				int status = connection.getResponseCode();
+				connection.disconnect();
+				if (status == 200) return status;
+			} catch (IOException e) {
+				// Not listening yet.
+			}
+			Thread.sleep(10);
+		}
+		throw new IllegalStateException("ShinyProxy did not serve its main page within " + TIMEOUT_MS + " ms");
+	}
+
+	private static int findFreePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.upstream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.openanalytics.shinyproxy.BenchmarkSupport;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The CPU cost of compressing app responses against the bytes it saves, per compression level and response size.
+ * The bytes before and after compression are reported as the secondary metrics bytesIn and bytesOut.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param({ "1", "6", "9" })
+	private int level;
+
+	@Param({ "4096", "65536", "524288" })
+	private int size;
+
+	private ResponseCompressor compressor;
+	private byte[] payload;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Bytes {
+
+		public long bytesIn;
+		public long bytesOut;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytesIn = 0;
+			bytesOut = 0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("proxy.compression.enabled", "true");
+		properties.put("proxy.compression.level", String.valueOf(level));
+		compressor = new ResponseCompressor();
+		BenchmarkSupport.inject(compressor, "environment", BenchmarkSupport.createEnvironment(properties));
+		BenchmarkSupport.inject(compressor, "registry", new SimpleMeterRegistry());
+		compressor.init();
+		payload = createScript(size);
+	}
+
+	/**
+	 * Compress a response that is not cached, as is done for every proxied response.
+	 */
+	@Benchmark
+	public byte[] compress(Bytes bytes) throws IOException {
+		byte[] compressed = compressor.getCompressed("asset", null, payload);
+		bytes.bytesIn += payload.length;
+		bytes.bytesOut += compressed.length;
+		return compressed;
+	}
+
+	/**
+	 * Serve the compressed variant of a cached asset.
+	 */
+	@Benchmark
+	public byte[] cachedVariant(Bytes bytes) throws IOException {
+		byte[] compressed = compressor.getCompressed("asset", "\"v1\"", payload);
+		bytes.bytesIn += payload.length;
+		bytes.bytesOut += compressed.length;
+		return compressed;
+	}
+
+	/**
+	 * Generate JavaScript-like text, which compresses about as well as the assets of a Shiny app.
+	 */
+	private static byte[] createScript(int size) {
+		String[] words = { "function", "var", "return", "this", "shiny", "input", "output", "value", "binding", "el", "data", "$(", ").on(", "'change'", "=>", "null", "true", "if", "else", "{", "}", ";", "\n" };
+		Random random = new Random(42);
+		StringBuilder script = new StringBuilder(size);
+		while (script.length() < size) {
+			script.append(words[random.nextInt(words.length)]).append(' ');
+			if (random.nextInt(8) == 0) script.append("id").append(random.nextInt(500));
+		}
+		script.setLength(size);
+		return script.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
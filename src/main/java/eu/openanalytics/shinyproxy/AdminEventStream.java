@@ -0,0 +1,179 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import eu.openanalytics.containerproxy.event.ProxyStartEvent;
+import eu.openanalytics.containerproxy.event.ProxyStopEvent;
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.service.ProxyService;
+
+/**
+ * Pushes proxy lifecycle changes to the admin pages as Server-Sent Events, so that they can update
+ * their proxy list incrementally instead of reloading it.
+ * 
+ * A "proxy-start" event carries the started proxy (see {@link #toMap(Proxy)}),
+ * a "proxy-stop" event carries the user and spec of the stopped proxy, and the ids of the proxies of that user and spec that stopped.
+ * Pooled proxies and shared replicas have their user and spec in common, so the stopped ones are told apart from
+ * their siblings by keeping track of the announced proxies.
+ * The events are sent on a dedicated thread, so that a slow admin browser does not hold up proxy launches.
+ */
+@Component
+public class AdminEventStream {
+
+	private static final long EMITTER_TIMEOUT_MS = 30 * 60 * 1000;
+
+	private final List<SseEmitter> subscribers = new CopyOnWriteArrayList<>();
+
+	private final ExecutorService sendExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("admin-events-"));
+
+	// The announced proxies and the number of stop events that were already reported, by user and spec.
+	// These are only accessed on the send thread.
+	private final Map<String, List<Proxy>> announcedProxies = new HashMap<>();
+	private final Map<String, Integer> reportedStops = new HashMap<>();
+
+	@Inject
+	private ProxyService proxyService;
+
+	@Inject
+	private ProxyIndex proxyIndex;
+
+	public SseEmitter subscribe() {
+		// Browsers reconnect automatically when the stream times out.
+		SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MS);
+		subscribers.add(emitter);
+		emitter.onCompletion(() -> subscribers.remove(emitter));
+		emitter.onTimeout(() -> subscribers.remove(emitter));
+		return emitter;
+	}
+
+	@EventListener
+	public void onProxyStart(ProxyStartEvent event) {
+		String userId = event.getUserId();
+		String specId = event.getSpecId();
+		if (userId == null || specId == null) return;
+		sendExecutor.submit(() -> {
+			List<Proxy> announced = announcedProxies.computeIfAbsent(getKey(userId, specId), k -> new ArrayList<>());
+			for (Proxy proxy: findProxies(userId, specId)) {
+				if (announced.stream().anyMatch(p -> p.getId().equals(proxy.getId()))) continue;
+				announced.add(proxy);
+				send("proxy-start", toMap(proxy));
+			}
+		});
+	}
+
+	@EventListener
+	public void onProxyStop(ProxyStopEvent event) {
+		String userId = event.getUserId();
+		String specId = event.getSpecId();
+		if (userId == null || specId == null) return;
+		sendExecutor.submit(() -> {
+			String key = getKey(userId, specId);
+			Integer pendingStops = reportedStops.remove(key);
+			if (pendingStops != null) {
+				// This proxy was already reported together with a sibling that stopped at the same time.
+				if (pendingStops > 1) reportedStops.put(key, pendingStops - 1);
+				return;
+			}
+
+			List<String> stoppedIds = new ArrayList<>();
+			List<Proxy> announced = announcedProxies.getOrDefault(key, Collections.emptyList());
+			for (Iterator<Proxy> it = announced.iterator(); it.hasNext();) {
+				Proxy proxy = it.next();
+				if (proxy.getStatus() == ProxyStatus.Stopping || proxy.getStatus() == ProxyStatus.Stopped) {
+					stoppedIds.add(proxy.getId());
+					it.remove();
+				} else if (!userId.equals(proxy.getUserId())) {
+					// A pooled proxy that was claimed by a user: it did not stop.
+					it.remove();
+				}
+			}
+			if (announced.isEmpty()) announcedProxies.remove(key);
+			if (stoppedIds.size() > 1) reportedStops.put(key, stoppedIds.size() - 1);
+
+			Map<String, Object> data = new HashMap<>();
+			data.put("userId", userId);
+			data.put("specId", specId);
+			data.put("ids", stoppedIds);
+			send("proxy-stop", data);
+		});
+	}
+
+	private List<Proxy> findProxies(String userId, String specId) {
+		if (ProxyPoolService.POOL_USER_ID.equals(userId) || SharedProxyService.SHARED_USER_ID.equals(userId)) {
+			// Pooled proxies and shared replicas are not indexed, and have their user and spec in common.
+			return proxyService.getProxies(p -> userId.equals(p.getUserId()) && specId.equals(p.getSpec().getId()), true);
+		}
+		Proxy proxy = proxyIndex.find(userId, specId);
+		return (proxy == null) ? Collections.emptyList() : Collections.singletonList(proxy);
+	}
+
+	private static String getKey(String userId, String specId) {
+		return userId + "/" + specId;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		sendExecutor.shutdownNow();
+	}
+
+	public static Map<String, Object> toMap(Proxy proxy) {
+		Map<String, Object> data = new HashMap<>();
+		data.put("id", proxy.getId());
+		data.put("userId", proxy.getUserId());
+		data.put("specId", (proxy.getSpec() == null) ? null : proxy.getSpec().getId());
+		data.put("status", proxy.getStatus());
+		data.put("endpoint", proxy.getTargets().isEmpty() ? null : proxy.getTargets().values().iterator().next().toString());
+		data.put("startupTimestamp", proxy.getStartupTimestamp());
+		return data;
+	}
+
+	private void send(String name, Object data) {
+		for (SseEmitter emitter: subscribers) {
+			try {
+				emitter.send(SseEmitter.event().name(name).data(data));
+			} catch (IOException | IllegalStateException e) {
+				// The browser went away: stop pushing to this stream.
+				subscribers.remove(emitter);
+				emitter.completeWithError(e);
+			}
+		}
+	}
+}
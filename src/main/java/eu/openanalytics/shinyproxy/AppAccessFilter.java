@@ -0,0 +1,78 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Limits access to the app pages (/app/...) and to the apps themselves (/app_direct/...) according to the access groups of their spec.
+ * 
+ * The app id is taken from the parsed {@link AppRoute} of the request (the same one the controllers use), and checked against the groups of the current spec registry,
+ * so the cost of the check does not depend on the number of specs, and spec changes are picked up immediately.
+ */
+public class AppAccessFilter extends OncePerRequestFilter {
+
+	private static final String ROLE_PREFIX = "ROLE_";
+
+	private final ShinyProxySpecProvider specProvider;
+
+	public AppAccessFilter(ShinyProxySpecProvider specProvider) {
+		this.specProvider = specProvider;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+		String appId = getAppId(request);
+		if (appId != null && !isAllowed(appId, SecurityContextHolder.getContext().getAuthentication())) {
+			throw new AccessDeniedException(String.format("Access denied to app %s", appId));
+		}
+		chain.doFilter(request, response);
+	}
+
+	public boolean isAllowed(String appId, Authentication authentication) {
+		Set<String> allowedGroups = specProvider.getRegistry().getAllowedGroups(appId);
+		if (allowedGroups == null) return true;
+		if (authentication == null) return false;
+		for (GrantedAuthority authority: authentication.getAuthorities()) {
+			String role = authority.getAuthority();
+			if (role != null && role.startsWith(ROLE_PREFIX) && allowedGroups.contains(role.substring(ROLE_PREFIX.length()))) return true;
+		}
+		return false;
+	}
+
+	private static String getAppId(HttpServletRequest request) {
+		AppRoute route = AppRoute.of(request);
+		if (route.isMode("app") || route.isMode("app_direct")) return route.getAppName();
+		return null;
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The app route of a request: the mode (e.g. "app" or "app_direct"), the app name and the sub path after the app name.
+ * 
+ * The route is parsed in a single pass over the request URI, and is stored on the request so that it is parsed only once,
+ * no matter how many times the controllers and filters ask for it.
+ * It matches the same URIs as the pattern <code>.*?/app[^/]*&#47;([^/]*)/?.*</code> that was used before,
+ * except that it starts looking after the context path.
+ */
+public class AppRoute {
+
+	private static final String REQUEST_ATTRIBUTE = AppRoute.class.getName();
+
+	private static final AppRoute NONE = new AppRoute(null, -1, -1, -1);
+
+	private final String uri;
+	private final int modeStart;
+	private final int modeEnd;
+	private final int nameEnd;
+	private final String appName;
+
+	private AppRoute(String uri, int modeStart, int modeEnd, int nameEnd) {
+		this.uri = uri;
+		this.modeStart = modeStart;
+		this.modeEnd = modeEnd;
+		this.nameEnd = nameEnd;
+		this.appName = (uri == null) ? null : uri.substring(modeEnd + 1, nameEnd);
+	}
+
+	public static AppRoute of(HttpServletRequest request) {
+		String uri = request.getRequestURI();
+		Object cached = request.getAttribute(REQUEST_ATTRIBUTE);
+		if (cached instanceof AppRoute && ((AppRoute) cached).matchesURI(uri)) return (AppRoute) cached;
+
+		String contextPath = request.getContextPath();
+		AppRoute route = parse(uri, (contextPath == null) ? 0 : contextPath.length());
+		request.setAttribute(REQUEST_ATTRIBUTE, route);
+		return route;
+	}
+
+	public static AppRoute parse(String uri) {
+		return parse(uri, 0);
+	}
+
+	public static AppRoute parse(String uri, int offset) {
+		if (uri == null) return NONE;
+		int start = uri.indexOf("/app", offset);
+		if (start == -1) return NONE;
+		// If there is no slash after the first "/app", there cannot be another "/app" either.
+		int modeEnd = uri.indexOf('/', start + 4);
+		if (modeEnd == -1) return NONE;
+		int nameEnd = uri.indexOf('/', modeEnd + 1);
+		if (nameEnd == -1) nameEnd = uri.length();
+		return new AppRoute(uri, start + 1, modeEnd, nameEnd);
+	}
+
+	public boolean isRoute() {
+		return uri != null;
+	}
+
+	public String getMode() {
+		return isRoute() ? uri.substring(modeStart, modeEnd) : null;
+	}
+
+	public boolean isMode(String mode) {
+		return isRoute() && mode.length() == modeEnd - modeStart && uri.startsWith(mode, modeStart);
+	}
+
+	public String getAppName() {
+		return appName;
+	}
+
+	/**
+	 * The part of the URI after the app name: either empty, or starting with a slash.
+	 */
+	public String getSubPath() {
+		return isRoute() ? uri.substring(nameEnd) : null;
+	}
+
+	private boolean matchesURI(String otherURI) {
+		return (uri == null) ? otherURI == null : uri.equals(otherURI);
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the executors for work that blocks while waiting, such as launching proxies and handling requests.
+ * 
+ * If proxy.virtual-threads.enabled is set and the JVM supports virtual threads (Java 21 or newer), each task runs on
+ * a new virtual thread, so that waiting tasks do not hold on to platform threads. Otherwise, a cached pool of platform
+ * threads is used. Virtual threads are looked up via reflection, as ShinyProxy is also built for older Java versions.
+ */
+@Component
+public class ExecutorFactory {
+
+	private final Logger log = LogManager.getLogger(ExecutorFactory.class);
+
+	private boolean virtual;
+
+	@Inject
+	private Environment environment;
+
+	@PostConstruct
+	public void init() {
+		boolean enabled = Boolean.valueOf(environment.getProperty("proxy.virtual-threads.enabled", "false"));
+		if (!enabled) return;
+		virtual = (createVirtualThreadFactory("probe-") != null);
+		if (virtual) log.info("Using virtual threads for request handling and proxy launches");
+		else log.warn("Virtual threads are enabled but not supported by this JVM, falling back to platform threads");
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Create an executor that starts a thread for each task, or reuses idle platform threads if virtual threads are not used.
+	 */
+	public ExecutorService newExecutor(String threadNamePrefix) {
+		if (virtual) {
+			ExecutorService executor = createVirtualThreadExecutor(threadNamePrefix);
+			if (executor != null) return executor;
+		}
+		return Executors.newCachedThreadPool(new CustomizableThreadFactory(threadNamePrefix));
+	}
+
+	private static ExecutorService createVirtualThreadExecutor(String threadNamePrefix) {
+		ThreadFactory threadFactory = createVirtualThreadFactory(threadNamePrefix);
+		if (threadFactory == null) return null;
+		try {
+			Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Equivalent to Thread.ofVirtual().name(prefix, 1).factory(), or null if virtual threads are not available.
+	 */
+	private static ThreadFactory createVirtualThreadFactory(String threadNamePrefix) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadNamePrefix, 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import eu.openanalytics.containerproxy.auth.IAuthenticationBackend;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+
+/**
+ * Caches the app list of the main page per access-group signature: the (sorted) set of groups of a user
+ * that actually restrict access to a spec. All users with the same signature see the same apps,
+ * so the list is built once per signature instead of once per page view.
+ * Access follows the same rules as {@link eu.openanalytics.containerproxy.service.UserService#canAccess(Authentication, ProxySpec)}:
+ * anonymous users can access every spec unless the authentication backend has authorization.
+ * 
+ * The cache belongs to a single {@link SpecRegistry} version: it is dropped as soon as the specs change.
+ * Logos are not cached here: they are resolved on every render, so that a modified logo file shows up without a reload.
+ */
+@Component
+public class IndexPageCache {
+
+	private static final String ROLE_PREFIX = "ROLE_";
+
+	// Signatures of users that can access no spec and every spec. Groups are upper-cased, so these cannot clash with them.
+	private static final String NO_ACCESS = "#none";
+	private static final String FULL_ACCESS = "#all";
+
+	private static final String[] PAGE_KEYS = { "apps", "appLogos", "displayAppLogos" };
+
+	private final String instanceId = Long.toHexString(System.currentTimeMillis());
+
+	private volatile Generation generation = new Generation(SpecRegistry.EMPTY);
+
+	@Inject
+	private ShinyProxySpecProvider specProvider;
+
+	@Inject
+	private LogoService logoService;
+
+	@Inject
+	private IAuthenticationBackend authenticationBackend;
+
+	/**
+	 * Returns the app list for the given user, building it if no user with the same groups has requested it yet.
+	 */
+	public AppList getAppList(Authentication authentication) {
+		SpecRegistry registry = specProvider.getRegistry();
+		Generation current = generation;
+		if (current.registry != registry) {
+			current = new Generation(registry);
+			generation = current;
+		}
+		Generation target = current;
+
+		String signature;
+		TreeSet<String> groups = null;
+		if (authentication == null) {
+			signature = NO_ACCESS;
+		} else if (authentication instanceof AnonymousAuthenticationToken) {
+			signature = authenticationBackend.hasAuthorization() ? NO_ACCESS : FULL_ACCESS;
+		} else {
+			groups = getGroups(registry, authentication);
+			signature = String.join(",", groups);
+		}
+		TreeSet<String> accessGroups = groups;
+		AppList list = target.lists.get(signature);
+		if (list == null) list = target.lists.computeIfAbsent(signature, s -> buildAppList(target.registry, s, accessGroups));
+		return list;
+	}
+
+	/**
+	 * Resolves the logos of the apps in the list. {@link LogoService} caches the logos themselves.
+	 */
+	public Map<ProxySpec, String> resolveLogos(AppList list) {
+		Map<ProxySpec, String> appLogos = new HashMap<>();
+		for (ProxySpec app: list.getApps()) {
+			if (app.getLogoURL() != null) appLogos.put(app, logoService.resolve(app.getLogoURL()));
+		}
+		return appLogos;
+	}
+
+	/**
+	 * Computes an ETag for the main page, from the app list and all other (simple) values of the page model.
+	 * The ETag changes whenever the specs, the groups of the user, a logo or anything shown in the navbar changes.
+	 */
+	public String getETag(AppList list, Map<ProxySpec, String> appLogos, Map<String, Object> model, String userName) {
+		Map<String, Object> values = new TreeMap<>(model);
+		for (String key: PAGE_KEYS) values.remove(key);
+
+		StringBuilder tag = new StringBuilder();
+		tag.append(instanceId).append('|').append(list.getVersion()).append('|').append(list.getSignature()).append('|').append(userName);
+		for (Map.Entry<String, Object> value: values.entrySet()) {
+			tag.append('|').append(value.getKey()).append('=').append(value.getValue());
+		}
+		for (ProxySpec app: list.getApps()) {
+			// Logos served by ShinyProxy have a content-addressed URL, which changes with the logo file.
+			if (appLogos.containsKey(app)) tag.append('|').append(app.getId()).append('=').append(appLogos.get(app));
+		}
+		return "\"" + DigestUtils.md5DigestAsHex(tag.toString().getBytes(StandardCharsets.UTF_8)) + "\"";
+	}
+
+	@EventListener
+	public void onSpecsReloaded(SpecsReloadedEvent event) {
+		generation = new Generation(specProvider.getRegistry());
+	}
+
+	private static AppList buildAppList(SpecRegistry registry, String signature, TreeSet<String> groups) {
+		List<ProxySpec> apps;
+		if (groups != null) apps = registry.getAccessibleSpecs(groups);
+		else if (FULL_ACCESS.equals(signature)) apps = registry.getSpecs();
+		else apps = Collections.emptyList();
+
+		boolean displayAppLogos = false;
+		for (ProxySpec app: apps) {
+			if (app.getLogoURL() != null) displayAppLogos = true;
+		}
+		return new AppList(registry.getVersion(), signature, apps.toArray(new ProxySpec[0]), displayAppLogos);
+	}
+
+	private static TreeSet<String> getGroups(SpecRegistry registry, Authentication authentication) {
+		TreeSet<String> groups = new TreeSet<>();
+		if (registry.getGroups().isEmpty()) return groups;
+		for (GrantedAuthority authority: authentication.getAuthorities()) {
+			if (authority.getAuthority() == null) continue;
+			// Like UserService.getGroups: the role prefix is optional.
+			String group = authority.getAuthority().toUpperCase();
+			if (group.startsWith(ROLE_PREFIX)) group = group.substring(ROLE_PREFIX.length());
+			if (registry.getGroups().contains(group)) groups.add(group);
+		}
+		return groups;
+	}
+
+	private static class Generation {
+
+		private final SpecRegistry registry;
+		private final Map<String, AppList> lists = new ConcurrentHashMap<>();
+
+		private Generation(SpecRegistry registry) {
+			this.registry = registry;
+		}
+	}
+
+	public static class AppList {
+
+		private final long version;
+		private final String signature;
+		private final ProxySpec[] apps;
+		private final boolean displayAppLogos;
+
+		private AppList(long version, String signature, ProxySpec[] apps, boolean displayAppLogos) {
+			this.version = version;
+			this.signature = signature;
+			this.apps = apps;
+			this.displayAppLogos = displayAppLogos;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public String getSignature() {
+			return signature;
+		}
+
+		public ProxySpec[] getApps() {
+			return apps;
+		}
+
+		public boolean isDisplayAppLogos() {
+			return displayAppLogos;
+		}
+	}
+}
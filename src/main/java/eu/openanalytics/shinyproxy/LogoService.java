@@ -0,0 +1,181 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StreamUtils;
+
+import eu.openanalytics.containerproxy.util.SessionHelper;
+
+/**
+ * Serves logos that are configured as file:// URIs, so that they can be cached by the browser.
+ * 
+ * Each logo is exposed under a content-addressed URL (/logo/{hash}): when the file changes, its URL changes as well.
+ * The logos are kept in a bounded cache, and the files are checked for modifications at most once per check interval.
+ * Logos that fail to load are cached as well, until their file is modified.
+ */
+@Component
+public class LogoService {
+
+	private final Logger log = LogManager.getLogger(LogoService.class);
+
+	private final Map<String, Logo> logosByHash = new ConcurrentHashMap<>();
+	private Map<String, Logo> logosByURI;
+
+	private long checkInterval;
+
+	@Inject
+	private Environment environment;
+
+	@PostConstruct
+	public void init() {
+		checkInterval = Long.parseLong(environment.getProperty("proxy.logo-check-interval", "5000"));
+		int maxSize = Integer.parseInt(environment.getProperty("proxy.logo-cache-size", "500"));
+		logosByURI = Collections.synchronizedMap(new LinkedHashMap<String, Logo>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Logo> eldest) {
+				boolean remove = size() > maxSize;
+				if (remove && !eldest.getValue().isFailed()) logosByHash.remove(eldest.getValue().getHash(), eldest.getValue());
+				return remove;
+			}
+		});
+	}
+
+	/**
+	 * Resolve the URI of a logo into a URL the browser can load.
+	 * Logos given as file:// URIs are served by ShinyProxy itself, other URIs are returned unchanged.
+	 */
+	public String resolve(String resourceURI) {
+		if (resourceURI == null || resourceURI.isEmpty()) return resourceURI;
+		if (!resourceURI.toLowerCase().startsWith("file://")) return resourceURI;
+
+		Logo logo = getLogo(resourceURI);
+		if (logo == null) return resourceURI;
+		return SessionHelper.getContextPath(environment, true) + "logo/" + logo.getHash();
+	}
+
+	public Logo getLogoByHash(String hash) {
+		if (hash == null) return null;
+		return logosByHash.get(hash);
+	}
+
+	private Logo getLogo(String resourceURI) {
+		long now = System.currentTimeMillis();
+		Logo logo = logosByURI.get(resourceURI);
+		if (logo != null && now - logo.lastChecked < checkInterval) {
+			if (logo.isFailed()) return null;
+			// Another URI with the same content may have been evicted together with the shared hash entry.
+			logosByHash.putIfAbsent(logo.getHash(), logo);
+			return logo;
+		}
+
+		long lastModified = getLastModified(resourceURI);
+		if (logo != null && logo.lastModified == lastModified) {
+			logo.lastChecked = now;
+			return logo.isFailed() ? null : logo;
+		}
+
+		Logo newLogo = load(resourceURI, lastModified);
+		newLogo.lastChecked = now;
+		logosByURI.put(resourceURI, newLogo);
+		if (!newLogo.isFailed()) logosByHash.put(newLogo.getHash(), newLogo);
+		if (logo != null && !logo.isFailed() && !logo.getHash().equals(newLogo.getHash())) logosByHash.remove(logo.getHash(), logo);
+		return newLogo.isFailed() ? null : newLogo;
+	}
+
+	private Logo load(String resourceURI, long lastModified) {
+		String mimeType = URLConnection.guessContentTypeFromName(resourceURI);
+		if (mimeType == null) {
+			log.warn("Cannot determine mimetype for resource: " + resourceURI);
+			return Logo.failed(lastModified);
+		}
+		try (InputStream input = new URL(resourceURI).openConnection().getInputStream()) {
+			byte[] data = StreamUtils.copyToByteArray(input);
+			return new Logo(DigestUtils.md5DigestAsHex(data), mimeType, data, lastModified);
+		} catch (IOException e) {
+			log.warn("Failed to load logo: " + resourceURI, e);
+			return Logo.failed(lastModified);
+		}
+	}
+
+	private static long getLastModified(String resourceURI) {
+		try {
+			return new File(URI.create(resourceURI)).lastModified();
+		} catch (IllegalArgumentException e) {
+			return 0;
+		}
+	}
+
+	public static class Logo {
+
+		private final String hash;
+		private final String mimeType;
+		private final byte[] data;
+		private final long lastModified;
+		private volatile long lastChecked;
+
+		public Logo(String hash, String mimeType, byte[] data, long lastModified) {
+			this.hash = hash;
+			this.mimeType = mimeType;
+			this.data = data;
+			this.lastModified = lastModified;
+		}
+
+		private static Logo failed(long lastModified) {
+			return new Logo(null, null, null, lastModified);
+		}
+
+		private boolean isFailed() {
+			return hash == null;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+}
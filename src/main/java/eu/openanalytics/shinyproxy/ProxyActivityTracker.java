@@ -0,0 +1,258 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.service.HeartbeatService;
+import eu.openanalytics.containerproxy.service.ProxyService;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.handlers.ServletRequestContext;
+
+/**
+ * Tracks the traffic of every proxy on the app_direct path: requests, bytes, open websockets and the time of the last activity.
+ * 
+ * Requests only touch striped counters ({@link LongAdder}) and a timestamp, without locks.
+ * Every proxy.activity.flush-interval, the counters are collected in one batch: active proxies get one heartbeat,
+ * the per-minute history behind {@link #getActivity(String)} is updated, and, if proxy.activity.idle-timeout is set,
+ * proxies without any activity for that long are stopped. A proxy without any traffic counts as idle since it started,
+ * or since this node started if that is later, as the traffic before a restart is not known.
+ * 
+ * Websocket traffic is proxied below the servlet layer, so its frames are not counted: a proxy with an open websocket
+ * counts as active, and closing the websocket counts as activity.
+ */
+@Component
+public class ProxyActivityTracker {
+
+	private final Logger log = LogManager.getLogger(ProxyActivityTracker.class);
+
+	private final Map<String, Activity> activities = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("proxy-activity-"));
+
+	private int windowMinutes;
+	private long idleTimeout;
+	private long startTime;
+
+	@Inject
+	private ProxyService proxyService;
+
+	@Inject
+	private HeartbeatService heartbeatService;
+
+	@Inject
+	private Environment environment;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void init() {
+		windowMinutes = Integer.parseInt(environment.getProperty("proxy.activity.window", "15"));
+		idleTimeout = Long.parseLong(environment.getProperty("proxy.activity.idle-timeout", "0"));
+		startTime = System.currentTimeMillis();
+		long flushInterval = Long.parseLong(environment.getProperty("proxy.activity.flush-interval", "10000"));
+		flushExecutor.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		flushExecutor.shutdownNow();
+	}
+
+	public int getWindowMinutes() {
+		return windowMinutes;
+	}
+
+	/**
+	 * Record a request for the given proxy. The size of the request and response are added when the exchange completes.
+	 */
+	public void track(Proxy proxy) {
+		Activity activity = activities.get(proxy.getId());
+		if (activity == null) activity = activities.computeIfAbsent(proxy.getId(), id -> new Activity(windowMinutes, System.currentTimeMillis()));
+		Activity tracked = activity;
+		tracked.requests.increment();
+		tracked.lastSeen = System.currentTimeMillis();
+
+		ServletRequestContext context = ServletRequestContext.current();
+		if (context == null) return;
+		HttpServerExchange exchange = context.getExchange();
+		if (exchange.isUpgrade()) {
+			tracked.openWebSockets.increment();
+			exchange.getConnection().addCloseListener(connection -> {
+				tracked.openWebSockets.decrement();
+				tracked.lastSeen = System.currentTimeMillis();
+			});
+		} else {
+			exchange.addExchangeCompleteListener((completedExchange, next) -> {
+				tracked.bytes.add(Math.max(0, completedExchange.getRequestContentLength()) + completedExchange.getResponseBytesSent());
+				tracked.lastSeen = System.currentTimeMillis();
+				next.proceed();
+			});
+		}
+	}
+
+	/**
+	 * Get the activity of a proxy during the last {@link #getWindowMinutes()} minutes, or null if it is not tracked yet.
+	 */
+	public ActivitySummary getActivity(String proxyId) {
+		Activity activity = activities.get(proxyId);
+		if (activity == null) return null;
+		return activity.summarize();
+	}
+
+	private void flush() {
+		try {
+			long now = System.currentTimeMillis();
+			Set<String> proxyIds = new HashSet<>();
+			for (Proxy proxy: proxyService.getProxies(null, true)) {
+				proxyIds.add(proxy.getId());
+				Activity activity = activities.get(proxy.getId());
+				if (activity == null) {
+					// Launched but never opened, or only opened before this node started.
+					if (proxy.getStatus() != ProxyStatus.Up) continue;
+					long since = Math.max(proxy.getStartupTimestamp(), startTime);
+					activity = activities.computeIfAbsent(proxy.getId(), id -> new Activity(windowMinutes, since));
+				}
+
+				boolean hasOpenWebSockets = activity.openWebSockets.sum() > 0;
+				if (activity.collect(now) || hasOpenWebSockets) {
+					if (hasOpenWebSockets) activity.lastSeen = now;
+					heartbeatService.heartbeatReceived(proxy.getId());
+				} else if (idleTimeout > 0 && now - activity.lastSeen > idleTimeout && isReapable(proxy)) {
+					log.info(String.format("Stopping idle proxy [user: %s] [spec: %s] [id: %s]", proxy.getUserId(), proxy.getSpec().getId(), proxy.getId()));
+					proxyService.stopProxy(proxy, true, true);
+				}
+			}
+			activities.keySet().retainAll(proxyIds);
+		} catch (Exception e) {
+			log.warn("Failed to flush proxy activity", e);
+		}
+	}
+
+	private static boolean isReapable(Proxy proxy) {
+		// Pooled and shared proxies have their own life cycle.
+		return proxy.getStatus() == ProxyStatus.Up
+				&& !ProxyPoolService.POOL_USER_ID.equals(proxy.getUserId())
+				&& !SharedProxyService.SHARED_USER_ID.equals(proxy.getUserId());
+	}
+
+	private static class Activity {
+
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder openWebSockets = new LongAdder();
+		private volatile long lastSeen;
+
+		// Per-minute history, only written by the flush thread.
+		private final long[] requestsPerMinute;
+		private final long[] bytesPerMinute;
+		private long currentMinute = System.currentTimeMillis() / 60000;
+
+		private Activity(int windowMinutes, long lastSeen) {
+			this.lastSeen = lastSeen;
+			requestsPerMinute = new long[Math.max(1, windowMinutes)];
+			bytesPerMinute = new long[Math.max(1, windowMinutes)];
+		}
+
+		/**
+		 * Move the counters into the per-minute history, and return whether there was any traffic since the previous call.
+		 */
+		private synchronized boolean collect(long now) {
+			long collectedRequests = requests.sumThenReset();
+			long collectedBytes = bytes.sumThenReset();
+			advance(now / 60000);
+			int slot = (int) (currentMinute % requestsPerMinute.length);
+			requestsPerMinute[slot] += collectedRequests;
+			bytesPerMinute[slot] += collectedBytes;
+			return collectedRequests > 0 || collectedBytes > 0;
+		}
+
+		private synchronized ActivitySummary summarize() {
+			advance(System.currentTimeMillis() / 60000);
+			long totalRequests = requests.sum();
+			long totalBytes = bytes.sum();
+			for (int i = 0; i < requestsPerMinute.length; i++) {
+				totalRequests += requestsPerMinute[i];
+				totalBytes += bytesPerMinute[i];
+			}
+			return new ActivitySummary(totalRequests, totalBytes, openWebSockets.sum(), lastSeen);
+		}
+
+		private void advance(long minute) {
+			long steps = Math.min(minute - currentMinute, requestsPerMinute.length);
+			for (long i = 1; i <= steps; i++) {
+				int slot = (int) ((currentMinute + i) % requestsPerMinute.length);
+				requestsPerMinute[slot] = 0;
+				bytesPerMinute[slot] = 0;
+			}
+			if (minute > currentMinute) currentMinute = minute;
+		}
+	}
+
+	public static class ActivitySummary {
+
+		private final long requests;
+		private final long bytes;
+		private final long openWebSockets;
+		private final long lastSeen;
+
+		public ActivitySummary(long requests, long bytes, long openWebSockets, long lastSeen) {
+			this.requests = requests;
+			this.bytes = bytes;
+			this.openWebSockets = openWebSockets;
+			this.lastSeen = lastSeen;
+		}
+
+		public long getRequests() {
+			return requests;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getOpenWebSockets() {
+			return openWebSockets;
+		}
+
+		public long getLastSeen() {
+			return lastSeen;
+		}
+	}
+}
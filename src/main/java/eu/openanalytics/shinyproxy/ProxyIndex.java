@@ -0,0 +1,129 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.containerproxy.event.ProxyStopEvent;
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.service.ProxyService;
+
+/**
+ * An index of the active proxies by user and spec, so that the proxy of a user can be found
+ * without scanning all active proxies.
+ * 
+ * Proxies are indexed when they are launched, and when a lookup that misses the index finds them up in the active proxies.
+ * The latter covers proxies that were started outside of the launch service, e.g. through the API.
+ * Entries are validated on lookup, so that a proxy which was stopped or handed over to another user is never returned.
+ */
+@Component
+public class ProxyIndex {
+
+	private final Map<Key, Proxy> proxies = new ConcurrentHashMap<>();
+
+	@Inject
+	private ProxyService proxyService;
+
+	/**
+	 * Find the proxy of a user, falling back to a scan over the active proxies on an index miss.
+	 * Like a plain scan, this also finds proxies that are still starting, which are not indexed until they are up.
+	 */
+	public Proxy find(String userId, String specId) {
+		Proxy proxy = findIndexed(userId, specId);
+		if (proxy != null || userId == null || specId == null) return proxy;
+		proxy = proxyService.findProxy(p -> userId.equals(p.getUserId()) && p.getSpec() != null && specId.equals(p.getSpec().getId()), true);
+		if (proxy != null && proxy.getStatus() == ProxyStatus.Up) put(proxy);
+		return proxy;
+	}
+
+	/**
+	 * Find the proxy of a user in the index only, without falling back to a scan.
+	 */
+	public Proxy findIndexed(String userId, String specId) {
+		if (userId == null || specId == null) return null;
+		Key key = new Key(userId, specId);
+		Proxy proxy = proxies.get(key);
+		if (proxy == null) return null;
+		if (isStale(proxy, key)) {
+			proxies.remove(key, proxy);
+			return null;
+		}
+		return proxy;
+	}
+
+	public void put(Proxy proxy) {
+		if (proxy == null || proxy.getUserId() == null || proxy.getSpec() == null) return;
+		if (ProxyPoolService.POOL_USER_ID.equals(proxy.getUserId()) || SharedProxyService.SHARED_USER_ID.equals(proxy.getUserId())) return;
+		proxies.put(new Key(proxy.getUserId(), proxy.getSpec().getId()), proxy);
+	}
+
+	public int size() {
+		return proxies.size();
+	}
+
+	@EventListener
+	public void onProxyStop(ProxyStopEvent event) {
+		if (event.getUserId() == null || event.getSpecId() == null) return;
+		Key key = new Key(event.getUserId(), event.getSpecId());
+		Proxy proxy = proxies.get(key);
+		if (proxy != null && isStale(proxy, key)) proxies.remove(key, proxy);
+	}
+
+	private static boolean isStale(Proxy proxy, Key key) {
+		return proxy.getStatus() == ProxyStatus.Stopping
+				|| proxy.getStatus() == ProxyStatus.Stopped
+				|| !key.userId.equals(proxy.getUserId());
+	}
+
+	private static class Key {
+
+		private final String userId;
+		private final String specId;
+		private final int hash;
+
+		public Key(String userId, String specId) {
+			this.userId = userId;
+			this.specId = specId;
+			this.hash = Objects.hash(userId, specId);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return userId.equals(other.userId) && specId.equals(other.specId);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
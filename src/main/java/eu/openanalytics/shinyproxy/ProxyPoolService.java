@@ -0,0 +1,329 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.service.HeartbeatService;
+import eu.openanalytics.containerproxy.service.ProxyService;
+import eu.openanalytics.containerproxy.service.UserService;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+
+/**
+ * Keeps a pool of started, responsive containers for specs that define a 'min-idle' setting.
+ * 
+ * When a user launches such a spec, an idle proxy is taken from the pool and its ownership is
+ * transferred to the user, so the user does not have to wait for a container to start.
+ * The pool is then refilled in the background. Pooled containers are started on behalf of
+ * a system user, so this is only suitable for apps that do not depend on the identity of the user
+ * in their container environment.
+ * When a spec is changed or removed, its pool is drained, so that no proxies with the old configuration are handed out.
+ */
+@Component
+public class ProxyPoolService {
+
+	public static final String POOL_USER_ID = "shinyproxy-pool";
+
+	private final Logger log = LogManager.getLogger(ProxyPoolService.class);
+
+	private final Map<String, SpecPool> pools = new ConcurrentHashMap<>();
+
+	private ExecutorService refillExecutor;
+	private final ScheduledExecutorService checkExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("proxy-pool-check-"));
+
+	@Inject
+	private ProxyService proxyService;
+
+	@Inject
+	private UserService userService;
+
+	@Inject
+	private HeartbeatService heartbeatService;
+
+	@Inject
+	private ShinyProxySpecProvider specProvider;
+
+	@Inject
+	private ExecutorFactory executorFactory;
+
+	@Inject
+	private Environment environment;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void init() {
+		refillExecutor = executorFactory.newExecutor("proxy-pool-");
+		long checkInterval = Long.parseLong(environment.getProperty("proxy.pool.check-interval", "10000"));
+		checkExecutor.scheduleWithFixedDelay(this::checkPools, 0, checkInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		checkExecutor.shutdownNow();
+		if (refillExecutor != null) refillExecutor.shutdownNow();
+	}
+
+	/**
+	 * Take an idle proxy of the given spec from the pool, and hand it over to the current user.
+	 * Returns null if the spec has no pool, or if the pool is empty.
+	 */
+	public Proxy claim(ProxySpec spec) {
+		SpecPool pool = getPool(spec.getId());
+		if (pool == null) return null;
+
+		Proxy proxy;
+		while ((proxy = pool.idleProxies.pollFirst()) != null) {
+			if (proxy.getStatus() == ProxyStatus.Up) break;
+		}
+
+		if (proxy == null) {
+			pool.misses.increment();
+			refill(pool, true);
+			return null;
+		}
+
+		proxy.setUserId(userService.getCurrentUserId());
+		// For the user, the proxy starts now: its startup timestamp (shown as uptime) is the start of the user's session.
+		proxy.setStartupTimestamp(System.currentTimeMillis());
+		heartbeatService.heartbeatReceived(proxy.getId());
+		pool.hits.increment();
+		log.info(String.format("Proxy claimed from pool [user: %s] [spec: %s] [id: %s]", proxy.getUserId(), spec.getId(), proxy.getId()));
+
+		refill(pool, false);
+		return proxy;
+	}
+
+	public List<PoolStats> getPoolStats() {
+		List<PoolStats> stats = new ArrayList<>();
+		for (SpecPool pool: pools.values()) {
+			stats.add(new PoolStats(pool));
+		}
+		Collections.sort(stats, (s1, s2) -> s1.getSpecId().compareTo(s2.getSpecId()));
+		return stats;
+	}
+
+	@EventListener
+	public void onSpecsReloaded(SpecsReloadedEvent event) {
+		for (String specId: event.getChangedSpecs()) drain(specId);
+		for (String specId: event.getRemovedSpecs()) drain(specId);
+	}
+
+	/**
+	 * Stop the idle proxies of the pool of the given spec, and retire the pool: proxies that are still starting
+	 * for it are stopped as soon as they are up. A new pool is created on the next check, if the spec still has one.
+	 */
+	private void drain(String specId) {
+		SpecPool pool = pools.remove(specId);
+		if (pool == null) return;
+		pool.retired = true;
+		Proxy proxy;
+		while ((proxy = pool.idleProxies.pollFirst()) != null) {
+			log.info(String.format("Stopping pooled proxy of changed spec [spec: %s] [id: %s]", specId, proxy.getId()));
+			proxyService.stopProxy(proxy, true, true);
+		}
+	}
+
+	private SpecPool getPool(String specId) {
+		ShinyProxySpec spec = specProvider.getShinyProxySpec(specId);
+		if (spec == null || spec.getMinIdle() <= 0) return null;
+		return pools.computeIfAbsent(specId, SpecPool::new);
+	}
+
+	private void checkPools() {
+		try {
+			for (ProxySpec spec: specProvider.getSpecs()) {
+				SpecPool pool = getPool(spec.getId());
+				if (pool == null) continue;
+
+				Iterator<Proxy> it = pool.idleProxies.iterator();
+				while (it.hasNext()) {
+					Proxy proxy = it.next();
+					if (proxy.getStatus() != ProxyStatus.Up) {
+						it.remove();
+					} else {
+						// Idle proxies receive no traffic: prevent them from being reaped by the heartbeat service.
+						heartbeatService.heartbeatReceived(proxy.getId());
+					}
+				}
+
+				int maxIdle = getMaxIdle(pool.specId);
+				while (pool.idleProxies.size() > maxIdle) {
+					Proxy proxy = pool.idleProxies.pollLast();
+					if (proxy != null) proxyService.stopProxy(proxy, true, true);
+				}
+
+				refill(pool, false);
+			}
+		} catch (Exception e) {
+			log.error("Error while checking proxy pools", e);
+		}
+	}
+
+	/**
+	 * Start proxies until the pool holds 'min-idle' proxies.
+	 * On a miss, one additional proxy is started (up to 'max-idle') to absorb bursts of launches.
+	 */
+	private void refill(SpecPool pool, boolean miss) {
+		ShinyProxySpec shinyProxySpec = specProvider.getShinyProxySpec(pool.specId);
+		if (shinyProxySpec == null) return;
+
+		int target = shinyProxySpec.getMinIdle();
+		if (miss) target = Math.min(target + 1, getMaxIdle(pool.specId));
+
+		while (pool.idleProxies.size() + pool.starting.get() < target) {
+			pool.starting.incrementAndGet();
+			refillExecutor.submit(() -> startPooledProxy(pool));
+		}
+	}
+
+	private void startPooledProxy(SpecPool pool) {
+		long startTime = System.currentTimeMillis();
+		SecurityContext previousContext = SecurityContextHolder.getContext();
+		try {
+			ProxySpec spec = specProvider.getSpec(pool.specId);
+			if (spec == null) return;
+
+			SecurityContext poolContext = new SecurityContextImpl(new UsernamePasswordAuthenticationToken(POOL_USER_ID, null, Collections.emptyList()));
+			SecurityContextHolder.setContext(poolContext);
+
+			ProxySpec resolvedSpec = proxyService.resolveProxySpec(spec, null, null);
+			Proxy proxy = proxyService.startProxy(resolvedSpec, true);
+			if (pool.retired) {
+				proxyService.stopProxy(proxy, true, true);
+				return;
+			}
+			pool.idleProxies.addLast(proxy);
+			// The spec may have changed while the proxy was starting.
+			if (pool.retired && pool.idleProxies.remove(proxy)) proxyService.stopProxy(proxy, true, true);
+			pool.lastRefillTime = System.currentTimeMillis() - startTime;
+			pool.totalRefillTime.add(pool.lastRefillTime);
+			pool.refills.increment();
+		} catch (Exception e) {
+			log.error("Failed to start pooled proxy for spec " + pool.specId, e);
+		} finally {
+			SecurityContextHolder.setContext(previousContext);
+			pool.starting.decrementAndGet();
+		}
+	}
+
+	private int getMaxIdle(String specId) {
+		ShinyProxySpec spec = specProvider.getShinyProxySpec(specId);
+		if (spec == null) return 0;
+		return Math.max(spec.getMinIdle(), spec.getMaxIdle());
+	}
+
+	private static class SpecPool {
+
+		private final String specId;
+		private final Deque<Proxy> idleProxies = new ConcurrentLinkedDeque<>();
+		private final AtomicInteger starting = new AtomicInteger();
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder refills = new LongAdder();
+		private final LongAdder totalRefillTime = new LongAdder();
+		private volatile long lastRefillTime;
+		private volatile boolean retired;
+
+		public SpecPool(String specId) {
+			this.specId = specId;
+		}
+	}
+
+	public static class PoolStats {
+
+		private final String specId;
+		private final int idle;
+		private final int starting;
+		private final long hits;
+		private final long misses;
+		private final long lastRefillTime;
+		private final long averageRefillTime;
+
+		private PoolStats(SpecPool pool) {
+			this.specId = pool.specId;
+			this.idle = pool.idleProxies.size();
+			this.starting = pool.starting.get();
+			this.hits = pool.hits.sum();
+			this.misses = pool.misses.sum();
+			this.lastRefillTime = pool.lastRefillTime;
+			long refills = pool.refills.sum();
+			this.averageRefillTime = (refills == 0) ? 0 : pool.totalRefillTime.sum() / refills;
+		}
+
+		public String getSpecId() {
+			return specId;
+		}
+
+		public int getIdle() {
+			return idle;
+		}
+
+		public int getStarting() {
+			return starting;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		public long getLastRefillTime() {
+			return lastRefillTime;
+		}
+
+		public long getAverageRefillTime() {
+			return averageRefillTime;
+		}
+	}
+}
@@ -0,0 +1,392 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Probes the HTTP endpoints of starting containers from a single thread, using non-blocking sockets.
+ * 
+ * Every attempt first opens a TCP connection, which fails fast while nothing is listening yet,
+ * and only then sends an HTTP GET request. Attempts are spaced using an exponential backoff:
+ * early attempts are frequent (so readiness is detected quickly), later attempts less so.
+ * The number of threads used is independent of the number of containers being probed.
+ * 
+ * Hostnames are resolved again for every attempt (the hostname of a container may only become known once it runs),
+ * on a few resolver threads (proxy.probe.resolver-threads), so that a slow DNS lookup does not hold up the other probes.
+ * All other probe state is only touched by the engine thread.
+ */
+@Component
+public class ProxyProbeEngine {
+
+	private static final List<Integer> READY_STATUS_CODES = Arrays.asList(200, 301, 302, 303, 307, 308);
+	private static final int MAX_STATUS_LINE_LENGTH = 256;
+	private static final byte[] HTTP_PREFIX = "HTTP/".getBytes(StandardCharsets.US_ASCII);
+
+	private final Logger log = LogManager.getLogger(ProxyProbeEngine.class);
+
+	private final Queue<Probe> newProbes = new ConcurrentLinkedQueue<>();
+	private final Queue<Probe> resolvedProbes = new ConcurrentLinkedQueue<>();
+	private final PriorityQueue<Probe> scheduledProbes = new PriorityQueue<>((p1, p2) -> Long.compare(p1.nextAttempt, p2.nextAttempt));
+	private final Set<Probe> activeProbes = new HashSet<>();
+
+	private volatile boolean running;
+	private Selector selector;
+	private Thread engineThread;
+	private ExecutorService resolverExecutor;
+
+	private long initialInterval;
+	private long maxInterval;
+	private double backoffMultiplier;
+	private long attemptTimeout;
+
+	@Inject
+	private Environment environment;
+
+	@PostConstruct
+	public void init() throws IOException {
+		initialInterval = Long.parseLong(environment.getProperty("proxy.probe.initial-interval", "50"));
+		maxInterval = Long.parseLong(environment.getProperty("proxy.probe.max-interval", "2000"));
+		backoffMultiplier = Double.parseDouble(environment.getProperty("proxy.probe.backoff-multiplier", "2"));
+		attemptTimeout = Long.parseLong(environment.getProperty("proxy.container-wait-timeout", "5000"));
+		int resolverThreads = Integer.parseInt(environment.getProperty("proxy.probe.resolver-threads", "2"));
+
+		CustomizableThreadFactory resolverThreadFactory = new CustomizableThreadFactory("proxy-probe-resolver-");
+		resolverThreadFactory.setDaemon(true);
+		resolverExecutor = Executors.newFixedThreadPool(resolverThreads, resolverThreadFactory);
+
+		selector = Selector.open();
+		running = true;
+		engineThread = new Thread(this::run, "proxy-probe-engine");
+		engineThread.setDaemon(true);
+		engineThread.start();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+		// Lookups that are still queued see that the engine has stopped, and fail their probe without resolving.
+		resolverExecutor.shutdown();
+	}
+
+	/**
+	 * Start probing the given target until it responds, or until the timeout has passed.
+	 * The returned future completes once the outcome is known; it never completes exceptionally.
+	 * Probes that are still pending when the engine shuts down are completed as failed.
+	 */
+	public CompletableFuture<ProbeResult> probe(URI target, long timeoutMs) {
+		Probe probe = new Probe(target, System.currentTimeMillis() + timeoutMs);
+		newProbes.add(probe);
+		if (running) {
+			selector.wakeup();
+		} else if (newProbes.remove(probe)) {
+			// The engine has stopped: fail the probe here, unless the engine picked it up while stopping.
+			failDetached(probe);
+		}
+		return probe.future;
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				long now = System.currentTimeMillis();
+
+				Probe probe;
+				while ((probe = newProbes.poll()) != null) {
+					probe.nextAttempt = now;
+					probe.interval = initialInterval;
+					scheduledProbes.add(probe);
+				}
+
+				while (!scheduledProbes.isEmpty() && scheduledProbes.peek().nextAttempt <= now) {
+					resolve(scheduledProbes.poll());
+				}
+
+				while ((probe = resolvedProbes.poll()) != null) {
+					startAttempt(probe, now);
+				}
+
+				for (Probe activeProbe: activeProbes.toArray(new Probe[0])) {
+					if (activeProbe.attemptDeadline <= now) failAttempt(activeProbe, now);
+				}
+
+				selector.select(getSelectTimeout(System.currentTimeMillis()));
+
+				now = System.currentTimeMillis();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key, now);
+				}
+			} catch (Exception e) {
+				log.error("Error in probe engine", e);
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		Probe probe;
+		while ((probe = newProbes.poll()) != null) complete(probe, false, now);
+		while ((probe = scheduledProbes.poll()) != null) complete(probe, false, now);
+		while ((probe = resolvedProbes.poll()) != null) complete(probe, false, now);
+		for (Probe activeProbe: activeProbes.toArray(new Probe[0])) complete(activeProbe, false, now);
+		try {
+			selector.close();
+		} catch (IOException ignore) {}
+	}
+
+	private long getSelectTimeout(long now) {
+		long wakeup = Long.MAX_VALUE;
+		if (!scheduledProbes.isEmpty()) wakeup = scheduledProbes.peek().nextAttempt;
+		for (Probe probe: activeProbes) wakeup = Math.min(wakeup, probe.attemptDeadline);
+		if (wakeup == Long.MAX_VALUE) return 0; // Nothing to do: wait until a probe is added.
+		return Math.max(1, wakeup - now);
+	}
+
+	/**
+	 * Look up the address of the probe on a resolver thread, which hands the probe back to the engine thread when done.
+	 * While it is being resolved, the probe is in none of the queues of the engine.
+	 */
+	private void resolve(Probe probe) {
+		try {
+			resolverExecutor.execute(() -> {
+				if (running) {
+					int port = probe.target.getPort();
+					if (port == -1) port = 80;
+					try {
+						probe.address = new InetSocketAddress(probe.target.getHost(), port);
+					} catch (RuntimeException e) {
+						probe.address = null;
+					}
+				}
+				resolvedProbes.add(probe);
+				if (running) {
+					selector.wakeup();
+				} else if (resolvedProbes.remove(probe)) {
+					failDetached(probe);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The engine is stopping: it completes the probes that are still scheduled.
+			scheduledProbes.add(probe);
+		}
+	}
+
+	private void startAttempt(Probe probe, long now) {
+		probe.attempts++;
+		probe.attemptDeadline = Math.min(now + attemptTimeout, probe.deadline);
+		probe.buffer = null;
+		try {
+			// E.g. while the container's hostname is not known yet.
+			if (probe.address == null || probe.address.isUnresolved()) throw new IOException("Unresolved address: " + probe.target);
+			probe.channel = SocketChannel.open();
+			probe.channel.configureBlocking(false);
+			if (probe.channel.connect(probe.address)) {
+				probe.channel.register(selector, SelectionKey.OP_WRITE, probe);
+			} else {
+				probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+			}
+			activeProbes.add(probe);
+		} catch (IOException | RuntimeException e) {
+			failAttempt(probe, now);
+		}
+	}
+
+	private void handle(SelectionKey key, long now) {
+		Probe probe = (Probe) key.attachment();
+		try {
+			if (!key.isValid()) return;
+			if (key.isConnectable()) {
+				probe.channel.finishConnect();
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (key.isWritable()) {
+				if (probe.buffer == null) probe.buffer = ByteBuffer.wrap(buildRequest(probe.target));
+				probe.channel.write(probe.buffer);
+				if (!probe.buffer.hasRemaining()) {
+					probe.buffer = ByteBuffer.allocate(MAX_STATUS_LINE_LENGTH);
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			} else if (key.isReadable()) {
+				int read = probe.channel.read(probe.buffer);
+				Integer statusCode = parseStatusCode(probe.buffer);
+				if (statusCode != null && READY_STATUS_CODES.contains(statusCode)) {
+					complete(probe, true, now);
+				} else if (statusCode != null || read == -1 || !probe.buffer.hasRemaining()) {
+					failAttempt(probe, now);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			failAttempt(probe, now);
+		}
+	}
+
+	private void failAttempt(Probe probe, long now) {
+		closeChannel(probe);
+		if (log.isDebugEnabled()) log.debug(String.format("Container unresponsive, trying again (attempt %d): %s", probe.attempts, probe.target));
+
+		probe.nextAttempt = now + probe.interval;
+		probe.interval = Math.min(maxInterval, (long) (probe.interval * backoffMultiplier));
+		if (probe.nextAttempt >= probe.deadline) {
+			log.warn(String.format("Container unresponsive after %d attempts: %s", probe.attempts, probe.target));
+			complete(probe, false, now);
+		} else {
+			scheduledProbes.add(probe);
+		}
+	}
+
+	private void complete(Probe probe, boolean success, long now) {
+		closeChannel(probe);
+		probe.future.complete(new ProbeResult(success, probe.attempts, now - probe.startTimestamp));
+	}
+
+	/**
+	 * Fail a probe that the engine thread no longer knows about, from any thread.
+	 */
+	private static void failDetached(Probe probe) {
+		probe.future.complete(new ProbeResult(false, probe.attempts, System.currentTimeMillis() - probe.startTimestamp));
+	}
+
+	private void closeChannel(Probe probe) {
+		activeProbes.remove(probe);
+		if (probe.channel == null) return;
+		try {
+			probe.channel.close();
+		} catch (IOException ignore) {}
+		probe.channel = null;
+	}
+
+	private static byte[] buildRequest(URI target) {
+		String path = (target.getRawPath() == null || target.getRawPath().isEmpty()) ? "/" : target.getRawPath();
+		String host = target.getHost() + ((target.getPort() == -1) ? "" : ":" + target.getPort());
+		String request = "GET " + path + " HTTP/1.1\r\n"
+				+ "Host: " + host + "\r\n"
+				+ "User-Agent: ShinyProxy\r\n"
+				+ "Connection: close\r\n\r\n";
+		return request.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Parse the status code from a (partially received) status line such as "HTTP/1.1 200 OK".
+	 * Returns null if not enough of the response has been received yet, or -1 if it is not an HTTP status line.
+	 */
+	static Integer parseStatusCode(ByteBuffer buffer) {
+		byte[] data = buffer.array();
+		int length = buffer.position();
+		for (int i = 0; i < HTTP_PREFIX.length; i++) {
+			if (i >= length) return null;
+			if (data[i] != HTTP_PREFIX[i]) return -1;
+		}
+
+		// The protocol version, e.g. "1.1" or "2", up to the space before the status code.
+		int offset = HTTP_PREFIX.length;
+		while (offset < length && data[offset] != ' ') {
+			if ((data[offset] < '0' || data[offset] > '9') && data[offset] != '.') return -1;
+			offset++;
+		}
+		if (offset == HTTP_PREFIX.length && offset < length) return -1;
+
+		// Three digits, followed by a space (before the reason phrase) or the end of the line.
+		if (offset + 4 >= length) return null;
+		int code = 0;
+		for (int i = offset + 1; i <= offset + 3; i++) {
+			if (data[i] < '0' || data[i] > '9') return -1;
+			code = code * 10 + (data[i] - '0');
+		}
+		if (data[offset + 4] != ' ' && data[offset + 4] != '\r') return -1;
+		return code;
+	}
+
+	public static class ProbeResult {
+
+		private final boolean success;
+		private final int attempts;
+		private final long durationMs;
+
+		public ProbeResult(boolean success, int attempts, long durationMs) {
+			this.success = success;
+			this.attempts = attempts;
+			this.durationMs = durationMs;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public long getDurationMs() {
+			return durationMs;
+		}
+	}
+
+	private static class Probe {
+
+		private final URI target;
+		private final long deadline;
+		private final long startTimestamp = System.currentTimeMillis();
+		private final CompletableFuture<ProbeResult> future = new CompletableFuture<>();
+
+		private int attempts;
+		private long interval;
+		private long nextAttempt;
+		private long attemptDeadline;
+		private volatile InetSocketAddress address;
+		private SocketChannel channel;
+		private ByteBuffer buffer;
+
+		public Probe(URI target, long deadline) {
+			this.target = target;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,499 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.service.HeartbeatService;
+import eu.openanalytics.containerproxy.service.ProxyService;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.handlers.ServletRequestContext;
+
+/**
+ * Serves specs that define a 'shared-seats' setting from a set of replica containers that are shared between users.
+ * 
+ * Each replica has 'shared-seats' seats. A user who launches a shared spec is assigned to the replica with the least
+ * active connections among the replicas with a free seat, and stays on that replica until the user has been inactive
+ * for proxy.shared.session-timeout. The number of replicas follows the number of assigned users, between
+ * 'shared-min-replicas' and 'shared-max-replicas', keeping at least one free seat while possible.
+ * When all replicas are full and no more replicas may be started, users are assigned to the least loaded replica anyway,
+ * or, if none of the replicas is running yet, wait (up to proxy.shared.wait-timeout) for one of them to start.
+ * 
+ * Like pooled containers, replicas are started on behalf of a system user, so this is only suitable for apps that
+ * do not depend on the identity of the user in their container environment.
+ */
+@Component
+public class SharedProxyService {
+
+	public static final String SHARED_USER_ID = "shinyproxy-shared";
+
+	private final Logger log = LogManager.getLogger(SharedProxyService.class);
+
+	private final Map<String, SharedSpec> sharedSpecs = new ConcurrentHashMap<>();
+	private final Map<String, Assignment> assignments = new ConcurrentHashMap<>();
+
+	private ExecutorService scaleExecutor;
+	private final ScheduledExecutorService checkExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("proxy-shared-check-"));
+
+	private long sessionTimeout;
+	private long waitTimeout;
+
+	@Inject
+	private ProxyService proxyService;
+
+	@Inject
+	private HeartbeatService heartbeatService;
+
+	@Inject
+	private ShinyProxySpecProvider specProvider;
+
+	@Inject
+	private ExecutorFactory executorFactory;
+
+	@Inject
+	private Environment environment;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void init() {
+		scaleExecutor = executorFactory.newExecutor("proxy-shared-");
+		sessionTimeout = Long.parseLong(environment.getProperty("proxy.shared.session-timeout", "60000"));
+		waitTimeout = Long.parseLong(environment.getProperty("proxy.shared.wait-timeout", "120000"));
+		long checkInterval = Long.parseLong(environment.getProperty("proxy.shared.check-interval", "10000"));
+		checkExecutor.scheduleWithFixedDelay(this::checkReplicas, 0, checkInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		checkExecutor.shutdownNow();
+		if (scaleExecutor != null) scaleExecutor.shutdownNow();
+	}
+
+	public boolean isShared(ProxySpec spec) {
+		return getSharedSpec(spec.getId()) != null;
+	}
+
+	/**
+	 * Find the replica the given user is assigned to, or null if the user has no (active) assignment for the spec.
+	 */
+	public Proxy find(String userId, String specId) {
+		if (userId == null || specId == null) return null;
+		Assignment assignment = assignments.get(getKey(userId, specId));
+		if (assignment == null || assignment.replica.proxy.getStatus() != ProxyStatus.Up) return null;
+		return assignment.replica.proxy;
+	}
+
+	/**
+	 * Assign the given user to a replica of the spec, starting a replica if needed.
+	 */
+	public Proxy assign(ProxySpec spec, String userId) {
+		SharedSpec sharedSpec = getSharedSpec(spec.getId());
+		if (sharedSpec == null) throw new IllegalArgumentException("Not a shared spec: " + spec.getId());
+
+		String key = getKey(userId, spec.getId());
+		Proxy proxy = find(userId, spec.getId());
+		if (proxy != null) return proxy;
+
+		Replica replica = reserveReplica(sharedSpec);
+		if (replica == null) {
+			// Start the replica on this thread: the launch waits for it anyway.
+			replica = startReplica(sharedSpec, true);
+			if (replica == null) throw new RuntimeException("Failed to start a replica for shared spec " + spec.getId());
+		}
+
+		Assignment assignment = new Assignment(replica);
+		Assignment previous = assignments.put(key, assignment);
+		if (previous != null) previous.replica.seats.decrementAndGet();
+		log.info(String.format("User assigned to shared proxy [user: %s] [spec: %s] [id: %s] [seats: %d/%d]",
+				userId, spec.getId(), replica.proxy.getId(), replica.seats.get(), sharedSpec.getSeats()));
+		return replica.proxy;
+	}
+
+	/**
+	 * Record a request of the current user on a shared replica, counting it as an active connection until it completes.
+	 */
+	public void onRequest(Proxy proxy, String userId) {
+		if (!SHARED_USER_ID.equals(proxy.getUserId())) return;
+		Assignment assignment = assignments.get(getKey(userId, proxy.getSpec().getId()));
+		if (assignment == null || assignment.replica.proxy != proxy) return;
+		assignment.lastSeen = System.currentTimeMillis();
+
+		ServletRequestContext context = ServletRequestContext.current();
+		if (context == null) return;
+		HttpServerExchange exchange = context.getExchange();
+		assignment.connections.incrementAndGet();
+		assignment.replica.connections.incrementAndGet();
+		Runnable onClose = () -> {
+			assignment.connections.decrementAndGet();
+			assignment.replica.connections.decrementAndGet();
+			assignment.lastSeen = System.currentTimeMillis();
+		};
+		if (exchange.isUpgrade()) {
+			exchange.getConnection().addCloseListener(connection -> onClose.run());
+		} else {
+			exchange.addExchangeCompleteListener((completedExchange, next) -> {
+				onClose.run();
+				next.proceed();
+			});
+		}
+	}
+
+	public List<SharedStats> getSharedStats() {
+		List<SharedStats> stats = new ArrayList<>();
+		for (SharedSpec sharedSpec: sharedSpecs.values()) {
+			stats.add(new SharedStats(sharedSpec));
+		}
+		Collections.sort(stats, (s1, s2) -> s1.getSpecId().compareTo(s2.getSpecId()));
+		return stats;
+	}
+
+	private SharedSpec getSharedSpec(String specId) {
+		ShinyProxySpec spec = specProvider.getShinyProxySpec(specId);
+		if (spec == null || spec.getSharedSeats() <= 0) return null;
+		return sharedSpecs.computeIfAbsent(specId, SharedSpec::new);
+	}
+
+	/**
+	 * Take a seat on a running replica of the spec, or reserve the start of a new replica (in which case null is returned).
+	 * If no replica may be started because the maximum has been reached, but some replicas are still starting,
+	 * this waits for one of them instead of going over the maximum.
+	 */
+	private Replica reserveReplica(SharedSpec sharedSpec) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+		sharedSpec.lock.lock();
+		try {
+			while (true) {
+				// Taking the seat while holding the lock prevents the replica from being stopped as unused.
+				Replica replica = selectReplica(sharedSpec);
+				if (replica != null) {
+					replica.seats.incrementAndGet();
+					return replica;
+				}
+				if (getReplicaCount(sharedSpec) < sharedSpec.getMaxReplicas()) {
+					sharedSpec.starting.incrementAndGet();
+					return null;
+				}
+				if (sharedSpec.starting.get() == 0) {
+					throw new RuntimeException("No replica available for shared spec " + sharedSpec.specId);
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new RuntimeException("Timed out waiting for a replica of shared spec " + sharedSpec.specId);
+				}
+				try {
+					sharedSpec.replicaAvailable.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while waiting for a replica of shared spec " + sharedSpec.specId, e);
+				}
+			}
+		} finally {
+			sharedSpec.lock.unlock();
+		}
+	}
+
+	/**
+	 * Select the replica with the least active connections among the running replicas with a free seat.
+	 * If there is none and the maximum number of replicas has been reached, the least loaded running replica is overbooked.
+	 * Returns null if there is no running replica to use: a replica must be started, or awaited.
+	 */
+	private Replica selectReplica(SharedSpec sharedSpec) {
+		Comparator<Replica> load = Comparator.comparingInt((Replica r) -> r.connections.get()).thenComparingInt(r -> r.seats.get());
+		Replica leastLoaded = null;
+		Replica leastLoadedFree = null;
+		for (Replica replica: sharedSpec.replicas) {
+			if (replica.proxy.getStatus() != ProxyStatus.Up) continue;
+			if (leastLoaded == null || load.compare(replica, leastLoaded) < 0) leastLoaded = replica;
+			if (replica.seats.get() < sharedSpec.getSeats() && (leastLoadedFree == null || load.compare(replica, leastLoadedFree) < 0)) leastLoadedFree = replica;
+		}
+		if (leastLoadedFree != null) return leastLoadedFree;
+		if (getReplicaCount(sharedSpec) < sharedSpec.getMaxReplicas()) return null;
+		if (leastLoaded != null) log.warn(String.format("All replicas of shared spec %s are full, overbooking replica %s", sharedSpec.specId, leastLoaded.proxy.getId()));
+		return leastLoaded;
+	}
+
+	private void checkReplicas() {
+		try {
+			long now = System.currentTimeMillis();
+
+			Iterator<Map.Entry<String, Assignment>> it = assignments.entrySet().iterator();
+			while (it.hasNext()) {
+				Assignment assignment = it.next().getValue();
+				boolean expired = assignment.connections.get() <= 0 && now - assignment.lastSeen > sessionTimeout;
+				if (expired || assignment.replica.proxy.getStatus() != ProxyStatus.Up) {
+					it.remove();
+					assignment.replica.seats.decrementAndGet();
+				}
+			}
+
+			for (ProxySpec spec: specProvider.getSpecs()) {
+				SharedSpec sharedSpec = getSharedSpec(spec.getId());
+				if (sharedSpec != null) scale(sharedSpec);
+			}
+
+			// Specs that were removed, or are no longer shared, are scaled down to zero.
+			for (SharedSpec sharedSpec: sharedSpecs.values()) {
+				ShinyProxySpec spec = sharedSpec.getSpec();
+				if (spec == null || spec.getSharedSeats() <= 0) retire(sharedSpec);
+			}
+		} catch (Exception e) {
+			log.error("Error while checking shared proxies", e);
+		}
+	}
+
+	private void scale(SharedSpec sharedSpec) {
+		sharedSpec.replicas.removeIf(r -> r.proxy.getStatus() == ProxyStatus.Stopping || r.proxy.getStatus() == ProxyStatus.Stopped);
+
+		int assigned = 0;
+		for (Replica replica: sharedSpec.replicas) {
+			assigned += replica.seats.get();
+			// Replicas without users receive no traffic: prevent them from being reaped by the heartbeat service.
+			heartbeatService.heartbeatReceived(replica.proxy.getId());
+		}
+
+		// Keep at least one free seat, so that the next user does not have to wait for a replica to start.
+		int needed = (assigned + sharedSpec.getSeats()) / sharedSpec.getSeats();
+		int desired = Math.max(sharedSpec.getMinReplicas(), Math.min(needed, sharedSpec.getMaxReplicas()));
+
+		sharedSpec.lock.lock();
+		try {
+			int current = sharedSpec.replicas.size() + sharedSpec.starting.get();
+			for (int i = current; i < desired; i++) {
+				sharedSpec.starting.incrementAndGet();
+				scaleExecutor.submit(() -> startReplica(sharedSpec, false));
+			}
+			int surplus = current - desired;
+			for (Replica replica: sharedSpec.replicas) {
+				if (surplus <= 0) break;
+				if (replica.seats.get() > 0 || replica.connections.get() > 0) continue;
+				sharedSpec.replicas.remove(replica);
+				surplus--;
+				log.info(String.format("Stopping unused shared proxy [spec: %s] [id: %s]", sharedSpec.specId, replica.proxy.getId()));
+				proxyService.stopProxy(replica.proxy, true, true);
+			}
+		} finally {
+			sharedSpec.lock.unlock();
+		}
+	}
+
+	private void retire(SharedSpec sharedSpec) {
+		assignments.values().removeIf(assignment -> sharedSpec.replicas.contains(assignment.replica));
+		sharedSpec.lock.lock();
+		try {
+			for (Replica replica: sharedSpec.replicas) {
+				sharedSpec.replicas.remove(replica);
+				log.info(String.format("Stopping shared proxy of removed spec [spec: %s] [id: %s]", sharedSpec.specId, replica.proxy.getId()));
+				proxyService.stopProxy(replica.proxy, true, true);
+			}
+			// Replicas that are still starting are retired on a later check.
+			if (sharedSpec.starting.get() == 0) sharedSpecs.remove(sharedSpec.specId, sharedSpec);
+		} finally {
+			sharedSpec.lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of replicas of the spec that are running or starting.
+	 */
+	private static int getReplicaCount(SharedSpec sharedSpec) {
+		int count = sharedSpec.starting.get();
+		for (Replica replica: sharedSpec.replicas) {
+			if (replica.proxy.getStatus() != ProxyStatus.Stopping && replica.proxy.getStatus() != ProxyStatus.Stopped) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Start a replica of the shared spec. The caller must have incremented the starting counter of the spec.
+	 * If reserveSeat is true, a seat of the replica is taken before it becomes available to other users.
+	 */
+	private Replica startReplica(SharedSpec sharedSpec, boolean reserveSeat) {
+		SecurityContext previousContext = SecurityContextHolder.getContext();
+		try {
+			ProxySpec spec = specProvider.getSpec(sharedSpec.specId);
+			if (spec == null) return null;
+
+			SecurityContext sharedContext = new SecurityContextImpl(new UsernamePasswordAuthenticationToken(SHARED_USER_ID, null, Collections.emptyList()));
+			SecurityContextHolder.setContext(sharedContext);
+
+			ProxySpec resolvedSpec = proxyService.resolveProxySpec(spec, null, null);
+			Replica replica = new Replica(proxyService.startProxy(resolvedSpec, true));
+			if (reserveSeat) replica.seats.incrementAndGet();
+			sharedSpec.replicas.add(replica);
+			log.info(String.format("Started shared proxy [spec: %s] [id: %s] [replicas: %d]", sharedSpec.specId, replica.proxy.getId(), sharedSpec.replicas.size()));
+			return replica;
+		} catch (Exception e) {
+			log.error("Failed to start shared proxy for spec " + sharedSpec.specId, e);
+			return null;
+		} finally {
+			SecurityContextHolder.setContext(previousContext);
+			sharedSpec.lock.lock();
+			try {
+				sharedSpec.starting.decrementAndGet();
+				// Wake up the users that are waiting for a replica to become available.
+				sharedSpec.replicaAvailable.signalAll();
+			} finally {
+				sharedSpec.lock.unlock();
+			}
+		}
+	}
+
+	private static String getKey(String userId, String specId) {
+		return userId + "/" + specId;
+	}
+
+	private class SharedSpec {
+
+		private final String specId;
+		private final List<Replica> replicas = new CopyOnWriteArrayList<>();
+		private final AtomicInteger starting = new AtomicInteger();
+
+		// A lock rather than a monitor: launches wait here on virtual threads, which a monitor would pin to their carrier thread.
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition replicaAvailable = lock.newCondition();
+
+		public SharedSpec(String specId) {
+			this.specId = specId;
+		}
+
+		private ShinyProxySpec getSpec() {
+			return specProvider.getShinyProxySpec(specId);
+		}
+
+		public int getSeats() {
+			ShinyProxySpec spec = getSpec();
+			return (spec == null) ? 1 : Math.max(1, spec.getSharedSeats());
+		}
+
+		public int getMinReplicas() {
+			ShinyProxySpec spec = getSpec();
+			return (spec == null) ? 0 : Math.max(1, spec.getSharedMinReplicas());
+		}
+
+		public int getMaxReplicas() {
+			ShinyProxySpec spec = getSpec();
+			return (spec == null) ? 0 : Math.max(getMinReplicas(), spec.getSharedMaxReplicas());
+		}
+	}
+
+	private static class Replica {
+
+		private final Proxy proxy;
+		private final AtomicInteger seats = new AtomicInteger();
+		private final AtomicInteger connections = new AtomicInteger();
+
+		public Replica(Proxy proxy) {
+			this.proxy = proxy;
+		}
+	}
+
+	private static class Assignment {
+
+		private final Replica replica;
+		private final AtomicInteger connections = new AtomicInteger();
+		private volatile long lastSeen = System.currentTimeMillis();
+
+		public Assignment(Replica replica) {
+			this.replica = replica;
+		}
+	}
+
+	public static class SharedStats {
+
+		private final String specId;
+		private final int replicas;
+		private final int starting;
+		private final int seats;
+		private final int users;
+		private final int connections;
+
+		private SharedStats(SharedSpec sharedSpec) {
+			this.specId = sharedSpec.specId;
+			this.replicas = sharedSpec.replicas.size();
+			this.starting = sharedSpec.starting.get();
+			this.seats = replicas * sharedSpec.getSeats();
+			int users = 0;
+			int connections = 0;
+			for (Replica replica: sharedSpec.replicas) {
+				users += replica.seats.get();
+				connections += replica.connections.get();
+			}
+			this.users = users;
+			this.connections = connections;
+		}
+
+		public String getSpecId() {
+			return specId;
+		}
+
+		public int getReplicas() {
+			return replicas;
+		}
+
+		public int getStarting() {
+			return starting;
+		}
+
+		public int getSeats() {
+			return seats;
+		}
+
+		public int getUsers() {
+			return users;
+		}
+
+		public int getConnections() {
+			return connections;
+		}
+	}
+}
@@ -23,6 +23,10 @@ package eu.openanalytics.shinyproxy;
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
 
@@ -43,4 +47,25 @@ public class ShinyProxyConfiguration {
 		boolean enabled = Boolean.valueOf(environment.getProperty("proxy.heartbeat-enabled", "true"));
 		heartbeatService.setEnabled(enabled);
 	}
+	
+	/**
+	 * Handle requests on virtual threads if enabled, instead of on the worker pool of Undertow.
+	 */
+	@Bean
+	public WebServerFactoryCustomizer<UndertowServletWebServerFactory> requestExecutorCustomizer(ExecutorFactory executorFactory) {
+		return factory -> {
+			if (!executorFactory.isVirtual()) return;
+			factory.addDeploymentInfoCustomizers(deploymentInfo -> deploymentInfo.setExecutor(executorFactory.newExecutor("http-")));
+		};
+	}
+	
+	/**
+	 * The mail sender is only used to send issue reports: create it when the first report is sent instead of at startup.
+	 */
+	@Bean
+	public static BeanFactoryPostProcessor lazyMailSender() {
+		return beanFactory -> {
+			if (beanFactory.containsBeanDefinition("mailSender")) beanFactory.getBeanDefinition("mailSender").setLazyInit(true);
+		};
+	}
 }
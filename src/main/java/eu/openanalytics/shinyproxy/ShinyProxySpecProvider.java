@@ -58,7 +58,11 @@ import eu.openanalytics.containerproxy.spec.IProxySpecProvider;
 @ConfigurationProperties(prefix = "proxy")
 public class ShinyProxySpecProvider implements IProxySpecProvider {
 
-	private List<ProxySpec> specs = new ArrayList<>();
+	private volatile SpecRegistry registry = SpecRegistry.EMPTY;
+	
+	// Specs defined in the main configuration (application.yml), as opposed to specs loaded from a watched source.
+	private List<ProxySpec> staticSpecs = new ArrayList<>();
+	private Map<String, ShinyProxySpec> staticShinyProxySpecs = new HashMap<>();
 	
 	private static Environment environment;
 
@@ -69,22 +73,71 @@ public class ShinyProxySpecProvider implements IProxySpecProvider {
 	
 	@PostConstruct
 	public void afterPropertiesSet() {
-		this.specs.stream().collect(Collectors.groupingBy(ProxySpec::getId)).forEach((id, duplicateSpecs) -> {
+		validate(this.registry.getSpecs());
+	}
+	
+	private static void validate(List<ProxySpec> specs) {
+		specs.stream().collect(Collectors.groupingBy(ProxySpec::getId)).forEach((id, duplicateSpecs) -> {
 			if (duplicateSpecs.size() > 1) throw new IllegalArgumentException(String.format("Configuration error: spec with id '%s' is defined multiple times", id));
 		});
 	}
 	
+	/**
+	 * Returns the current snapshot of all specs.
+	 * Callers that need several lookups should use a single snapshot, so that they see a consistent set of specs.
+	 */
+	public SpecRegistry getRegistry() {
+		return registry;
+	}
+	
+	/**
+	 * Returns all specs. The returned list is immutable and is not copied on every call.
+	 */
 	public List<ProxySpec> getSpecs() {
-		return new ArrayList<>(specs);
+		return registry.getSpecs();
 	}
 	
 	public ProxySpec getSpec(String id) {
 		if (id == null || id.isEmpty()) return null;
-		return specs.stream().filter(s -> id.equals(s.getId())).findAny().orElse(null);
+		return registry.getSpec(id);
+	}
+	
+	/**
+	 * Returns the spec in its original 'ShinyProxy notation', which holds the settings
+	 * that are handled by ShinyProxy itself rather than by ContainerProxy.
+	 */
+	public ShinyProxySpec getShinyProxySpec(String id) {
+		if (id == null || id.isEmpty()) return null;
+		return registry.getShinyProxySpec(id);
+	}
+	
+	public synchronized void setSpecs(List<ShinyProxySpec> specs) {
+		this.staticSpecs = specs.stream().map(ShinyProxySpecProvider::convert).collect(Collectors.toList());
+		this.staticShinyProxySpecs = specs.stream().collect(Collectors.toMap(ShinyProxySpec::getId, s -> s, (s1, s2) -> s1));
+		this.registry = new SpecRegistry(staticSpecs, staticShinyProxySpecs, registry.getVersion() + 1);
 	}
 	
-	public void setSpecs(List<ShinyProxySpec> specs) {
-		this.specs = specs.stream().map(ShinyProxySpecProvider::convert).collect(Collectors.toList());
+	/**
+	 * Replace the specs that were loaded from a watched source, keeping the specs of the main configuration.
+	 * The specs are validated before they are published: if validation fails, the current specs remain in place.
+	 * 
+	 * @param shinyProxySpecs The loaded specs, in 'ShinyProxy notation'.
+	 * @param proxySpecs The same specs, converted using {@link #convert(ShinyProxySpec)}.
+	 * @return The registry that was replaced.
+	 */
+	public synchronized SpecRegistry setDynamicSpecs(List<ShinyProxySpec> shinyProxySpecs, List<ProxySpec> proxySpecs) {
+		List<ProxySpec> allSpecs = new ArrayList<>(staticSpecs);
+		allSpecs.addAll(proxySpecs);
+		validate(allSpecs);
+		
+		Map<String, ShinyProxySpec> allShinyProxySpecs = new HashMap<>(staticShinyProxySpecs);
+		for (ShinyProxySpec spec: shinyProxySpecs) {
+			allShinyProxySpecs.put(spec.getId(), spec);
+		}
+		
+		SpecRegistry previousRegistry = registry;
+		this.registry = new SpecRegistry(allSpecs, allShinyProxySpecs, previousRegistry.getVersion() + 1);
+		return previousRegistry;
 	}
 
 	private static String getPublicPath(String appName) {
@@ -92,7 +145,7 @@ public class ShinyProxySpecProvider implements IProxySpecProvider {
 		return contextPath + "app_direct/" + appName + "/";
 	}
 	
-	private static ProxySpec convert(ShinyProxySpec from) {
+	static ProxySpec convert(ShinyProxySpec from) {
 		ProxySpec to = new ProxySpec();
 		to.setId(from.getId());
 		to.setDisplayName(from.getDisplayName());
@@ -177,6 +230,15 @@ public class ShinyProxySpecProvider implements IProxySpecProvider {
 		
 		private int port;
 		private String[] accessGroups;
+		
+		private int minIdle;
+		private int maxIdle;
+		
+		private String[] assetCachePaths;
+		
+		private int sharedSeats;
+		private int sharedMinReplicas;
+		private int sharedMaxReplicas;
 
 		public String getId() {
 			return id;
@@ -353,5 +415,53 @@ public class ShinyProxySpecProvider implements IProxySpecProvider {
 		public List<String> getKubernetesAdditionalManifests() {
 			return kubernetesAdditionalManifests;
 		}
+
+		public int getMinIdle() {
+			return minIdle;
+		}
+
+		public void setMinIdle(int minIdle) {
+			this.minIdle = minIdle;
+		}
+
+		public int getMaxIdle() {
+			return maxIdle;
+		}
+
+		public void setMaxIdle(int maxIdle) {
+			this.maxIdle = maxIdle;
+		}
+
+		public String[] getAssetCachePaths() {
+			return assetCachePaths;
+		}
+
+		public void setAssetCachePaths(String[] assetCachePaths) {
+			this.assetCachePaths = assetCachePaths;
+		}
+
+		public int getSharedSeats() {
+			return sharedSeats;
+		}
+
+		public void setSharedSeats(int sharedSeats) {
+			this.sharedSeats = sharedSeats;
+		}
+
+		public int getSharedMinReplicas() {
+			return sharedMinReplicas;
+		}
+
+		public void setSharedMinReplicas(int sharedMinReplicas) {
+			this.sharedMinReplicas = sharedMinReplicas;
+		}
+
+		public int getSharedMaxReplicas() {
+			return sharedMaxReplicas;
+		}
+
+		public void setSharedMaxReplicas(int sharedMaxReplicas) {
+			this.sharedMaxReplicas = sharedMaxReplicas;
+		}
 	}
 }
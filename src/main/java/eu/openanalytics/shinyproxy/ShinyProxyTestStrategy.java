@@ -24,43 +24,97 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.IntPredicate;
 
 import javax.inject.Inject;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Primary;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
 import eu.openanalytics.containerproxy.backend.strategy.IProxyTestStrategy;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.shinyproxy.ProxyProbeEngine.ProbeResult;
+import eu.openanalytics.shinyproxy.launch.LaunchMetrics;
+import eu.openanalytics.shinyproxy.launch.LaunchPhase;
+import eu.openanalytics.shinyproxy.launch.LaunchPhaseEvent;
 
 /**
  * This component tests the responsiveness of Shiny containers by making an HTTP GET request to the container's published port (default 3838).
  * If this request does not receive a 200 (OK) response within a configured time limit, the container is considered to be unresponsive.
+ * 
+ * Plain HTTP targets are probed by the shared {@link ProxyProbeEngine}; other targets fall back to a blocking probe.
  */
 @Component
 @Primary
 public class ShinyProxyTestStrategy implements IProxyTestStrategy {
 
+	private static final long PROBE_TIMEOUT_MARGIN_MS = 5000;
+
 	private Logger log = LogManager.getLogger(ShinyProxyTestStrategy.class);
 	
 	@Inject
 	private Environment environment;
 	
+	@Inject
+	private ApplicationEventPublisher applicationEventPublisher;
+	
+	@Inject
+	private ProxyProbeEngine probeEngine;
+	
+	@Inject
+	private LaunchMetrics launchMetrics;
+	
 	@Override
 	public boolean testProxy(Proxy proxy) {
+		// The backend tests the proxy once its container has been created.
+		applicationEventPublisher.publishEvent(new LaunchPhaseEvent(this, proxy, LaunchPhase.ContainerCreated));
 
 		int totalWaitMs = Integer.parseInt(environment.getProperty("proxy.container-wait-time", "20000"));
-		int waitMs = Math.min(2000, totalWaitMs);
-		int maxTries = totalWaitMs / waitMs;
-		int timeoutMs = Integer.parseInt(environment.getProperty("proxy.container-wait-timeout", "5000"));
 
 		if (proxy.getTargets().isEmpty()) return false;
 		URI targetURI = proxy.getTargets().values().iterator().next();
 
+		boolean passed;
+		if ("http".equalsIgnoreCase(targetURI.getScheme())) {
+			passed = awaitProbe(proxy, targetURI, totalWaitMs);
+		} else {
+			passed = testBlocking(targetURI, totalWaitMs);
+		}
+		
+		if (passed) applicationEventPublisher.publishEvent(new LaunchPhaseEvent(this, proxy, LaunchPhase.ProbePassed));
+		return passed;
+	}
+
+	private boolean awaitProbe(Proxy proxy, URI targetURI, int totalWaitMs) {
+		try {
+			// The engine completes the probe by its deadline; the margin only guards against a probe that is never completed.
+			ProbeResult result = probeEngine.probe(targetURI, totalWaitMs).get(totalWaitMs + PROBE_TIMEOUT_MARGIN_MS, TimeUnit.MILLISECONDS);
+			if (proxy.getSpec() != null) launchMetrics.recordProbe(proxy.getSpec().getId(), result);
+			return result.isSuccess();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			log.warn("Failed to probe container: " + targetURI, e);
+			return false;
+		} catch (TimeoutException e) {
+			log.warn("Timed out waiting for the probe of container: " + targetURI);
+			return false;
+		}
+	}
+
+	private boolean testBlocking(URI targetURI, int totalWaitMs) {
+		int waitMs = Math.min(2000, totalWaitMs);
+		int maxTries = totalWaitMs / waitMs;
+		int timeoutMs = Integer.parseInt(environment.getProperty("proxy.container-wait-timeout", "5000"));
+
 		return retry(i -> {
 			try {
 				URL testURL = new URL(targetURI.toString());
@@ -0,0 +1,169 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+
+/**
+ * An immutable snapshot of all configured specs, indexed by id and by access group.
+ * A new snapshot is built whenever the specs change, and published as a single unit,
+ * so readers never observe a partially updated set of specs.
+ */
+public class SpecRegistry {
+
+	public static final SpecRegistry EMPTY = new SpecRegistry(Collections.emptyList(), Collections.emptyMap(), 0);
+
+	private final long version;
+	private final List<ProxySpec> specs;
+	private final Map<String, ProxySpec> specsById;
+	private final Map<String, ShinyProxySpec> shinyProxySpecsById;
+	private final Map<String, Integer> specIndices;
+	private final List<ProxySpec> unrestrictedSpecs;
+	private final Map<String, List<ProxySpec>> specsByGroup;
+	private final Map<String, Set<String>> groupsBySpec;
+
+	public SpecRegistry(List<ProxySpec> specs, Map<String, ShinyProxySpec> shinyProxySpecs, long version) {
+		this.version = version;
+		this.specs = Collections.unmodifiableList(new ArrayList<>(specs));
+		this.shinyProxySpecsById = Collections.unmodifiableMap(new HashMap<>(shinyProxySpecs));
+
+		Map<String, ProxySpec> byId = new HashMap<>();
+		Map<String, Integer> indices = new HashMap<>();
+		List<ProxySpec> unrestricted = new ArrayList<>();
+		Map<String, List<ProxySpec>> byGroup = new HashMap<>();
+		Map<String, Set<String>> bySpec = new HashMap<>();
+
+		for (int i = 0; i < this.specs.size(); i++) {
+			ProxySpec spec = this.specs.get(i);
+			byId.putIfAbsent(spec.getId(), spec);
+			indices.putIfAbsent(spec.getId(), i);
+
+			String[] groups = (spec.getAccessControl() == null) ? null : spec.getAccessControl().getGroups();
+			if (groups == null || groups.length == 0) {
+				unrestricted.add(spec);
+				continue;
+			}
+			Set<String> specGroups = new LinkedHashSet<>();
+			for (String group: groups) {
+				specGroups.add(group.toUpperCase());
+			}
+			for (String group: specGroups) {
+				byGroup.computeIfAbsent(group, g -> new ArrayList<>()).add(spec);
+			}
+			bySpec.put(spec.getId(), Collections.unmodifiableSet(specGroups));
+		}
+
+		byGroup.replaceAll((group, groupSpecs) -> Collections.unmodifiableList(groupSpecs));
+		this.specsById = Collections.unmodifiableMap(byId);
+		this.specIndices = indices;
+		this.unrestrictedSpecs = Collections.unmodifiableList(unrestricted);
+		this.specsByGroup = Collections.unmodifiableMap(byGroup);
+		this.groupsBySpec = Collections.unmodifiableMap(bySpec);
+	}
+
+	/**
+	 * A number that increases every time a new snapshot is published.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public List<ProxySpec> getSpecs() {
+		return specs;
+	}
+
+	public ProxySpec getSpec(String id) {
+		if (id == null) return null;
+		return specsById.get(id);
+	}
+
+	public ShinyProxySpec getShinyProxySpec(String id) {
+		if (id == null) return null;
+		return shinyProxySpecsById.get(id);
+	}
+
+	/**
+	 * Returns the specs that do not restrict access to any group.
+	 */
+	public List<ProxySpec> getUnrestrictedSpecs() {
+		return unrestrictedSpecs;
+	}
+
+	/**
+	 * Returns all (upper-cased) groups that restrict access to at least one spec.
+	 */
+	public Set<String> getGroups() {
+		return specsByGroup.keySet();
+	}
+
+	/**
+	 * Returns the specs that can be accessed by members of the given group (case-insensitive), excluding unrestricted specs.
+	 */
+	public List<ProxySpec> getSpecsForGroup(String group) {
+		if (group == null) return Collections.emptyList();
+		return specsByGroup.getOrDefault(group.toUpperCase(), Collections.emptyList());
+	}
+
+	/**
+	 * Returns the upper-cased groups that may access the given spec, or null if access to the spec is not restricted.
+	 */
+	public Set<String> getAllowedGroups(String specId) {
+		if (specId == null) return null;
+		return groupsBySpec.get(specId);
+	}
+
+	/**
+	 * Returns the specs that can be accessed by a member of the given groups (upper-cased), in configuration order.
+	 */
+	public List<ProxySpec> getAccessibleSpecs(Collection<String> groups) {
+		if (groups == null || groups.isEmpty() || groupsBySpec.isEmpty()) return unrestrictedSpecs;
+
+		boolean[] accessible = new boolean[specs.size()];
+		for (ProxySpec spec: unrestrictedSpecs) {
+			accessible[specIndices.get(spec.getId())] = true;
+		}
+		for (String group: groups) {
+			for (ProxySpec spec: specsByGroup.getOrDefault(group, Collections.emptyList())) {
+				accessible[specIndices.get(spec.getId())] = true;
+			}
+		}
+
+		List<ProxySpec> result = new ArrayList<>();
+		for (int i = 0; i < accessible.length; i++) {
+			if (accessible[i]) result.add(specs.get(i));
+		}
+		return result;
+	}
+
+	public int size() {
+		return specs.size();
+	}
+}
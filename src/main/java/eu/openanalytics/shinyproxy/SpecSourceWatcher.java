@@ -0,0 +1,331 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySources;
+import org.springframework.boot.env.YamlPropertySourceLoader;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.env.EnumerablePropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+
+/**
+ * Loads additional specs from a watched source, and reloads them whenever the source changes,
+ * without restarting ShinyProxy.
+ * 
+ * The source ('proxy.specs-location') is either a single YAML file, or a directory of YAML files
+ * (e.g. one file per app). Each file uses the same notation as the main configuration, i.e. a list of specs under 'proxy.specs'.
+ * Only files that changed since the previous reload are parsed, and only specs whose own properties changed are converted again
+ * and reported as changed: editing one spec in a file with several specs leaves the other specs untouched.
+ * Running proxies are not affected by a reload.
+ */
+@Component
+public class SpecSourceWatcher {
+
+	private final Logger log = LogManager.getLogger(SpecSourceWatcher.class);
+
+	private Path sourcePath;
+	private Map<Path, SourceFile> sourceFiles = new HashMap<>();
+	private volatile ReloadResult lastReload;
+
+	private WatchService watchService;
+	private Thread watchThread;
+
+	@Inject
+	private ShinyProxySpecProvider specProvider;
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private ApplicationEventPublisher applicationEventPublisher;
+
+	@PostConstruct
+	public void init() throws IOException {
+		String location = environment.getProperty("proxy.specs-location");
+		if (location == null || location.isEmpty()) return;
+		sourcePath = Paths.get(location).toAbsolutePath();
+
+		// A broken source at startup is a configuration error, just like a broken application.yml.
+		reload();
+
+		long debounceMs = Long.parseLong(environment.getProperty("proxy.specs-reload-delay", "500"));
+		Path watchedDir = Files.isDirectory(sourcePath) ? sourcePath : sourcePath.getParent();
+		watchService = FileSystems.getDefault().newWatchService();
+		watchedDir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+		watchThread = new Thread(() -> watch(debounceMs), "spec-source-watcher");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	@PreDestroy
+	public void shutdown() throws IOException {
+		if (watchService != null) watchService.close();
+	}
+
+	public ReloadResult getLastReload() {
+		return lastReload;
+	}
+
+	/**
+	 * Reload the specs from the source, publishing them if they are valid.
+	 */
+	public synchronized ReloadResult reload() throws IOException {
+		long startTime = System.currentTimeMillis();
+
+		Map<String, SpecEntry> previousSpecs = new HashMap<>();
+		for (SourceFile sourceFile: sourceFiles.values()) {
+			for (SpecEntry entry: sourceFile.specs) previousSpecs.put(entry.shinyProxySpec.getId(), entry);
+		}
+
+		Map<Path, SourceFile> newSourceFiles = new LinkedHashMap<>();
+		for (Path path: listSourceFiles()) {
+			SourceFile previous = sourceFiles.get(path);
+			long lastModified = Files.getLastModifiedTime(path).toMillis();
+			long size = Files.size(path);
+			if (previous != null && previous.lastModified == lastModified && previous.size == size) {
+				newSourceFiles.put(path, previous);
+				continue;
+			}
+
+			byte[] content = Files.readAllBytes(path);
+			String hash = DigestUtils.md5DigestAsHex(content);
+			if (previous != null && previous.hash.equals(hash)) {
+				newSourceFiles.put(path, new SourceFile(lastModified, size, hash, previous.specs));
+				continue;
+			}
+
+			newSourceFiles.put(path, new SourceFile(lastModified, size, hash, parse(path, content, previousSpecs)));
+		}
+
+		List<ShinyProxySpec> shinyProxySpecs = new ArrayList<>();
+		List<ProxySpec> proxySpecs = new ArrayList<>();
+		for (SourceFile sourceFile: newSourceFiles.values()) {
+			for (SpecEntry entry: sourceFile.specs) {
+				shinyProxySpecs.add(entry.shinyProxySpec);
+				proxySpecs.add(entry.proxySpec);
+			}
+		}
+
+		SpecRegistry previousRegistry = specProvider.setDynamicSpecs(shinyProxySpecs, proxySpecs);
+		SpecRegistry newRegistry = specProvider.getRegistry();
+		sourceFiles = newSourceFiles;
+
+		ReloadResult result = new ReloadResult(startTime, System.currentTimeMillis() - startTime, previousRegistry, newRegistry);
+		if (result.isEmpty() && lastReload != null) return result;
+
+		lastReload = result;
+		log.info(String.format("Reloaded specs from %s in %d ms [added: %s] [changed: %s] [removed: %s]",
+				sourcePath, result.getDurationMs(), result.getAddedSpecs(), result.getChangedSpecs(), result.getRemovedSpecs()));
+		applicationEventPublisher.publishEvent(new SpecsReloadedEvent(this, result.getAddedSpecs(), result.getChangedSpecs(), result.getRemovedSpecs(), result.getDurationMs()));
+		return result;
+	}
+
+	private void watch(long debounceMs) {
+		while (true) {
+			try {
+				WatchKey key = watchService.take();
+				// Editors often write a file in several steps: wait for the changes to settle.
+				Thread.sleep(debounceMs);
+				do {
+					key.pollEvents();
+					key.reset();
+				} while ((key = watchService.poll()) != null);
+				reload();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			} catch (Exception e) {
+				log.error("Failed to reload specs from " + sourcePath + ", keeping the current specs", e);
+			}
+		}
+	}
+
+	private List<Path> listSourceFiles() throws IOException {
+		if (!Files.isDirectory(sourcePath)) {
+			return Files.exists(sourcePath) ? Collections.singletonList(sourcePath) : Collections.emptyList();
+		}
+		try (Stream<Path> paths = Files.list(sourcePath)) {
+			return paths
+					.filter(p -> p.getFileName().toString().endsWith(".yml") || p.getFileName().toString().endsWith(".yaml"))
+					.filter(Files::isRegularFile)
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Parse the specs of a file. A spec whose properties are the same as those of the previously loaded spec with that id
+	 * keeps the previous instances, so that it is neither converted again nor reported as changed.
+	 */
+	private static List<SpecEntry> parse(Path path, byte[] content, Map<String, SpecEntry> previousSpecs) throws IOException {
+		List<PropertySource<?>> sources = new YamlPropertySourceLoader().load(path.toString(), new ByteArrayResource(content, path.toString()));
+		Binder binder = new Binder(ConfigurationPropertySources.from(sources));
+		List<ShinyProxySpec> specs = binder.bind("proxy.specs", Bindable.listOf(ShinyProxySpec.class)).orElse(Collections.emptyList());
+
+		List<SpecEntry> entries = new ArrayList<>();
+		for (int i = 0; i < specs.size(); i++) {
+			ShinyProxySpec spec = specs.get(i);
+			if (spec.getId() == null || spec.getId().isEmpty()) throw new IllegalArgumentException(String.format("Configuration error: spec without id in %s", path));
+			String hash = hashSpec(sources, i);
+			SpecEntry previous = previousSpecs.get(spec.getId());
+			if (previous != null && previous.hash.equals(hash)) {
+				entries.add(previous);
+			} else {
+				entries.add(new SpecEntry(hash, spec, ShinyProxySpecProvider.convert(spec)));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Hash the properties of the spec at the given index, independent of its position in the file.
+	 */
+	private static String hashSpec(List<PropertySource<?>> sources, int index) {
+		String prefix = "proxy.specs[" + index + "]";
+		Map<String, String> properties = new TreeMap<>();
+		for (PropertySource<?> source: sources) {
+			if (!(source instanceof EnumerablePropertySource)) continue;
+			for (String name: ((EnumerablePropertySource<?>) source).getPropertyNames()) {
+				// As when binding, the first document that defines a property wins.
+				if (name.startsWith(prefix + ".") || name.startsWith(prefix + "[")) {
+					properties.putIfAbsent(name.substring(prefix.length()), String.valueOf(source.getProperty(name)));
+				}
+			}
+		}
+		return DigestUtils.md5DigestAsHex(properties.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static class SourceFile {
+
+		private final long lastModified;
+		private final long size;
+		private final String hash;
+		private final List<SpecEntry> specs;
+
+		public SourceFile(long lastModified, long size, String hash, List<SpecEntry> specs) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.hash = hash;
+			this.specs = specs;
+		}
+	}
+
+	private static class SpecEntry {
+
+		private final String hash;
+		private final ShinyProxySpec shinyProxySpec;
+		private final ProxySpec proxySpec;
+
+		public SpecEntry(String hash, ShinyProxySpec shinyProxySpec, ProxySpec proxySpec) {
+			this.hash = hash;
+			this.shinyProxySpec = shinyProxySpec;
+			this.proxySpec = proxySpec;
+		}
+	}
+
+	public static class ReloadResult {
+
+		private final long timestamp;
+		private final long durationMs;
+		private final List<String> addedSpecs = new ArrayList<>();
+		private final List<String> changedSpecs = new ArrayList<>();
+		private final List<String> removedSpecs = new ArrayList<>();
+
+		private ReloadResult(long timestamp, long durationMs, SpecRegistry previousRegistry, SpecRegistry newRegistry) {
+			this.timestamp = timestamp;
+			this.durationMs = durationMs;
+			// Specs whose properties did not change keep their instances across reloads (see parse).
+			for (ProxySpec spec: newRegistry.getSpecs()) {
+				if (previousRegistry.getSpec(spec.getId()) == null) addedSpecs.add(spec.getId());
+				else if (previousRegistry.getShinyProxySpec(spec.getId()) != newRegistry.getShinyProxySpec(spec.getId())) changedSpecs.add(spec.getId());
+			}
+			for (ProxySpec spec: previousRegistry.getSpecs()) {
+				if (newRegistry.getSpec(spec.getId()) == null) removedSpecs.add(spec.getId());
+			}
+		}
+
+		public boolean isEmpty() {
+			return addedSpecs.isEmpty() && changedSpecs.isEmpty() && removedSpecs.isEmpty();
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public Date getDate() {
+			return new Date(timestamp);
+		}
+
+		public long getDurationMs() {
+			return durationMs;
+		}
+
+		public List<String> getAddedSpecs() {
+			return addedSpecs;
+		}
+
+		public List<String> getChangedSpecs() {
+			return changedSpecs;
+		}
+
+		public List<String> getRemovedSpecs() {
+			return removedSpecs;
+		}
+	}
+}
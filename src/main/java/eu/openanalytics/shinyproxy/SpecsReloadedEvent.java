@@ -0,0 +1,62 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.util.List;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published after a new set of specs has been loaded from a watched spec source.
+ */
+public class SpecsReloadedEvent extends ApplicationEvent {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<String> addedSpecs;
+	private final List<String> changedSpecs;
+	private final List<String> removedSpecs;
+	private final long durationMs;
+
+	public SpecsReloadedEvent(Object source, List<String> addedSpecs, List<String> changedSpecs, List<String> removedSpecs, long durationMs) {
+		super(source);
+		this.addedSpecs = addedSpecs;
+		this.changedSpecs = changedSpecs;
+		this.removedSpecs = removedSpecs;
+		this.durationMs = durationMs;
+	}
+
+	public List<String> getAddedSpecs() {
+		return addedSpecs;
+	}
+
+	public List<String> getChangedSpecs() {
+		return changedSpecs;
+	}
+
+	public List<String> getRemovedSpecs() {
+		return removedSpecs;
+	}
+
+	public long getDurationMs() {
+		return durationMs;
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.containerproxy.util.SessionHelper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Measures the startup time of ShinyProxy: from the start of the JVM until the application is ready,
+ * and until the first page has been served.
+ * 
+ * When proxy.fast-start.training is set, ShinyProxy requests its own main page once it is ready, and exits afterwards.
+ * The fast-start build profile uses this to record the classes that are needed to serve the first page in a class-data-sharing archive.
+ */
+@Component
+public class StartupMonitor {
+
+	private final Logger log = LogManager.getLogger(StartupMonitor.class);
+
+	private volatile boolean firstPageServed;
+
+	@Inject
+	private MeterRegistry registry;
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private ApplicationContext applicationContext;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void onReady() {
+		record("ready");
+		if (Boolean.valueOf(environment.getProperty("proxy.fast-start.training", "false"))) {
+			new Thread(this::train, "fast-start-training").start();
+		}
+	}
+
+	/**
+	 * Called whenever the main page is served. Only the first call is recorded.
+	 */
+	public void onPageServed() {
+		if (firstPageServed) return;
+		synchronized (this) {
+			if (firstPageServed) return;
+			firstPageServed = true;
+		}
+		record("first-page");
+	}
+
+	private void record(String stage) {
+		long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+		log.info(String.format("Startup stage %s reached after %d ms", stage, uptime));
+		Timer.builder("shinyproxy.startup")
+			.description("Time from the start of the JVM until a startup stage is reached")
+			.tag("stage", stage)
+			.register(registry)
+			.record(uptime, TimeUnit.MILLISECONDS);
+	}
+
+	private void train() {
+		int exitCode = 0;
+		try {
+			String port = environment.getProperty("local.server.port", environment.getProperty("server.port", "8080"));
+			URL url = new URL("http://localhost:" + port + SessionHelper.getContextPath(environment, true));
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			int status = connection.getResponseCode();
+			connection.disconnect();
+			if (status >= 400) throw new IllegalStateException("Main page returned status " + status);
+			log.info("Fast-start training run completed, exiting");
+		} catch (Exception e) {
+			log.error("Fast-start training run failed", e);
+			exitCode = 1;
+		}
+		int code = exitCode;
+		System.exit(SpringApplication.exit(applicationContext, () -> code));
+	}
+}
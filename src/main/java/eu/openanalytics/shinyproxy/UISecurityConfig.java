@@ -20,17 +20,14 @@
  */
 package eu.openanalytics.shinyproxy;
 
-import java.util.Arrays;
-
 import javax.inject.Inject;
 
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.web.access.intercept.FilterSecurityInterceptor;
 import org.springframework.stereotype.Component;
 
 import eu.openanalytics.containerproxy.auth.IAuthenticationBackend;
-import eu.openanalytics.containerproxy.model.spec.ProxySpec;
 import eu.openanalytics.containerproxy.security.ICustomSecurityConfig;
-import eu.openanalytics.containerproxy.service.ProxyService;
 import eu.openanalytics.containerproxy.service.UserService;
 
 @Component
@@ -43,25 +40,20 @@ public class UISecurityConfig implements ICustomSecurityConfig {
 	private UserService userService;
 	
 	@Inject
-	private ProxyService proxyService;
+	private ShinyProxySpecProvider specProvider;
 	
 	@Override
 	public void apply(HttpSecurity http) throws Exception {
 		if (auth.hasAuthorization()) {
 			
 			// Limit access to the app pages according to spec permissions
-			for (ProxySpec spec: proxyService.getProxySpecs(null, true)) {
-				if (spec.getAccessControl() == null) continue;
-				
-				String[] groups = spec.getAccessControl().getGroups();
-				if (groups == null || groups.length == 0) continue;
-				
-				String[] appGroups = Arrays.stream(groups).map(s -> s.toUpperCase()).toArray(i -> new String[i]);
-				http.authorizeRequests().antMatchers("/app/" + spec.getId()).hasAnyRole(appGroups);
-			}
+			http.addFilterAfter(new AppAccessFilter(specProvider), FilterSecurityInterceptor.class);
+
+			// Logos are served under content-addressed URLs, and are also shown on pages that do not require a login
+			http.authorizeRequests().antMatchers("/logo/**").permitAll();
 
 			// Limit access to the admin pages
-			http.authorizeRequests().antMatchers("/admin").hasAnyRole(userService.getAdminGroups());
+			http.authorizeRequests().antMatchers("/admin", "/api/admin/**").hasAnyRole(userService.getAdminGroups());
 		}
 	}
 }
\ No newline at end of file
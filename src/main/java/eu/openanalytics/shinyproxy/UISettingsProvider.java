@@ -0,0 +1,120 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.containerproxy.auth.IAuthenticationBackend;
+
+/**
+ * Holds the UI settings that are the same for every rendered page, so that they are not looked up
+ * in the environment (which walks all property sources) on every page render.
+ * The settings are bound once at startup: they come from the main configuration, which is not reloaded
+ * (a specs reload only replaces the specs), so changing them requires a restart.
+ */
+@Component
+public class UISettingsProvider {
+
+	private volatile UISettings settings;
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private IAuthenticationBackend authenticationBackend;
+
+	@PostConstruct
+	public void refresh() {
+		settings = new UISettings(environment, authenticationBackend);
+	}
+
+	public UISettings getSettings() {
+		return settings;
+	}
+
+	public static class UISettings {
+
+		private final String title;
+		private final String logoURL;
+		private final boolean hideNavbar;
+		private final String landingPage;
+		private final String supportAddress;
+		private final String logoutUrl;
+
+		private final String bootstrapCss = "/webjars/bootstrap/3.4.1/css/bootstrap.min.css";
+		private final String bootstrapJs = "/webjars/bootstrap/3.4.1/js/bootstrap.min.js";
+		private final String jqueryJs = "/webjars/jquery/3.5.0/jquery.min.js";
+		private final String cookieJs = "/webjars/js-cookie/2.2.1/js.cookie.min.js";
+
+		private UISettings(Environment environment, IAuthenticationBackend authenticationBackend) {
+			title = environment.getProperty("proxy.title", "ShinyProxy");
+			logoURL = environment.getProperty("proxy.logo-url");
+			hideNavbar = Boolean.parseBoolean(environment.getProperty("proxy.hide-navbar"));
+			landingPage = environment.getProperty("proxy.landing-page", "/");
+			supportAddress = environment.getProperty("proxy.support.mail-to-address");
+			logoutUrl = authenticationBackend.getLogoutURL();
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public String getLogoURL() {
+			return logoURL;
+		}
+
+		public boolean isHideNavbar() {
+			return hideNavbar;
+		}
+
+		public String getLandingPage() {
+			return landingPage;
+		}
+
+		public String getSupportAddress() {
+			return supportAddress;
+		}
+
+		public String getLogoutUrl() {
+			return logoutUrl;
+		}
+
+		public String getBootstrapCss() {
+			return bootstrapCss;
+		}
+
+		public String getBootstrapJs() {
+			return bootstrapJs;
+		}
+
+		public String getJqueryJs() {
+			return jqueryJs;
+		}
+
+		public String getCookieJs() {
+			return cookieJs;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.controllers;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+
+import org.springframework.context.annotation.Lazy;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.shinyproxy.AdminEventStream;
+import eu.openanalytics.shinyproxy.ProxyActivityTracker;
+import eu.openanalytics.shinyproxy.ProxyActivityTracker.ActivitySummary;
+
+/**
+ * The API behind the admin page: a paged, filtered and sorted list of the active proxies,
+ * and a stream of proxy lifecycle changes (see {@link AdminEventStream}).
+ */
+@Lazy
+@Controller
+public class AdminApiController extends BaseController {
+
+	private static final int MAX_PAGE_SIZE = 500;
+
+	private static final Map<String, Comparator<Proxy>> SORT_FIELDS = new HashMap<>();
+	static {
+		SORT_FIELDS.put("id", Comparator.comparing(Proxy::getId, Comparator.nullsFirst(Comparator.naturalOrder())));
+		SORT_FIELDS.put("user", Comparator.comparing(Proxy::getUserId, Comparator.nullsFirst(Comparator.naturalOrder())));
+		SORT_FIELDS.put("spec", Comparator.comparing(p -> p.getSpec().getId()));
+		SORT_FIELDS.put("status", Comparator.comparing(Proxy::getStatus));
+		SORT_FIELDS.put("startup", Comparator.comparingLong(Proxy::getStartupTimestamp));
+	}
+
+	@Inject
+	private AdminEventStream adminEventStream;
+
+	@Inject
+	private ProxyActivityTracker activityTracker;
+
+	@RequestMapping(value="/api/admin/proxies", method=RequestMethod.GET, produces=MediaType.APPLICATION_JSON_VALUE)
+	@ResponseBody
+	public Map<String, Object> getProxies(
+			@RequestParam(value="page", defaultValue="0") int page,
+			@RequestParam(value="size", defaultValue="50") int size,
+			@RequestParam(value="spec", required=false) String spec,
+			@RequestParam(value="user", required=false) String user,
+			@RequestParam(value="status", required=false) ProxyStatus status,
+			@RequestParam(value="sort", defaultValue="startup") String sort,
+			@RequestParam(value="order", defaultValue="desc") String order) {
+
+		if (page < 0) throw new IllegalArgumentException("Invalid page: " + page);
+		if (size < 1 || size > MAX_PAGE_SIZE) throw new IllegalArgumentException("Invalid page size: " + size);
+		Comparator<Proxy> comparator = SORT_FIELDS.get(sort);
+		if (comparator == null) throw new IllegalArgumentException("Invalid sort field: " + sort);
+		if (order.equalsIgnoreCase("desc")) comparator = comparator.reversed();
+
+		Predicate<Proxy> filter = p -> p.getSpec() != null;
+		if (spec != null && !spec.isEmpty()) filter = filter.and(contains(p -> p.getSpec().getId(), spec));
+		if (user != null && !user.isEmpty()) filter = filter.and(contains(Proxy::getUserId, user));
+		if (status != null) filter = filter.and(p -> p.getStatus() == status);
+
+		List<Proxy> matches = proxyService.getProxies(filter, false);
+		List<Map<String, Object>> proxies = matches.stream()
+				.sorted(comparator)
+				.skip((long) page * size)
+				.limit(size)
+				.map(this::toMap)
+				.collect(Collectors.toList());
+
+		Map<String, Object> response = new HashMap<>();
+		response.put("page", page);
+		response.put("size", size);
+		response.put("total", matches.size());
+		response.put("proxies", proxies);
+		response.put("activityWindow", activityTracker.getWindowMinutes());
+		// Lets the page compute uptimes without depending on the clock of the browser.
+		response.put("serverTime", System.currentTimeMillis());
+		return response;
+	}
+
+	@RequestMapping(value="/api/admin/proxies/events", method=RequestMethod.GET, produces=MediaType.TEXT_EVENT_STREAM_VALUE)
+	@ResponseBody
+	public SseEmitter getProxyEvents() {
+		return adminEventStream.subscribe();
+	}
+
+	private Map<String, Object> toMap(Proxy proxy) {
+		Map<String, Object> map = AdminEventStream.toMap(proxy);
+		ActivitySummary activity = activityTracker.getActivity(proxy.getId());
+		if (activity != null) {
+			map.put("requests", activity.getRequests());
+			map.put("bytes", activity.getBytes());
+			map.put("websockets", activity.getOpenWebSockets());
+			map.put("lastActivity", activity.getLastSeen());
+		}
+		return map;
+	}
+
+	private static Predicate<Proxy> contains(Function<Proxy, String> field, String value) {
+		String lowerValue = value.toLowerCase();
+		return p -> {
+			String fieldValue = field.apply(p);
+			return fieldValue != null && fieldValue.toLowerCase().contains(lowerValue);
+		};
+	}
+}
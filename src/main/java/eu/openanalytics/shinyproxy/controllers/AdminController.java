@@ -20,39 +20,44 @@
  */
 package eu.openanalytics.shinyproxy.controllers;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import javax.servlet.http.HttpServletRequest;
 
+import javax.inject.Inject;
+
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
 
-import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.shinyproxy.ProxyPoolService;
+import eu.openanalytics.shinyproxy.SharedProxyService;
+import eu.openanalytics.shinyproxy.SpecSourceWatcher;
+import eu.openanalytics.shinyproxy.image.ImagePrePuller;
 
+@Lazy
 @Controller
 public class AdminController extends BaseController {
 
+	@Inject
+	private ProxyPoolService poolService;
+
+	@Inject
+	private SharedProxyService sharedProxyService;
+
+	@Inject
+	private SpecSourceWatcher specSourceWatcher;
+
+	@Inject
+	private ImagePrePuller imagePrePuller;
+
 	@RequestMapping("/admin")
 	private String admin(ModelMap map, HttpServletRequest request) {
 		prepareMap(map, request);
 		
-		List<Proxy> proxies = proxyService.getProxies(null, false);
-		Map<String, String> proxyUptimes = new HashMap<>();
-		for (Proxy proxy: proxies) {
-			long uptimeSec = 0;
-			// if the proxy hasn't started up yet, the uptime should be zero
-			if (proxy.getStartupTimestamp() > 0) {
-				uptimeSec = (System.currentTimeMillis() - proxy.getStartupTimestamp())/1000;
-			}
-			String uptime = String.format("%d:%02d:%02d", uptimeSec/3600, (uptimeSec%3600)/60, uptimeSec%60);
-			proxyUptimes.put(proxy.getId(), uptime);
-		}
-		
-		map.put("proxies", proxies);
-		map.put("proxyUptimes", proxyUptimes);
+		map.put("poolStats", poolService.getPoolStats());
+		map.put("sharedStats", sharedProxyService.getSharedStats());
+		map.put("specReload", specSourceWatcher.getLastReload());
+		map.put("imageStats", imagePrePuller.getImageStats());
 		
 		return "admin";
 	}
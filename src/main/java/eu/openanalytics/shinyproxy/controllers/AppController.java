@@ -24,12 +24,22 @@ import eu.openanalytics.containerproxy.model.runtime.Proxy;
 import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
 import eu.openanalytics.containerproxy.model.spec.ProxySpec;
 import eu.openanalytics.containerproxy.util.ProxyMappingManager;
-import eu.openanalytics.containerproxy.util.Retrying;
+import eu.openanalytics.shinyproxy.AppRoute;
+import eu.openanalytics.shinyproxy.ProxyActivityTracker;
+import eu.openanalytics.shinyproxy.launch.LaunchMetrics;
+import eu.openanalytics.shinyproxy.launch.ProxyLaunch;
+import eu.openanalytics.shinyproxy.launch.ProxyLaunchService;
+import eu.openanalytics.shinyproxy.upstream.AssetCache;
+import eu.openanalytics.shinyproxy.upstream.UpstreamClient;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.AccessDeniedException;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import javax.inject.Inject;
@@ -37,6 +47,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
 @Controller
 public class AppController extends BaseController {
@@ -44,15 +55,31 @@ public class AppController extends BaseController {
 	@Inject
 	private ProxyMappingManager mappingManager;
 	
+	@Inject
+	private ProxyLaunchService launchService;
+	
+	@Inject
+	private LaunchMetrics launchMetrics;
+	
+	@Inject
+	private UpstreamClient upstreamClient;
+	
+	@Inject
+	private AssetCache assetCache;
+
+	@Inject
+	private ProxyActivityTracker activityTracker;
+	
 	@RequestMapping(value="/app/*", method=RequestMethod.GET)
 	public String app(ModelMap map, HttpServletRequest request) {
 		prepareMap(map, request);
 		
+		// Only embed the container if it is up: otherwise the page launches it and follows its progress.
 		Proxy proxy = findUserProxy(request);
-		awaitReady(proxy);
+		boolean isUp = proxy != null && proxy.getStatus() == ProxyStatus.Up;
 
 		map.put("appTitle", getAppTitle(request));
-		map.put("container", (proxy == null) ? "" : buildContainerPath(request));
+		map.put("container", isUp ? buildContainerPath(request) : "");
 		
 		return "app";
 	}
@@ -60,25 +87,36 @@ public class AppController extends BaseController {
 	@RequestMapping(value="/app/*", method=RequestMethod.POST)
 	@ResponseBody
 	public Map<String,String> startApp(HttpServletRequest request) {
-		Proxy proxy = getOrStart(request);
-		String containerPath = buildContainerPath(request);
-		
 		Map<String,String> response = new HashMap<>();
-		response.put("containerPath", containerPath);
-		response.put("proxyId", proxy.getId());
+		response.put("containerPath", buildContainerPath(request));
+		
+		Proxy proxy = findUserProxy(request);
+		if (proxy != null && proxy.getStatus() == ProxyStatus.Up) {
+			response.put("proxyId", proxy.getId());
+			return response;
+		}
+		
+		ProxyLaunch launch = (proxy == null) ? launchService.launch(getSpec(request)) : launchService.follow(proxy);
+		response.put("launchId", launch.getId());
 		return response;
 	}
 	
+	@RequestMapping(value="/app_launch/{launchId}", method=RequestMethod.GET, produces=MediaType.TEXT_EVENT_STREAM_VALUE)
+	public SseEmitter launchEvents(@PathVariable String launchId) {
+		ProxyLaunch launch = launchService.getLaunch(launchId);
+		if (launch == null) throw new IllegalArgumentException("Unknown launch: " + launchId);
+		if (!Objects.equals(launch.getUserId(), userService.getCurrentUserId())) throw new AccessDeniedException("Cannot follow launch " + launchId);
+		return launchService.subscribe(launch);
+	}
+	
 	@RequestMapping(value="/app_direct/**")
 	public void appDirect(HttpServletRequest request, HttpServletResponse response) {
 		Proxy proxy = getOrStart(request);
-		awaitReady(proxy);
+		launchService.awaitReady(proxy);
 		
 		String mapping = getProxyEndpoint(proxy);
 		
-		String subPath = request.getRequestURI();
-		subPath = subPath.substring(subPath.indexOf("/app_direct/") + 12);
-		subPath = subPath.substring(getAppName(request).length());
+		String subPath = AppRoute.of(request).getSubPath();
 		
 		if (subPath.trim().isEmpty()) {
 			try {
@@ -90,7 +128,17 @@ public class AppController extends BaseController {
 		}
 		
 		try {
-			mappingManager.dispatchAsync(mapping + subPath, request, response);
+			launchMetrics.onAppRequest(proxy);
+			activityTracker.track(proxy);
+			proxyRegistrySync.touch(proxy);
+			sharedProxyService.onRequest(proxy, userService.getCurrentUserId());
+			if (assetCache.canServe(proxy, subPath, request)) {
+				assetCache.serve(proxy, mapping, subPath, request, response);
+			} else if (upstreamClient.canForward(request)) {
+				upstreamClient.forward(proxy, mapping, subPath, request, response);
+			} else {
+				mappingManager.dispatchAsync(mapping + subPath, request, response);
+			}
 		} catch (Exception e) {
 			throw new RuntimeException("Error routing proxy request", e);
 		}
@@ -99,26 +147,16 @@ public class AppController extends BaseController {
 	private Proxy getOrStart(HttpServletRequest request) {
 		Proxy proxy = findUserProxy(request);
 		if (proxy == null) {
-			String specId = getAppName(request);
-			ProxySpec spec = proxyService.getProxySpec(specId);
-			if (spec == null) throw new IllegalArgumentException("Unknown proxy spec: " + specId);
-			ProxySpec resolvedSpec = proxyService.resolveProxySpec(spec, null, null);
-			proxy = proxyService.startProxy(resolvedSpec, false);
+			proxy = launchService.awaitLaunch(launchService.launch(getSpec(request)));
 		}
 		return proxy;
 	}
 	
-	private boolean awaitReady(Proxy proxy) {
-		if (proxy == null) return false;
-		if (proxy.getStatus() == ProxyStatus.Up) return true;
-		if (proxy.getStatus() == ProxyStatus.Stopping || proxy.getStatus() == ProxyStatus.Stopped) return false;
-		
-		int totalWaitMs = Integer.parseInt(environment.getProperty("proxy.container-wait-time", "20000"));
-		int waitMs = Math.min(500, totalWaitMs);
-		int maxTries = totalWaitMs / waitMs;
-		Retrying.retry(i -> proxy.getStatus() != ProxyStatus.Starting, maxTries, waitMs);
-		
-		return (proxy.getStatus() == ProxyStatus.Up);
+	private ProxySpec getSpec(HttpServletRequest request) {
+		String specId = getAppName(request);
+		ProxySpec spec = proxyService.getProxySpec(specId);
+		if (spec == null) throw new IllegalArgumentException("Unknown proxy spec: " + specId);
+		return spec;
 	}
 	
 	private String buildContainerPath(HttpServletRequest request) {
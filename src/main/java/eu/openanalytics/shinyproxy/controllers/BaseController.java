@@ -20,36 +20,31 @@
  */
 package eu.openanalytics.shinyproxy.controllers;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
 import java.security.Principal;
-import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 
 import eu.openanalytics.containerproxy.auth.IAuthenticationBackend;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 import org.springframework.core.env.Environment;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.ui.ModelMap;
-import org.springframework.util.StreamUtils;
 
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
 import eu.openanalytics.containerproxy.model.spec.ProxySpec;
 import eu.openanalytics.containerproxy.service.ProxyService;
 import eu.openanalytics.containerproxy.service.UserService;
 import eu.openanalytics.containerproxy.util.SessionHelper;
+import eu.openanalytics.shinyproxy.AppRoute;
+import eu.openanalytics.shinyproxy.LogoService;
+import eu.openanalytics.shinyproxy.ProxyIndex;
+import eu.openanalytics.shinyproxy.SharedProxyService;
+import eu.openanalytics.shinyproxy.UISettingsProvider;
+import eu.openanalytics.shinyproxy.UISettingsProvider.UISettings;
+import eu.openanalytics.shinyproxy.registry.ProxyRegistrySync;
 
 public abstract class BaseController {
 
@@ -64,11 +59,22 @@ public abstract class BaseController {
 
 	@Inject
 	IAuthenticationBackend authenticationBackend;
+	
+	@Inject
+	ProxyIndex proxyIndex;
+
+	@Inject
+	ProxyRegistrySync proxyRegistrySync;
+
+	@Inject
+	SharedProxyService sharedProxyService;
 
-	private static Logger logger = LogManager.getLogger(BaseController.class);
-	private static Pattern appPattern = Pattern.compile(".*?/app[^/]*/([^/]*)/?.*");
-	private static Map<String, String> imageCache = new HashMap<>();
+	@Inject
+	LogoService logoService;
 	
+	@Inject
+	UISettingsProvider uiSettingsProvider;
+
 	protected String getUserName(HttpServletRequest request) {
 		Principal principal = request.getUserPrincipal();
 		String username = (principal == null) ? request.getSession().getId() : principal.getName();
@@ -76,13 +82,11 @@ public abstract class BaseController {
 	}
 	
 	protected String getAppName(HttpServletRequest request) {
-		return getAppName(request.getRequestURI());
+		return AppRoute.of(request).getAppName();
 	}
 	
 	protected String getAppName(String uri) {
-		Matcher matcher = appPattern.matcher(uri);
-		String appName = matcher.matches() ? matcher.group(1) : null;
-		return appName;
+		return AppRoute.parse(uri).getAppName();
 	}
 	
 	protected String getAppTitle(HttpServletRequest request) {
@@ -100,7 +104,13 @@ public abstract class BaseController {
 	protected Proxy findUserProxy(HttpServletRequest request) {
 		String appName = getAppName(request);
 		if (appName == null) return null;
-		return proxyService.findProxy(p -> appName.equals(p.getSpec().getId()) && userService.isOwner(p), false);
+		String userId = userService.getCurrentUserId();
+		Proxy proxy = sharedProxyService.find(userId, appName);
+		if (proxy == null) proxy = proxyIndex.findIndexed(userId, appName);
+		if (proxy == null) proxy = proxyRegistrySync.findRemote(userId, appName);
+		// Proxies that are still starting, or that were started through the API, are only found by a scan.
+		if (proxy == null) proxy = proxyIndex.find(userId, appName);
+		return proxy;
 	}
 	
 	protected String getProxyEndpoint(Proxy proxy) {
@@ -109,53 +119,35 @@ public abstract class BaseController {
 	}
 	
 	protected void prepareMap(ModelMap map, HttpServletRequest request) {
-		map.put("title", environment.getProperty("proxy.title", "ShinyProxy"));
-		map.put("logo", resolveImageURI(environment.getProperty("proxy.logo-url")));
+		UISettings settings = uiSettingsProvider.getSettings();
+		map.put("title", settings.getTitle());
+		map.put("logo", resolveImageURI(settings.getLogoURL()));
 
 		String hideNavBarParam = request.getParameter("sp_hide_navbar");
 		if (Objects.equals(hideNavBarParam, "true")) {
 			map.put("showNavbar", false);
 		} else {
-			map.put("showNavbar", !Boolean.parseBoolean(environment.getProperty("proxy.hide-navbar")));
+			map.put("showNavbar", !settings.isHideNavbar());
 		}
 
-		map.put("bootstrapCss", "/webjars/bootstrap/3.4.1/css/bootstrap.min.css");
-		map.put("bootstrapJs", "/webjars/bootstrap/3.4.1/js/bootstrap.min.js");
-		map.put("jqueryJs", "/webjars/jquery/3.5.0/jquery.min.js");
-		map.put("cookieJs", "/webjars/js-cookie/2.2.1/js.cookie.min.js");
+		map.put("bootstrapCss", settings.getBootstrapCss());
+		map.put("bootstrapJs", settings.getBootstrapJs());
+		map.put("jqueryJs", settings.getJqueryJs());
+		map.put("cookieJs", settings.getCookieJs());
 
 		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
 		boolean isLoggedIn = authentication != null && !(authentication instanceof AnonymousAuthenticationToken) && authentication.isAuthenticated();
 		map.put("isLoggedIn", isLoggedIn);
 		map.put("isAdmin", userService.isAdmin(authentication));
-		map.put("isSupportEnabled", isLoggedIn && getSupportAddress() != null);
-		map.put("logoutUrl", authenticationBackend.getLogoutURL());
+		map.put("isSupportEnabled", isLoggedIn && settings.getSupportAddress() != null);
+		map.put("logoutUrl", settings.getLogoutUrl());
 	}
 	
 	protected String getSupportAddress() {
-		return environment.getProperty("proxy.support.mail-to-address");
+		return uiSettingsProvider.getSettings().getSupportAddress();
 	}
 	
 	protected String resolveImageURI(String resourceURI) {
-		if (resourceURI == null || resourceURI.isEmpty()) return resourceURI;
-		if (imageCache.containsKey(resourceURI)) return imageCache.get(resourceURI);
-		
-		String resolvedValue = resourceURI;
-		if (resourceURI.toLowerCase().startsWith("file://")) {
-			String mimetype = URLConnection.guessContentTypeFromName(resourceURI);
-			if (mimetype == null) {
-				logger.warn("Cannot determine mimetype for resource: " + resourceURI);
-			} else {
-				try (InputStream input = new URL(resourceURI).openConnection().getInputStream()) {
-					byte[] data = StreamUtils.copyToByteArray(input);
-					String encoded = Base64.getEncoder().encodeToString(data);
-					resolvedValue = String.format("data:%s;base64,%s", mimetype, encoded);
-				} catch (IOException e) {
-					logger.warn("Failed to convert file URI to data URI: " + resourceURI, e);
-				}
-			}
-		}
-		imageCache.put(resourceURI, resolvedValue);
-		return resolvedValue;
+		return logoService.resolve(resourceURI);
 	}
 }
@@ -20,43 +20,51 @@
  */
 package eu.openanalytics.shinyproxy.controllers;
 
-import java.util.HashMap;
 import java.util.Map;
 
+import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.servlet.view.RedirectView;
 
 import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.shinyproxy.IndexPageCache;
+import eu.openanalytics.shinyproxy.IndexPageCache.AppList;
+import eu.openanalytics.shinyproxy.StartupMonitor;
  
 @Controller
 public class IndexController extends BaseController {
 	
+	@Inject
+	private StartupMonitor startupMonitor;
+	
+	@Inject
+	private IndexPageCache indexPageCache;
+	
 	@RequestMapping("/")
-    private Object index(ModelMap map, HttpServletRequest request) {
-		String landingPage = environment.getProperty("proxy.landing-page", "/");
+    private Object index(ModelMap map, HttpServletRequest request, HttpServletResponse response, WebRequest webRequest) {
+		String landingPage = uiSettingsProvider.getSettings().getLandingPage();
 		if (!landingPage.equals("/")) return new RedirectView(landingPage);	
 		
 		prepareMap(map, request);
 		
-		ProxySpec[] apps = proxyService.getProxySpecs(null, false).toArray(new ProxySpec[0]);
-		map.put("apps", apps);
+		AppList appList = indexPageCache.getAppList(SecurityContextHolder.getContext().getAuthentication());
+		Map<ProxySpec, String> appLogos = indexPageCache.resolveLogos(appList);
+		startupMonitor.onPageServed();
 
-		Map<ProxySpec, String> appLogos = new HashMap<>();
-		map.put("appLogos", appLogos);
-		
-		boolean displayAppLogos = false;
-		for (ProxySpec app: apps) {
-			if (app.getLogoURL() != null) {
-				displayAppLogos = true;
-				appLogos.put(app, resolveImageURI(app.getLogoURL()));
-			}
-		}
-		map.put("displayAppLogos", displayAppLogos);
+		// The page is private to the user, but can be revalidated cheaply: nothing is rendered if the ETag still matches.
+		response.setHeader("Cache-Control", "private, no-cache");
+		if (webRequest.checkNotModified(indexPageCache.getETag(appList, appLogos, map, request.getRemoteUser()))) return null;
 
+		map.put("apps", appList.getApps());
+		map.put("appLogos", appLogos);
+		map.put("displayAppLogos", appList.isDisplayAppLogos());
 		return "index";
     }
-}
\ No newline at end of file
+}
@@ -20,100 +20,50 @@
  */
 package eu.openanalytics.shinyproxy.controllers;
 
-import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.inject.Inject;
-import javax.mail.internet.MimeMessage;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
-import eu.openanalytics.containerproxy.service.LogService;
+import eu.openanalytics.shinyproxy.issue.IssueReportQueue;
 
+@Lazy
 @Controller
 public class IssueController extends BaseController {
 
 	@Inject
-	LogService logService;
-
-	@Autowired(required=false)
-    JavaMailSender mailSender;
+	IssueReportQueue issueReportQueue;
 	
 	@RequestMapping(value="/issue", method=RequestMethod.POST)
-	public String postIssue(HttpServletRequest request, HttpServletResponse response) {
+	public Object postIssue(HttpServletRequest request, HttpServletResponse response) {
 		IssueForm form = new IssueForm();
 		form.setUserName(getUserName(request));
 		form.setCurrentLocation(request.getParameter("currentLocation"));
 		form.setAppName(getAppName(form.getCurrentLocation()));
 		form.setCustomMessage(request.getParameter("customMessage"));
 		
-		Proxy activeProxy = null;
-		for (Proxy proxy: proxyService.getProxies(null, false)) {
-			if (proxy.getUserId().equals(form.getUserName()) && proxy.getSpec().getId().equals(form.getAppName())) {
-				activeProxy = proxy;
-				break;
-			}
+		Proxy activeProxy = proxyIndex.find(form.getUserName(), form.getAppName());
+		String ticketId = issueReportQueue.enqueue(form, activeProxy);
+		
+		if ("XMLHttpRequest".equals(request.getHeader("X-Requested-With"))) {
+			Map<String, String> body = new HashMap<>();
+			body.put("ticketId", ticketId);
+			return ResponseEntity.ok(body);
 		}
-		sendSupportMail(form, activeProxy);
 		
 		//TODO Redirect to current location
 		return "redirect:" + getContextPath();
 	}
 	
-	public void sendSupportMail(IssueForm form, Proxy proxy) {
-		String supportAddress = getSupportAddress();
-		if (supportAddress == null) throw new RuntimeException("Cannot send mail: no support address configured");
-		if (mailSender == null) throw new RuntimeException("Cannot send mail: no smtp settings configured");
-		
-		try {
-			MimeMessage message = mailSender.createMimeMessage();
-			MimeMessageHelper helper = new MimeMessageHelper(message, true);
-
-			// Headers
-			helper.setFrom(environment.getProperty("proxy.support.mail-from-address", "issues@shinyproxy.io"));
-			helper.addTo(supportAddress);
-			helper.setSubject("ShinyProxy Error Report");
-
-			// Body
-			StringBuilder body = new StringBuilder();
-			String lineSep = System.getProperty("line.separator");
-			body.append(String.format("This is an error report generated by ShinyProxy%s", lineSep));
-			body.append(String.format("User: %s%s", form.userName, lineSep));
-			if (form.appName != null) body.append(String.format("App: %s%s", form.appName, lineSep));
-			if (form.currentLocation != null) body.append(String.format("Location: %s%s", form.currentLocation, lineSep));
-			if (form.customMessage != null) body.append(String.format("Message: %s%s", form.customMessage, lineSep));
-
-			// Attachments (only if container-logging is enabled)
-			if (proxy != null) {
-				String[] filePaths = logService.getLogs(proxy);
-				
-				if (filePaths != null && filePaths.length > 1) {
-					if (new File(filePaths[0]).exists()) {
-						for (String p: filePaths) {
-							File f = new File(p);
-							helper.addAttachment(f.getName(), f);
-						}
-					} else {
-						body.append(String.format("Log (stdout): %s%s", filePaths[0], lineSep));
-						body.append(String.format("Log (stderr): %s%s", filePaths[1], lineSep));
-					}
-				}
-			}
-			
-			helper.setText(body.toString());
-			mailSender.send(message);
-		} catch (Exception e) {
-			throw new RuntimeException("Failed to send email", e);
-		}
-	}
-	
 	public static class IssueForm {
 		
 		private String userName;
@@ -0,0 +1,64 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.controllers;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import eu.openanalytics.shinyproxy.LogoService;
+import eu.openanalytics.shinyproxy.LogoService.Logo;
+
+@Controller
+public class LogoController {
+
+	@Inject
+	private LogoService logoService;
+
+	@RequestMapping(value="/logo/{hash}", method=RequestMethod.GET)
+	public ResponseEntity<byte[]> logo(@PathVariable String hash, HttpServletRequest request) {
+		Logo logo = logoService.getLogoByHash(hash);
+		if (logo == null) return ResponseEntity.notFound().build();
+
+		// The URL changes whenever the logo changes, so the logo can be cached indefinitely.
+		String eTag = "\"" + logo.getHash() + "\"";
+		CacheControl cacheControl = CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic();
+		if (eTag.equals(request.getHeader(HttpHeaders.IF_NONE_MATCH))) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(cacheControl).build();
+		}
+		return ResponseEntity.ok()
+				.eTag(eTag)
+				.cacheControl(cacheControl)
+				.contentType(MediaType.parseMediaType(logo.getMimeType()))
+				.body(logo.getData());
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.image;
+
+import java.nio.file.Paths;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.springframework.core.env.Environment;
+
+import com.spotify.docker.client.DefaultDockerClient;
+import com.spotify.docker.client.DockerCertificates;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.ImageNotFoundException;
+import com.spotify.docker.client.messages.ProgressDetail;
+
+/**
+ * Pulls images through the Docker engine API, at the same address as the docker container backend (proxy.docker.url).
+ * Registered by {@link ImagePullConfiguration} when pre-pulling is enabled.
+ * Pointing proxy.docker.url to a local engine and registry mirror gives a stand-in for testing.
+ */
+public class DockerImagePuller implements IImagePuller {
+
+	private DockerClient dockerClient;
+
+	@Inject
+	private Environment environment;
+
+	@PostConstruct
+	public void init() throws Exception {
+		DefaultDockerClient.Builder builder = DefaultDockerClient.builder()
+				.uri(environment.getProperty("proxy.docker.url", "http://localhost:2375"));
+		String certPath = environment.getProperty("proxy.docker.cert-path");
+		if (certPath != null) builder.dockerCertificates(new DockerCertificates(Paths.get(certPath)));
+		dockerClient = builder.build();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (dockerClient != null) dockerClient.close();
+	}
+
+	@Override
+	public String pull(String image, PullProgressListener listener) throws Exception {
+		dockerClient.pull(image, message -> {
+			ProgressDetail detail = message.progressDetail();
+			if (message.id() != null && detail != null && detail.current() != null) {
+				listener.onProgress(message.id(), detail.current(), (detail.total() == null) ? 0 : detail.total());
+			}
+		});
+		return getImageId(image);
+	}
+
+	@Override
+	public String getImageId(String image) throws Exception {
+		try {
+			return dockerClient.inspectImage(image).id();
+		} catch (ImageNotFoundException e) {
+			return null;
+		}
+	}
+}
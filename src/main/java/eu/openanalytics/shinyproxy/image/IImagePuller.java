@@ -0,0 +1,52 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.image;
+
+/**
+ * Pulls container images onto the container backend of this node.
+ */
+public interface IImagePuller {
+
+	/**
+	 * Pull the given image, reporting progress to the given listener.
+	 * 
+	 * @return The id of the image after the pull.
+	 */
+	public String pull(String image, PullProgressListener listener) throws Exception;
+
+	/**
+	 * Get the id of the given image as present on the backend, or null if the image is not present.
+	 */
+	public String getImageId(String image) throws Exception;
+
+	public static interface PullProgressListener {
+
+		/**
+		 * Called when the progress of a layer changes.
+		 * 
+		 * @param layerId The id of the layer.
+		 * @param current The number of bytes of the layer that were pulled so far.
+		 * @param total The size of the layer in bytes, or 0 if unknown.
+		 */
+		public void onProgress(String layerId, long current, long total);
+
+	}
+}
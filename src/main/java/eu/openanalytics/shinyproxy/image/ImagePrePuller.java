@@ -0,0 +1,290 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.image;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.containerproxy.model.spec.ContainerSpec;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider;
+import eu.openanalytics.shinyproxy.SpecsReloadedEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Pulls the images of all specs in the background, so that launches do not have to wait for an image pull.
+ * 
+ * Images are pulled at startup, when specs are added or changed, and every proxy.image-pull.check-interval,
+ * which also picks up new versions of mutable tags. At most proxy.image-pull.parallelism images are pulled at once.
+ * Pre-pulling is enabled by default for the docker backend only (proxy.image-pull.enabled), as other backends
+ * schedule containers on hosts other than this one.
+ */
+@Component
+public class ImagePrePuller {
+
+	private final Logger log = LogManager.getLogger(ImagePrePuller.class);
+
+	private final Map<String, ImageState> images = new ConcurrentHashMap<>();
+
+	private ExecutorService pullExecutor;
+	private final ScheduledExecutorService checkExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("image-pull-check-"));
+
+	private boolean enabled;
+
+	private IImagePuller imagePuller;
+
+	@Inject
+	private ObjectProvider<IImagePuller> imagePullerProvider;
+
+	@Inject
+	private ShinyProxySpecProvider specProvider;
+
+	@Inject
+	private MeterRegistry registry;
+
+	@Inject
+	private Environment environment;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void init() {
+		if (!isEnabled(environment)) return;
+		// Fails if there are several pullers and none of them is primary.
+		imagePuller = imagePullerProvider.getIfAvailable();
+		if (imagePuller == null) {
+			log.warn("Image pre-pulling is enabled, but there is no image puller: not pre-pulling images");
+			return;
+		}
+		enabled = true;
+
+		int parallelism = Integer.parseInt(environment.getProperty("proxy.image-pull.parallelism", "2"));
+		pullExecutor = Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory("image-pull-"));
+		long checkInterval = Long.parseLong(environment.getProperty("proxy.image-pull.check-interval", "3600000"));
+		checkExecutor.scheduleWithFixedDelay(() -> pull(getImages(specProvider.getSpecs())), 0, checkInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public static boolean isEnabled(Environment environment) {
+		boolean dockerBackend = environment.getProperty("proxy.container-backend", "docker").equals("docker");
+		return Boolean.valueOf(environment.getProperty("proxy.image-pull.enabled", String.valueOf(dockerBackend)));
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		checkExecutor.shutdownNow();
+		if (pullExecutor != null) pullExecutor.shutdownNow();
+	}
+
+	@EventListener
+	public void onSpecsReloaded(SpecsReloadedEvent event) {
+		if (!enabled) return;
+		List<ProxySpec> specs = new ArrayList<>();
+		for (String specId: event.getAddedSpecs()) specs.add(specProvider.getSpec(specId));
+		for (String specId: event.getChangedSpecs()) specs.add(specProvider.getSpec(specId));
+		pull(getImages(specs));
+	}
+
+	public List<ImageStats> getImageStats() {
+		List<ImageStats> stats = new ArrayList<>();
+		for (ImageState state: images.values()) {
+			stats.add(new ImageStats(state));
+		}
+		Collections.sort(stats, (s1, s2) -> s1.getImage().compareTo(s2.getImage()));
+		return stats;
+	}
+
+	/**
+	 * The id of the latest pulled version of the given image, or null if it has not been pulled (yet).
+	 */
+	public String getImageId(String image) {
+		ImageState state = images.get(image);
+		return (state == null) ? null : state.imageId;
+	}
+
+	private void pull(Set<String> imageNames) {
+		for (String image: imageNames) {
+			ImageState state = images.computeIfAbsent(image, ImageState::new);
+			synchronized (state) {
+				// A pull of this image is already queued or running: it will pick up the latest version as well.
+				if (state.queued) continue;
+				state.queued = true;
+			}
+			pullExecutor.submit(() -> doPull(state));
+		}
+	}
+
+	private void doPull(ImageState state) {
+		long start = System.nanoTime();
+		String outcome = "success";
+		try {
+			state.status = ImageStatus.Pulling;
+			state.layers.clear();
+			String previousId = imagePuller.getImageId(state.image);
+			String imageId = imagePuller.pull(state.image, (layerId, current, total) -> state.layers.put(layerId, new long[] { current, total }));
+			state.imageId = imageId;
+			state.error = null;
+			state.status = ImageStatus.Ready;
+			if (previousId == null) {
+				log.info(String.format("Pulled image %s in %d ms", state.image, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+			} else if (!previousId.equals(imageId)) {
+				outcome = "updated";
+				log.info(String.format("Pulled new version of image %s in %d ms", state.image, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+			} else {
+				outcome = "unchanged";
+			}
+		} catch (Exception e) {
+			outcome = "failure";
+			state.error = e.getMessage();
+			state.status = ImageStatus.Failed;
+			log.warn(String.format("Failed to pull image %s", state.image), e);
+		} finally {
+			long nanos = System.nanoTime() - start;
+			state.lastPullDuration = TimeUnit.NANOSECONDS.toMillis(nanos);
+			state.lastChecked = System.currentTimeMillis();
+			synchronized (state) {
+				state.queued = false;
+			}
+			Timer.builder("shinyproxy.image.pull")
+				.description("Duration of image pulls")
+				.tag("image", state.image)
+				.tag("outcome", outcome)
+				.register(registry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private static Set<String> getImages(List<ProxySpec> specs) {
+		Set<String> imageNames = new LinkedHashSet<>();
+		for (ProxySpec spec: specs) {
+			if (spec == null || spec.getContainerSpecs() == null) continue;
+			for (ContainerSpec containerSpec: spec.getContainerSpecs()) {
+				String image = containerSpec.getImage();
+				// Images that depend on the user or the launch can only be resolved at launch time.
+				if (image == null || image.isEmpty() || image.contains("#{")) continue;
+				imageNames.add(image);
+			}
+		}
+		return imageNames;
+	}
+
+	public static enum ImageStatus {
+		Queued,
+		Pulling,
+		Ready,
+		Failed
+	}
+
+	private static class ImageState {
+
+		private final String image;
+		private final Map<String, long[]> layers = new ConcurrentHashMap<>();
+		private boolean queued;
+		private volatile ImageStatus status = ImageStatus.Queued;
+		private volatile String imageId;
+		private volatile String error;
+		private volatile long lastPullDuration;
+		private volatile long lastChecked;
+
+		public ImageState(String image) {
+			this.image = image;
+		}
+	}
+
+	public static class ImageStats {
+
+		private final String image;
+		private final ImageStatus status;
+		private final int progress;
+		private final String imageId;
+		private final String error;
+		private final long lastPullDuration;
+		private final long lastChecked;
+
+		private ImageStats(ImageState state) {
+			this.image = state.image;
+			this.status = state.status;
+			this.imageId = state.imageId;
+			this.error = state.error;
+			this.lastPullDuration = state.lastPullDuration;
+			this.lastChecked = state.lastChecked;
+			long current = 0;
+			long total = 0;
+			for (long[] layer: new HashMap<>(state.layers).values()) {
+				current += layer[0];
+				total += layer[1];
+			}
+			this.progress = (total == 0) ? 0 : (int) Math.min(100, current * 100 / total);
+		}
+
+		public String getImage() {
+			return image;
+		}
+
+		public ImageStatus getStatus() {
+			return status;
+		}
+
+		/**
+		 * The progress of the current pull in percent, based on the layers that reported a size so far.
+		 */
+		public int getProgress() {
+			return progress;
+		}
+
+		public String getImageId() {
+			return imageId;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public long getLastPullDuration() {
+			return lastPullDuration;
+		}
+
+		public Date getLastChecked() {
+			return (lastChecked == 0) ? null : new Date(lastChecked);
+		}
+	}
+}
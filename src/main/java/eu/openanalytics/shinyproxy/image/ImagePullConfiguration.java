@@ -0,0 +1,51 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.image;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+@Configuration
+public class ImagePullConfiguration {
+
+	/**
+	 * Pull through the Docker engine. The Docker client is only created when pre-pulling is enabled.
+	 * Another puller, e.g. a stand-in for testing, replaces this one by being declared as a {@code @Primary} bean:
+	 * a condition on missing beans is not reliable outside of auto-configuration.
+	 */
+	@Bean
+	@Conditional(ImagePullEnabledCondition.class)
+	public IImagePuller imagePuller() {
+		return new DockerImagePuller();
+	}
+
+	public static class ImagePullEnabledCondition implements Condition {
+
+		@Override
+		public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+			return ImagePrePuller.isEnabled(context.getEnvironment());
+		}
+	}
+}
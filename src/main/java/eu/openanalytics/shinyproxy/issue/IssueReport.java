@@ -0,0 +1,132 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.issue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An issue report as it is persisted in the issue queue, until it has been sent.
+ */
+public class IssueReport {
+
+	private String ticketId;
+	private long createdTimestamp;
+	private int attempts;
+
+	private String userName;
+	private String appName;
+	private String currentLocation;
+	private String customMessage;
+
+	private List<String> logFiles = new ArrayList<>();
+	private List<String> logAttachments = new ArrayList<>();
+	private List<String> logReferences = new ArrayList<>();
+
+	public String getTicketId() {
+		return ticketId;
+	}
+
+	public void setTicketId(String ticketId) {
+		this.ticketId = ticketId;
+	}
+
+	public long getCreatedTimestamp() {
+		return createdTimestamp;
+	}
+
+	public void setCreatedTimestamp(long createdTimestamp) {
+		this.createdTimestamp = createdTimestamp;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+	public String getAppName() {
+		return appName;
+	}
+
+	public void setAppName(String appName) {
+		this.appName = appName;
+	}
+
+	public String getCurrentLocation() {
+		return currentLocation;
+	}
+
+	public void setCurrentLocation(String currentLocation) {
+		this.currentLocation = currentLocation;
+	}
+
+	public String getCustomMessage() {
+		return customMessage;
+	}
+
+	public void setCustomMessage(String customMessage) {
+		this.customMessage = customMessage;
+	}
+
+	/**
+	 * Local log files that the sender still has to compress and store alongside this report.
+	 */
+	public List<String> getLogFiles() {
+		return logFiles;
+	}
+
+	public void setLogFiles(List<String> logFiles) {
+		this.logFiles = logFiles;
+	}
+
+	/**
+	 * The names of the (compressed) log files that are stored alongside this report.
+	 */
+	public List<String> getLogAttachments() {
+		return logAttachments;
+	}
+
+	public void setLogAttachments(List<String> logAttachments) {
+		this.logAttachments = logAttachments;
+	}
+
+	/**
+	 * Log locations that are not local files (and therefore cannot be attached), mentioned in the body instead.
+	 */
+	public List<String> getLogReferences() {
+		return logReferences;
+	}
+
+	public void setLogReferences(List<String> logReferences) {
+		this.logReferences = logReferences;
+	}
+}
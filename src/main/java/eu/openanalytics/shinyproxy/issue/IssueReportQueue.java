@@ -0,0 +1,353 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.issue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.core.env.Environment;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StreamUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.service.LogService;
+import eu.openanalytics.shinyproxy.UISettingsProvider;
+import eu.openanalytics.shinyproxy.controllers.IssueController.IssueForm;
+
+/**
+ * A persistent queue of issue reports, which are sent to the support address in the background.
+ * 
+ * Each report is stored as a directory, so that queued reports survive a restart. A background sender
+ * adds gzip-compressed copies of the container logs to the report, sends the queued reports in batches
+ * over a single SMTP connection, and retries failed reports with an increasing delay.
+ * Nothing is stored (or sent) unless a support address is configured.
+ */
+@Component
+public class IssueReportQueue {
+
+	private static final String REPORT_FILE = "report.json";
+	private static final String FAILED_DIR = "failed";
+	private static final long MAX_RETRY_DELAY_MS = 3600000;
+
+	private final Logger log = LogManager.getLogger(IssueReportQueue.class);
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final ScheduledExecutorService senderExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("issue-sender-"));
+	private final Map<String, Long> nextAttempts = new ConcurrentHashMap<>();
+	private final AtomicInteger queueSize = new AtomicInteger();
+
+	private Path queuePath;
+	private int maxQueueSize;
+	private int batchSize;
+	private int maxAttempts;
+	private long retryDelay;
+	private long maxLogSize;
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private LogService logService;
+
+	@Inject
+	private UISettingsProvider uiSettingsProvider;
+
+	// Resolved on use, so that the mail sender is not created at startup.
+	@Inject
+	private ObjectProvider<JavaMailSender> mailSender;
+
+	@PostConstruct
+	public void init() throws IOException {
+		queuePath = Paths.get(environment.getProperty("proxy.support.queue-path", "issue-queue"));
+		maxQueueSize = Integer.parseInt(environment.getProperty("proxy.support.queue-size", "100"));
+		batchSize = Integer.parseInt(environment.getProperty("proxy.support.batch-size", "10"));
+		maxAttempts = Integer.parseInt(environment.getProperty("proxy.support.max-attempts", "10"));
+		retryDelay = Long.parseLong(environment.getProperty("proxy.support.retry-delay", "30000"));
+		maxLogSize = Long.parseLong(environment.getProperty("proxy.support.max-log-size", "1048576"));
+		long sendInterval = Long.parseLong(environment.getProperty("proxy.support.send-interval", "5000"));
+
+		if (getSupportAddress() == null) return;
+
+		Files.createDirectories(queuePath.resolve(FAILED_DIR));
+		// Remove reports that were only partially written when ShinyProxy stopped.
+		try (Stream<Path> paths = Files.list(queuePath)) {
+			for (Path path: paths.filter(p -> p.getFileName().toString().startsWith(".")).collect(Collectors.toList())) {
+				FileSystemUtils.deleteRecursively(path);
+			}
+		}
+		queueSize.set(listPending().size());
+
+		senderExecutor.scheduleWithFixedDelay(this::sendPending, sendInterval, sendInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		senderExecutor.shutdownNow();
+	}
+
+	/**
+	 * Add an issue report to the queue, including the logs of the given proxy (if any).
+	 * Returns the ticket id of the report.
+	 */
+	public String enqueue(IssueForm form, Proxy proxy) {
+		if (getSupportAddress() == null) throw new RuntimeException("Cannot send mail: no support address configured");
+		if (mailSender.getIfAvailable() == null) throw new RuntimeException("Cannot send mail: no smtp settings configured");
+		if (queueSize.incrementAndGet() > maxQueueSize) {
+			queueSize.decrementAndGet();
+			throw new RuntimeException("Cannot report issue: the issue queue is full");
+		}
+
+		IssueReport report = new IssueReport();
+		report.setTicketId(String.format("%d-%s", System.currentTimeMillis(), UUID.randomUUID().toString().substring(0, 8)));
+		report.setCreatedTimestamp(System.currentTimeMillis());
+		report.setUserName(form.getUserName());
+		report.setAppName(form.getAppName());
+		report.setCurrentLocation(form.getCurrentLocation());
+		report.setCustomMessage(form.getCustomMessage());
+
+		// Write into a hidden directory first, and move it into place once complete.
+		Path tempPath = queuePath.resolve("." + report.getTicketId());
+		try {
+			Files.createDirectories(tempPath);
+			if (proxy != null) captureLogs(report, proxy);
+			objectMapper.writeValue(tempPath.resolve(REPORT_FILE).toFile(), report);
+			Files.move(tempPath, queuePath.resolve(report.getTicketId()), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			queueSize.decrementAndGet();
+			FileSystemUtils.deleteRecursively(tempPath.toFile());
+			throw new RuntimeException("Failed to queue issue report", e);
+		}
+
+		log.info(String.format("Issue report queued [user: %s] [ticket: %s]", report.getUserName(), report.getTicketId()));
+		return report.getTicketId();
+	}
+
+	public int getQueueSize() {
+		return queueSize.get();
+	}
+
+	/**
+	 * Record where the logs of the proxy are. Local log files are only compressed later, by the sender.
+	 */
+	private void captureLogs(IssueReport report, Proxy proxy) {
+		String[] filePaths = logService.getLogs(proxy);
+		if (filePaths == null || filePaths.length <= 1) return;
+
+		if (new File(filePaths[0]).exists()) {
+			Collections.addAll(report.getLogFiles(), filePaths);
+		} else {
+			report.getLogReferences().add(String.format("Log (stdout): %s", filePaths[0]));
+			report.getLogReferences().add(String.format("Log (stderr): %s", filePaths[1]));
+		}
+	}
+
+	/**
+	 * Compress the local log files of the report into the report directory, and turn them into attachments.
+	 */
+	private void attachLogs(IssueReport report, Path reportPath) throws IOException {
+		for (String filePath: report.getLogFiles()) {
+			Path source = Paths.get(filePath);
+			if (!Files.exists(source)) {
+				report.getLogReferences().add(String.format("Log (no longer available): %s", filePath));
+				continue;
+			}
+			String attachmentName = source.getFileName().toString() + ".gz";
+			copyCompressed(source, reportPath.resolve(attachmentName));
+			report.getLogAttachments().add(attachmentName);
+		}
+		report.getLogFiles().clear();
+		objectMapper.writeValue(reportPath.resolve(REPORT_FILE).toFile(), report);
+	}
+
+	/**
+	 * Copy the last 'max-log-size' bytes of a log file, compressing them while copying.
+	 */
+	private void copyCompressed(Path source, Path target) throws IOException {
+		try (SeekableByteChannel channel = Files.newByteChannel(source);
+				InputStream in = Channels.newInputStream(channel);
+				OutputStream out = new GZIPOutputStream(Files.newOutputStream(target))) {
+			if (channel.size() > maxLogSize) channel.position(channel.size() - maxLogSize);
+			StreamUtils.copy(in, out);
+		}
+	}
+
+	private List<Path> listPending() throws IOException {
+		try (Stream<Path> paths = Files.list(queuePath)) {
+			return paths
+					.filter(p -> Files.exists(p.resolve(REPORT_FILE)))
+					.sorted(Comparator.comparing(p -> p.getFileName().toString()))
+					.collect(Collectors.toList());
+		}
+	}
+
+	private void sendPending() {
+		try {
+			long now = System.currentTimeMillis();
+			Map<MimeMessage, Path> batch = new LinkedHashMap<>();
+			for (Path reportPath: listPending()) {
+				if (batch.size() >= batchSize) break;
+				Long nextAttempt = nextAttempts.get(reportPath.getFileName().toString());
+				if (nextAttempt != null && nextAttempt > now) continue;
+				try {
+					IssueReport report = readReport(reportPath);
+					if (!report.getLogFiles().isEmpty()) attachLogs(report, reportPath);
+					batch.put(createMessage(report, reportPath), reportPath);
+				} catch (Exception e) {
+					log.error("Failed to prepare issue report " + reportPath.getFileName(), e);
+					handleFailure(reportPath);
+				}
+			}
+			if (batch.isEmpty()) return;
+
+			Map<Object, Exception> failedMessages = Collections.emptyMap();
+			try {
+				mailSender.getObject().send(batch.keySet().toArray(new MimeMessage[0]));
+			} catch (MailSendException e) {
+				failedMessages = e.getFailedMessages();
+				// Without the failed messages, it is not known which reports were sent: retry all of them.
+				if (failedMessages.isEmpty()) failedMessages = batch.keySet().stream().collect(Collectors.toMap(m -> m, m -> e));
+				log.warn("Failed to send some issue reports, will retry", e);
+			} catch (MailException e) {
+				failedMessages = batch.keySet().stream().collect(Collectors.toMap(m -> m, m -> e));
+				log.warn("Failed to send issue reports, will retry", e);
+			}
+
+			for (Map.Entry<MimeMessage, Path> entry: batch.entrySet()) {
+				if (failedMessages.containsKey(entry.getKey())) {
+					handleFailure(entry.getValue());
+				} else {
+					remove(entry.getValue());
+				}
+			}
+		} catch (Exception e) {
+			log.error("Error while sending issue reports", e);
+		}
+	}
+
+	private IssueReport readReport(Path reportPath) throws IOException {
+		return objectMapper.readValue(reportPath.resolve(REPORT_FILE).toFile(), IssueReport.class);
+	}
+
+	private MimeMessage createMessage(IssueReport report, Path reportPath) throws Exception {
+		MimeMessage message = mailSender.getObject().createMimeMessage();
+		MimeMessageHelper helper = new MimeMessageHelper(message, true);
+
+		// Headers
+		helper.setFrom(environment.getProperty("proxy.support.mail-from-address", "issues@shinyproxy.io"));
+		helper.addTo(getSupportAddress());
+		helper.setSubject("ShinyProxy Error Report");
+
+		// Body
+		StringBuilder body = new StringBuilder();
+		String lineSep = System.getProperty("line.separator");
+		body.append(String.format("This is an error report generated by ShinyProxy%s", lineSep));
+		body.append(String.format("Ticket: %s%s", report.getTicketId(), lineSep));
+		body.append(String.format("User: %s%s", report.getUserName(), lineSep));
+		if (report.getAppName() != null) body.append(String.format("App: %s%s", report.getAppName(), lineSep));
+		if (report.getCurrentLocation() != null) body.append(String.format("Location: %s%s", report.getCurrentLocation(), lineSep));
+		if (report.getCustomMessage() != null) body.append(String.format("Message: %s%s", report.getCustomMessage(), lineSep));
+		for (String logReference: report.getLogReferences()) {
+			body.append(logReference).append(lineSep);
+		}
+
+		// Attachments (only if container-logging is enabled)
+		if (!report.getLogAttachments().isEmpty()) {
+			body.append(String.format("Attached logs contain at most the last %d bytes of each log.%s", maxLogSize, lineSep));
+			for (String attachment: report.getLogAttachments()) {
+				helper.addAttachment(attachment, reportPath.resolve(attachment).toFile());
+			}
+		}
+
+		helper.setText(body.toString());
+		return message;
+	}
+
+	private void handleFailure(Path reportPath) {
+		String ticketId = reportPath.getFileName().toString();
+		try {
+			IssueReport report = readReport(reportPath);
+			report.setAttempts(report.getAttempts() + 1);
+			if (report.getAttempts() >= maxAttempts) {
+				log.error(String.format("Giving up on issue report after %d attempts [ticket: %s]", report.getAttempts(), ticketId));
+				Files.move(reportPath, queuePath.resolve(FAILED_DIR).resolve(ticketId), StandardCopyOption.ATOMIC_MOVE);
+				nextAttempts.remove(ticketId);
+				queueSize.decrementAndGet();
+				return;
+			}
+			objectMapper.writeValue(reportPath.resolve(REPORT_FILE).toFile(), report);
+			long delay = Math.min(MAX_RETRY_DELAY_MS, retryDelay << Math.min(20, report.getAttempts() - 1));
+			nextAttempts.put(ticketId, System.currentTimeMillis() + delay);
+		} catch (IOException e) {
+			log.error("Failed to update issue report " + ticketId, e);
+			nextAttempts.put(ticketId, System.currentTimeMillis() + retryDelay);
+		}
+	}
+
+	private String getSupportAddress() {
+		return uiSettingsProvider.getSettings().getSupportAddress();
+	}
+
+	private void remove(Path reportPath) {
+		String ticketId = reportPath.getFileName().toString();
+		nextAttempts.remove(ticketId);
+		FileSystemUtils.deleteRecursively(reportPath.toFile());
+		queueSize.decrementAndGet();
+		log.info(String.format("Issue report sent [ticket: %s]", ticketId));
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.launch;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.service.ProxyService;
+import eu.openanalytics.shinyproxy.ProxyProbeEngine.ProbeResult;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.undertow.servlet.handlers.ServletRequestContext;
+
+/**
+ * Records where the time goes when a proxy is launched, so that a slow app can be traced to
+ * spec resolution, container creation, probing or the app itself.
+ * 
+ * All meters are tagged by spec id and published to the actuator endpoints (including /actuator/prometheus):
+ * <ul>
+ * <li>shinyproxy.launch.phase: time to reach each launch phase, since the previous phase (tag: phase)</li>
+ * <li>shinyproxy.launch.duration: total time of a launch (tag: outcome)</li>
+ * <li>shinyproxy.launch.wait: time request threads wait for a launch or for a proxy to be ready (tag: step)</li>
+ * <li>shinyproxy.launch.first.response: time from the start of a launch until the first app_direct response is complete</li>
+ * <li>shinyproxy.probe.attempts: number of probe attempts before a container responded, or gave up (tag: outcome)</li>
+ * <li>shinyproxy.proxies: number of proxies that are starting, up or stopping (tag: status)</li>
+ * </ul>
+ */
+@Component
+public class LaunchMetrics {
+
+	private static final ProxyStatus[] GAUGE_STATUSES = { ProxyStatus.Starting, ProxyStatus.Up, ProxyStatus.Stopping };
+
+	private final Logger log = LogManager.getLogger(LaunchMetrics.class);
+
+	// Launch start time of proxies that are up, but did not send their first response yet.
+	private final Map<String, Long> pendingFirstResponses = new ConcurrentHashMap<>();
+	private final Map<String, Map<ProxyStatus, AtomicInteger>> proxyCounts = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("launch-metrics-"));
+
+	@Inject
+	private MeterRegistry registry;
+
+	@Inject
+	private ProxyService proxyService;
+
+	@Inject
+	private Environment environment;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void init() {
+		long refreshInterval = Long.parseLong(environment.getProperty("proxy.metrics.refresh-interval", "5000"));
+		refreshExecutor.scheduleWithFixedDelay(this::refreshProxyCounts, 0, refreshInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		refreshExecutor.shutdownNow();
+	}
+
+	public void recordPhase(String specId, LaunchPhase phase, long nanos) {
+		Timer.builder("shinyproxy.launch.phase")
+			.description("Time to reach a launch phase, since the previous phase")
+			.tag("spec", specId)
+			.tag("phase", phase.name())
+			.publishPercentileHistogram()
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordLaunch(String specId, LaunchPhase outcome, long nanos) {
+		Timer.builder("shinyproxy.launch.duration")
+			.description("Total time of a proxy launch")
+			.tag("spec", specId)
+			.tag("outcome", outcome.name())
+			.publishPercentileHistogram()
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordWait(String specId, String step, long nanos) {
+		Timer.builder("shinyproxy.launch.wait")
+			.description("Time a request waits for a proxy launch or for a proxy to be ready")
+			.tag("spec", specId)
+			.tag("step", step)
+			.publishPercentileHistogram()
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordProbe(String specId, ProbeResult result) {
+		DistributionSummary.builder("shinyproxy.probe.attempts")
+			.description("Number of probe attempts until a container responded or the probe gave up")
+			.baseUnit("attempts")
+			.tag("spec", specId)
+			.tag("outcome", result.isSuccess() ? "success" : "failure")
+			.register(registry)
+			.record(result.getAttempts());
+	}
+
+	/**
+	 * Remember the start of the launch of a proxy, so that the time until its first response can be recorded.
+	 */
+	public void expectFirstResponse(Proxy proxy, long launchStartTime) {
+		pendingFirstResponses.put(proxy.getId(), launchStartTime);
+	}
+
+	/**
+	 * Called for every app_direct request. The first request of a launched proxy records the time
+	 * from the start of the launch until its response is complete.
+	 */
+	public void onAppRequest(Proxy proxy) {
+		if (proxy == null || pendingFirstResponses.isEmpty()) return;
+		Long launchStartTime = pendingFirstResponses.remove(proxy.getId());
+		if (launchStartTime == null) return;
+
+		String specId = proxy.getSpec().getId();
+		ServletRequestContext context = ServletRequestContext.current();
+		if (context == null) {
+			recordFirstResponse(specId, System.nanoTime() - launchStartTime);
+			return;
+		}
+		context.getExchange().addExchangeCompleteListener((exchange, next) -> {
+			recordFirstResponse(specId, System.nanoTime() - launchStartTime);
+			next.proceed();
+		});
+	}
+
+	private void recordFirstResponse(String specId, long nanos) {
+		Timer.builder("shinyproxy.launch.first.response")
+			.description("Time from the start of a launch until the first response of the app is complete")
+			.tag("spec", specId)
+			.publishPercentileHistogram()
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Count the proxies per spec and status. Counting periodically keeps the cost of a scrape independent
+	 * of the number of proxies.
+	 */
+	private void refreshProxyCounts() {
+		try {
+			Map<String, Map<ProxyStatus, Integer>> counts = new HashMap<>();
+			Set<String> proxyIds = new HashSet<>();
+			for (Proxy proxy: proxyService.getProxies(null, true)) {
+				proxyIds.add(proxy.getId());
+				if (proxy.getSpec() == null) continue;
+				ProxyStatus status = (proxy.getStatus() == ProxyStatus.New) ? ProxyStatus.Starting : proxy.getStatus();
+				counts.computeIfAbsent(proxy.getSpec().getId(), id -> new EnumMap<>(ProxyStatus.class)).merge(status, 1, Integer::sum);
+			}
+
+			for (String specId: counts.keySet()) {
+				proxyCounts.computeIfAbsent(specId, this::registerProxyGauges);
+			}
+			for (Map.Entry<String, Map<ProxyStatus, AtomicInteger>> entry: proxyCounts.entrySet()) {
+				Map<ProxyStatus, Integer> specCounts = counts.get(entry.getKey());
+				for (Map.Entry<ProxyStatus, AtomicInteger> count: entry.getValue().entrySet()) {
+					count.getValue().set((specCounts == null) ? 0 : specCounts.getOrDefault(count.getKey(), 0));
+				}
+			}
+
+			// Proxies that stopped without ever responding will not be asked for their first response anymore.
+			pendingFirstResponses.keySet().retainAll(proxyIds);
+		} catch (Exception e) {
+			log.warn("Failed to refresh proxy metrics", e);
+		}
+	}
+
+	private Map<ProxyStatus, AtomicInteger> registerProxyGauges(String specId) {
+		Map<ProxyStatus, AtomicInteger> specCounts = new EnumMap<>(ProxyStatus.class);
+		for (ProxyStatus status: GAUGE_STATUSES) {
+			AtomicInteger count = new AtomicInteger();
+			Gauge.builder("shinyproxy.proxies", count, AtomicInteger::get)
+				.description("Number of proxies by status")
+				.tag("spec", specId)
+				.tag("status", status.name())
+				.register(registry);
+			specCounts.put(status, count);
+		}
+		return specCounts;
+	}
+}
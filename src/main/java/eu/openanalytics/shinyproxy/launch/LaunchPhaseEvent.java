@@ -0,0 +1,51 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.launch;
+
+import org.springframework.context.ApplicationEvent;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+
+/**
+ * Published by components that take part in starting a proxy (e.g. the test strategy),
+ * so that the launch of that proxy can report its progress.
+ */
+public class LaunchPhaseEvent extends ApplicationEvent {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Proxy proxy;
+	private final LaunchPhase phase;
+
+	public LaunchPhaseEvent(Object source, Proxy proxy, LaunchPhase phase) {
+		super(source);
+		this.proxy = proxy;
+		this.phase = phase;
+	}
+
+	public Proxy getProxy() {
+		return proxy;
+	}
+
+	public LaunchPhase getPhase() {
+		return phase;
+	}
+}
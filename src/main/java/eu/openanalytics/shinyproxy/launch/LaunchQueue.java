@@ -0,0 +1,253 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.launch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Limits the number of proxies that are started at the same time, globally (proxy.launch.max-concurrent)
+ * and per spec (proxy.launch.max-concurrent-per-spec), so that a burst of launches does not overload the container backend.
+ * 
+ * Launches over the limit wait in a FIFO queue and are told their position while they wait.
+ * With proxy.launch.fair-queue, a free slot goes to the waiting user with the fewest running launches instead,
+ * so a single user cannot hold back everyone else.
+ * A limit of 0 (the default) means no limit.
+ */
+@Component
+public class LaunchQueue {
+
+	// A lock rather than a monitor: waiting on a monitor would pin virtual threads to their carrier thread.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition admission = lock.newCondition();
+
+	private final List<Entry> waiting = new ArrayList<>();
+	private final Map<String, Integer> runningBySpec = new HashMap<>();
+	private final Map<String, Integer> runningByUser = new HashMap<>();
+	private int running;
+
+	private int maxConcurrent;
+	private int maxConcurrentPerSpec;
+	private boolean fair;
+	private long queueTimeout;
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private MeterRegistry registry;
+
+	@PostConstruct
+	public void init() {
+		maxConcurrent = Integer.parseInt(environment.getProperty("proxy.launch.max-concurrent", "0"));
+		maxConcurrentPerSpec = Integer.parseInt(environment.getProperty("proxy.launch.max-concurrent-per-spec", "0"));
+		fair = Boolean.parseBoolean(environment.getProperty("proxy.launch.fair-queue", "false"));
+		queueTimeout = Long.parseLong(environment.getProperty("proxy.launch.queue-timeout", "600000"));
+
+		Gauge.builder("shinyproxy.launch.queue.depth", this, q -> q.getDepth())
+			.description("Number of launches waiting for a free launch slot")
+			.register(registry);
+		Gauge.builder("shinyproxy.launch.queue.running", this, q -> q.getRunning())
+			.description("Number of launches holding a launch slot")
+			.register(registry);
+	}
+
+	public boolean isEnabled() {
+		return maxConcurrent > 0 || maxConcurrentPerSpec > 0;
+	}
+
+	/**
+	 * The longest time a launch can spend in the queue, on top of the time it takes to start the proxy.
+	 */
+	public long getMaxWaitMs() {
+		return isEnabled() ? queueTimeout : 0;
+	}
+
+	/**
+	 * Wait for a launch slot. Every successful call must be followed by a call to {@link #release(ProxyLaunch)}.
+	 */
+	public void acquire(ProxyLaunch launch) throws InterruptedException {
+		if (!isEnabled()) return;
+
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+		Entry entry = new Entry(launch);
+		List<Entry> moved;
+		lock.lock();
+		try {
+			waiting.add(entry);
+			moved = admit();
+		} finally {
+			lock.unlock();
+		}
+		notifyPositions(moved);
+
+		try {
+			lock.lock();
+			try {
+				while (!entry.admitted) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) throw new IllegalStateException("Timed out waiting for a free launch slot");
+					admission.awaitNanos(remaining);
+				}
+			} finally {
+				lock.unlock();
+			}
+		} catch (InterruptedException | RuntimeException e) {
+			lock.lock();
+			try {
+				if (entry.admitted) {
+					// Admitted just in time: hand the slot back.
+					releaseSlot(launch);
+				} else {
+					waiting.remove(entry);
+				}
+				moved = admit();
+			} finally {
+				lock.unlock();
+			}
+			notifyPositions(moved);
+			throw e;
+		}
+
+		Timer.builder("shinyproxy.launch.queue.wait")
+			.description("Time a launch waited for a free launch slot")
+			.tag("spec", launch.getSpecId())
+			.publishPercentileHistogram()
+			.register(registry)
+			.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+
+	public void release(ProxyLaunch launch) {
+		if (!isEnabled()) return;
+		List<Entry> moved;
+		lock.lock();
+		try {
+			releaseSlot(launch);
+			moved = admit();
+		} finally {
+			lock.unlock();
+		}
+		notifyPositions(moved);
+	}
+
+	private int getDepth() {
+		lock.lock();
+		try {
+			return waiting.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int getRunning() {
+		lock.lock();
+		try {
+			return running;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void releaseSlot(ProxyLaunch launch) {
+		running--;
+		runningBySpec.merge(launch.getSpecId(), -1, Integer::sum);
+		runningByUser.merge(launch.getUserId(), -1, Integer::sum);
+		runningBySpec.remove(launch.getSpecId(), 0);
+		runningByUser.remove(launch.getUserId(), 0);
+	}
+
+	/**
+	 * Hand out free slots to waiting launches, and return the launches whose queue position changed.
+	 * Must be called while holding the lock.
+	 */
+	private List<Entry> admit() {
+		Entry next;
+		while ((next = selectNext()) != null) {
+			waiting.remove(next);
+			next.admitted = true;
+			running++;
+			runningBySpec.merge(next.launch.getSpecId(), 1, Integer::sum);
+			runningByUser.merge(next.launch.getUserId(), 1, Integer::sum);
+		}
+		admission.signalAll();
+
+		List<Entry> moved = new ArrayList<>();
+		for (int i = 0; i < waiting.size(); i++) {
+			Entry entry = waiting.get(i);
+			if (entry.position != i + 1) {
+				entry.position = i + 1;
+				moved.add(entry);
+			}
+		}
+		return moved;
+	}
+
+	private Entry selectNext() {
+		if (maxConcurrent > 0 && running >= maxConcurrent) return null;
+		Entry selected = null;
+		int selectedUserLoad = Integer.MAX_VALUE;
+		for (Iterator<Entry> it = waiting.iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (maxConcurrentPerSpec > 0 && runningBySpec.getOrDefault(entry.launch.getSpecId(), 0) >= maxConcurrentPerSpec) continue;
+			if (!fair) return entry;
+			int userLoad = runningByUser.getOrDefault(entry.launch.getUserId(), 0);
+			if (userLoad < selectedUserLoad) {
+				selected = entry;
+				selectedUserLoad = userLoad;
+			}
+		}
+		return selected;
+	}
+
+	private static void notifyPositions(List<Entry> entries) {
+		for (Entry entry: entries) {
+			entry.launch.updateQueuePosition(entry.position);
+		}
+	}
+
+	private static class Entry {
+
+		private final ProxyLaunch launch;
+		private boolean admitted;
+		private int position;
+
+		private Entry(ProxyLaunch launch) {
+			this.launch = launch;
+		}
+	}
+}
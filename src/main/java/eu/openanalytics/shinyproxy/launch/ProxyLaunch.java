@@ -0,0 +1,178 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.launch;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+
+/**
+ * A single, asynchronous launch of a proxy for a user.
+ * Subscribers (Server-Sent Event streams) receive the current phase immediately, and every later phase as soon as it is reached.
+ */
+public class ProxyLaunch {
+
+	private final String id;
+	private final String userId;
+	private final String specId;
+	private final CompletableFuture<Proxy> future = new CompletableFuture<>();
+	private final List<SseEmitter> subscribers = new CopyOnWriteArrayList<>();
+	private final long startTime = System.nanoTime();
+
+	// A lock rather than a monitor: phases are sent to the subscribers while holding it, and blocking I/O
+	// inside a monitor would pin virtual launch threads to their carrier thread.
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private LaunchPhase phase;
+	private String proxyId;
+	private String message;
+	private long phaseTime = startTime;
+	private int queuePosition;
+
+	public ProxyLaunch(String userId, String specId) {
+		this.id = UUID.randomUUID().toString();
+		this.userId = userId;
+		this.specId = specId;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getSpecId() {
+		return specId;
+	}
+
+	/**
+	 * The moment this launch was created, as given by {@link System#nanoTime()}.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public CompletableFuture<Proxy> getFuture() {
+		return future;
+	}
+
+	public LaunchPhase getPhase() {
+		lock.lock();
+		try {
+			return phase;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Move this launch to a later phase.
+	 * 
+	 * @return The time in nanoseconds since the previous phase was reached (or since the launch was created),
+	 * or -1 if the update was ignored because the launch already reached this phase or a later one.
+	 */
+	public long update(LaunchPhase newPhase, String newProxyId, String newMessage) {
+		lock.lock();
+		try {
+			if (phase != null && (phase.isFinal() || newPhase.ordinal() <= phase.ordinal())) return -1;
+			long now = System.nanoTime();
+			long elapsed = now - phaseTime;
+			phaseTime = now;
+			phase = newPhase;
+			if (newProxyId != null) proxyId = newProxyId;
+			message = newMessage;
+			for (SseEmitter emitter: subscribers) {
+				send(emitter);
+			}
+			return elapsed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Report the position of this launch in the launch queue (see {@link LaunchQueue}) to the subscribers.
+	 */
+	public void updateQueuePosition(int position) {
+		lock.lock();
+		try {
+			if (phase != null || position == queuePosition) return;
+			queuePosition = position;
+			for (SseEmitter emitter: subscribers) {
+				sendQueuePosition(emitter);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void subscribe(SseEmitter emitter) {
+		lock.lock();
+		try {
+			subscribers.add(emitter);
+			emitter.onCompletion(() -> subscribers.remove(emitter));
+			emitter.onTimeout(() -> subscribers.remove(emitter));
+			if (phase != null) send(emitter);
+			else if (queuePosition > 0) sendQueuePosition(emitter);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void sendQueuePosition(SseEmitter emitter) {
+		Map<String, Object> data = new HashMap<>();
+		data.put("launchId", id);
+		data.put("position", queuePosition);
+		try {
+			emitter.send(SseEmitter.event().name("queue").data(data));
+		} catch (IOException | IllegalStateException e) {
+			subscribers.remove(emitter);
+			emitter.completeWithError(e);
+		}
+	}
+
+	private void send(SseEmitter emitter) {
+		Map<String, String> data = new HashMap<>();
+		data.put("launchId", id);
+		data.put("phase", phase.name());
+		if (proxyId != null) data.put("proxyId", proxyId);
+		if (message != null) data.put("message", message);
+		try {
+			emitter.send(SseEmitter.event().name("phase").data(data));
+			if (phase.isFinal()) emitter.complete();
+		} catch (IOException | IllegalStateException e) {
+			// The browser went away: stop pushing to this stream.
+			subscribers.remove(emitter);
+			emitter.completeWithError(e);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.launch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.service.ProxyService;
+import eu.openanalytics.containerproxy.service.UserService;
+import eu.openanalytics.containerproxy.util.Retrying;
+import eu.openanalytics.shinyproxy.ExecutorFactory;
+import eu.openanalytics.shinyproxy.ProxyIndex;
+import eu.openanalytics.shinyproxy.ProxyPoolService;
+import eu.openanalytics.shinyproxy.SharedProxyService;
+import eu.openanalytics.shinyproxy.registry.ProxyRegistrySync;
+
+/**
+ * Starts proxies in the background, so that no request thread is held while a container boots.
+ * 
+ * Each launch gets an id which the browser uses to subscribe to a Server-Sent Events stream
+ * that reports the progress of the launch as soon as it changes.
+ * At most one launch is active per user and spec: launching again while a launch is ongoing returns the ongoing launch.
+ */
+@Component
+public class ProxyLaunchService {
+
+	private static final long LAUNCH_RETENTION_MS = 60000;
+
+	private final Logger log = LogManager.getLogger(ProxyLaunchService.class);
+
+	private final Map<String, ProxyLaunch> launches = new ConcurrentHashMap<>();
+	private final Map<String, ProxyLaunch> activeLaunches = new ConcurrentHashMap<>();
+
+	private ExecutorService launchExecutor;
+	private final ScheduledExecutorService cleanupExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("proxy-launch-cleanup-"));
+
+	@Inject
+	private ProxyService proxyService;
+
+	@Inject
+	private UserService userService;
+
+	@Inject
+	private ProxyPoolService poolService;
+
+	@Inject
+	private SharedProxyService sharedProxyService;
+
+	@Inject
+	private ProxyIndex proxyIndex;
+
+	@Inject
+	private LaunchMetrics launchMetrics;
+
+	@Inject
+	private LaunchQueue launchQueue;
+
+	@Inject
+	private ProxyRegistrySync proxyRegistrySync;
+
+	@Inject
+	private ExecutorFactory executorFactory;
+
+	@Inject
+	private Environment environment;
+
+	@PostConstruct
+	public void init() {
+		// Launches mostly wait for containers to start: with virtual threads, they do not hold on to platform threads.
+		launchExecutor = new DelegatingSecurityContextExecutorService(executorFactory.newExecutor("proxy-launch-"));
+	}
+
+	/**
+	 * Launch a proxy for the current user, or return the launch that is already ongoing for this user and spec.
+	 */
+	public ProxyLaunch launch(ProxySpec spec) {
+		String userId = userService.getCurrentUserId();
+		String key = getKey(userId, spec.getId());
+
+		ProxyLaunch newLaunch = new ProxyLaunch(userId, spec.getId());
+		ProxyLaunch launch = activeLaunches.putIfAbsent(key, newLaunch);
+		if (launch != null) return launch;
+		launch = newLaunch;
+
+		launches.put(launch.getId(), launch);
+		ProxyLaunch startedLaunch = launch;
+		launchExecutor.submit(() -> doLaunch(startedLaunch, spec, key));
+		return launch;
+	}
+
+	/**
+	 * Follow a proxy that was started outside of this service (e.g. via the API) until it is up.
+	 */
+	public ProxyLaunch follow(Proxy proxy) {
+		String key = getKey(proxy.getUserId(), proxy.getSpec().getId());
+
+		ProxyLaunch newLaunch = new ProxyLaunch(proxy.getUserId(), proxy.getSpec().getId());
+		ProxyLaunch launch = activeLaunches.putIfAbsent(key, newLaunch);
+		if (launch != null) return launch;
+		launch = newLaunch;
+
+		launches.put(launch.getId(), launch);
+		ProxyLaunch followedLaunch = launch;
+		launchExecutor.submit(() -> {
+			try {
+				if (!pollReady(proxy)) throw new RuntimeException("Proxy did not become available: " + proxy.getId());
+				launchMetrics.expectFirstResponse(proxy, followedLaunch.getStartTime());
+				update(followedLaunch, LaunchPhase.Up, proxy.getId(), null);
+				followedLaunch.getFuture().complete(proxy);
+			} catch (Throwable t) {
+				update(followedLaunch, LaunchPhase.Failed, proxy.getId(), t.getMessage());
+				followedLaunch.getFuture().completeExceptionally(t);
+			} finally {
+				finish(followedLaunch, key);
+			}
+		});
+		return launch;
+	}
+
+	public ProxyLaunch getLaunch(String launchId) {
+		if (launchId == null) return null;
+		return launches.get(launchId);
+	}
+
+	public SseEmitter subscribe(ProxyLaunch launch) {
+		SseEmitter emitter = new SseEmitter(getLaunchWaitMs() + LAUNCH_RETENTION_MS);
+		launch.subscribe(emitter);
+		return emitter;
+	}
+
+	/**
+	 * Wait until the given proxy is up, or the configured container wait time has passed.
+	 * If the proxy is being launched by this service, this waits on the launch itself instead of polling the proxy status.
+	 */
+	public boolean awaitReady(Proxy proxy) {
+		if (proxy == null) return false;
+		if (proxy.getStatus() == ProxyStatus.Up) return true;
+		if (proxy.getStatus() == ProxyStatus.Stopping || proxy.getStatus() == ProxyStatus.Stopped) return false;
+
+		long start = System.nanoTime();
+		try {
+			ProxyLaunch launch = activeLaunches.get(getKey(proxy.getUserId(), proxy.getSpec().getId()));
+			if (launch == null) return pollReady(proxy);
+
+			try {
+				launch.getFuture().get(getLaunchWaitMs(), TimeUnit.MILLISECONDS);
+			} catch (Exception e) {
+				// Launch failed or timed out: fall through to the status check below.
+			}
+			return (proxy.getStatus() == ProxyStatus.Up);
+		} finally {
+			launchMetrics.recordWait(proxy.getSpec().getId(), "ready", System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Wait for the result of the given launch, returning the proxy if it was started successfully.
+	 */
+	public Proxy awaitLaunch(ProxyLaunch launch) {
+		long start = System.nanoTime();
+		try {
+			Proxy proxy = launch.getFuture().get(getLaunchWaitMs(), TimeUnit.MILLISECONDS);
+			if (proxy == null) throw new IllegalStateException("Launch " + launch.getId() + " did not return a proxy");
+			return proxy;
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to start proxy for spec " + launch.getSpecId(), e);
+		} finally {
+			launchMetrics.recordWait(launch.getSpecId(), "launch", System.nanoTime() - start);
+		}
+	}
+
+	@EventListener
+	public void onLaunchPhase(LaunchPhaseEvent event) {
+		Proxy proxy = event.getProxy();
+		if (proxy == null || proxy.getSpec() == null) return;
+		ProxyLaunch launch = activeLaunches.get(getKey(proxy.getUserId(), proxy.getSpec().getId()));
+		if (launch != null) update(launch, event.getPhase(), proxy.getId(), null);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		launchExecutor.shutdownNow();
+		cleanupExecutor.shutdownNow();
+	}
+
+	private void doLaunch(ProxyLaunch launch, ProxySpec spec, String key) {
+		try {
+			if (!userService.canAccess(spec)) throw new AccessDeniedException(String.format("Cannot start proxy %s: access denied", spec.getId()));
+
+			Proxy proxy;
+			if (sharedProxyService.isShared(spec)) {
+				proxy = sharedProxyService.assign(spec, launch.getUserId());
+			} else {
+				// If another node is launching this proxy, wait for it instead of launching a second one.
+				proxy = proxyRegistrySync.claimOrAwait(launch.getUserId(), spec.getId(), getLaunchWaitMs());
+			}
+			if (proxy == null) {
+				try {
+					proxy = poolService.claim(spec);
+					if (proxy == null) {
+						launchQueue.acquire(launch);
+						try {
+							ProxySpec resolvedSpec = proxyService.resolveProxySpec(spec, null, null);
+							update(launch, LaunchPhase.SpecResolved, null, null);
+							proxy = proxyService.startProxy(resolvedSpec, false);
+						} finally {
+							launchQueue.release(launch);
+						}
+					}
+					proxyIndex.put(proxy);
+					proxyRegistrySync.register(proxy);
+				} finally {
+					proxyRegistrySync.releaseLaunch(launch.getUserId(), spec.getId());
+				}
+			}
+			launchMetrics.expectFirstResponse(proxy, launch.getStartTime());
+			update(launch, LaunchPhase.Up, proxy.getId(), null);
+			launch.getFuture().complete(proxy);
+		} catch (Throwable t) {
+			log.error(String.format("Failed to launch proxy [user: %s] [spec: %s]", launch.getUserId(), launch.getSpecId()), t);
+			update(launch, LaunchPhase.Failed, null, t.getMessage());
+			launch.getFuture().completeExceptionally(t);
+		} finally {
+			finish(launch, key);
+		}
+	}
+
+	private void update(ProxyLaunch launch, LaunchPhase phase, String proxyId, String message) {
+		long elapsed = launch.update(phase, proxyId, message);
+		if (elapsed < 0) return;
+		launchMetrics.recordPhase(launch.getSpecId(), phase, elapsed);
+		if (phase.isFinal()) launchMetrics.recordLaunch(launch.getSpecId(), phase, System.nanoTime() - launch.getStartTime());
+	}
+
+	private void finish(ProxyLaunch launch, String key) {
+		activeLaunches.remove(key, launch);
+		// Keep the launch around for a while, so that a browser that subscribes late still receives the outcome.
+		cleanupExecutor.schedule(() -> launches.remove(launch.getId()), LAUNCH_RETENTION_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean pollReady(Proxy proxy) {
+		int totalWaitMs = getTotalWaitMs();
+		int waitMs = Math.min(500, totalWaitMs);
+		int maxTries = totalWaitMs / waitMs;
+		Retrying.retry(i -> proxy.getStatus() != ProxyStatus.Starting && proxy.getStatus() != ProxyStatus.New, maxTries, waitMs);
+		return (proxy.getStatus() == ProxyStatus.Up);
+	}
+
+	/**
+	 * The longest a launch can take: the time it may wait in the launch queue, plus the time to start the proxy.
+	 */
+	private long getLaunchWaitMs() {
+		return launchQueue.getMaxWaitMs() + getTotalWaitMs();
+	}
+
+	private int getTotalWaitMs() {
+		return Integer.parseInt(environment.getProperty("proxy.container-wait-time", "20000"));
+	}
+
+	private static String getKey(String userId, String specId) {
+		return userId + "/" + specId;
+	}
+}
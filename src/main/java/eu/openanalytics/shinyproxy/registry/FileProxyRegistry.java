@@ -0,0 +1,151 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+
+import org.springframework.core.env.Environment;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A registry stored in a JSON file, which can be shared between nodes on a shared volume.
+ * 
+ * Every operation locks the file, so that nodes on the same volume see each other's changes.
+ * This is meant for small deployments and for testing: every operation reads and rewrites the whole file.
+ */
+public class FileProxyRegistry implements IProxyRegistry {
+
+	private final ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	private Path path;
+	private Path lockPath;
+
+	@Inject
+	private Environment environment;
+
+	@Override
+	public void initialize() {
+		path = Paths.get(environment.getProperty("proxy.registry.file.path", "proxy-registry.json")).toAbsolutePath();
+		lockPath = path.resolveSibling(path.getFileName() + ".lock");
+		try {
+			if (path.getParent() != null) Files.createDirectories(path.getParent());
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot create directory for proxy registry " + path, e);
+		}
+	}
+
+	@Override
+	public boolean isShared() {
+		return true;
+	}
+
+	@Override
+	public ProxyRecord find(String userId, String specId) {
+		return read(state -> state.find(userId, specId));
+	}
+
+	@Override
+	public List<ProxyRecord> getAll() {
+		return read(RegistryState::listRecords);
+	}
+
+	@Override
+	public void register(ProxyRecord record) {
+		update(state -> {
+			state.register(record);
+			return true;
+		});
+	}
+
+	@Override
+	public void unregister(String proxyId) {
+		update(state -> state.unregister(proxyId));
+	}
+
+	@Override
+	public void touch(String proxyId, long timestamp) {
+		update(state -> state.touch(proxyId, timestamp));
+	}
+
+	@Override
+	public boolean claimLaunch(String userId, String specId, String nodeId, long expiresAt) {
+		return update(state -> state.claimLaunch(userId, specId, nodeId, expiresAt));
+	}
+
+	@Override
+	public void releaseLaunch(String userId, String specId, String nodeId) {
+		update(state -> state.releaseLaunch(userId, specId, nodeId));
+	}
+
+	private <T> T read(Function<RegistryState, T> operation) {
+		return locked(() -> operation.apply(load()));
+	}
+
+	/**
+	 * Apply an operation to the registry, and save the registry if the operation returns true.
+	 */
+	private boolean update(Function<RegistryState, Boolean> operation) {
+		return locked(() -> {
+			RegistryState state = load();
+			boolean changed = operation.apply(state);
+			if (changed) save(state);
+			return changed;
+		});
+	}
+
+	private synchronized <T> T locked(IOOperation<T> operation) {
+		// File locks are held by the JVM, so threads of this node are serialized by synchronizing on the registry.
+		try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock = channel.lock()) {
+			return operation.run();
+		} catch (IOException e) {
+			throw new RuntimeException("Error accessing proxy registry " + path, e);
+		}
+	}
+
+	private RegistryState load() throws IOException {
+		if (!Files.exists(path) || Files.size(path) == 0) return new RegistryState();
+		return objectMapper.readValue(path.toFile(), RegistryState.class);
+	}
+
+	private void save(RegistryState state) throws IOException {
+		Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		objectMapper.writeValue(tempPath.toFile(), state);
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static interface IOOperation<T> {
+		public T run() throws IOException;
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+import java.util.List;
+
+/**
+ * A store of the proxies that are running on any ShinyProxy node, shared between the nodes
+ * so that a user can reach their proxy regardless of the node that receives the request.
+ * 
+ * The registry also arbitrates launches: before a node starts a proxy, it claims the user and spec,
+ * so that two nodes never start a proxy for the same user and spec at the same time.
+ */
+public interface IProxyRegistry {
+
+	/**
+	 * Prepare the registry for use, e.g. by creating its storage.
+	 */
+	public void initialize();
+
+	/**
+	 * Whether the registry is shared with other nodes. If not, it only ever contains the proxies of this node.
+	 */
+	public boolean isShared();
+
+	public ProxyRecord find(String userId, String specId);
+
+	public List<ProxyRecord> getAll();
+
+	/**
+	 * Add the given record, or replace the record with the same proxy id.
+	 * The last activity of an existing record is kept if it is more recent.
+	 */
+	public void register(ProxyRecord record);
+
+	public void unregister(String proxyId);
+
+	/**
+	 * Record activity on the given proxy, if it is more recent than the activity recorded so far.
+	 */
+	public void touch(String proxyId, long timestamp);
+
+	/**
+	 * Claim the launch of a proxy for the given user and spec.
+	 * 
+	 * @return True if the claim was acquired or renewed by the given node,
+	 * false if another node holds a claim that has not expired yet.
+	 */
+	public boolean claimLaunch(String userId, String specId, String nodeId, long expiresAt);
+
+	public void releaseLaunch(String userId, String specId, String nodeId);
+
+}
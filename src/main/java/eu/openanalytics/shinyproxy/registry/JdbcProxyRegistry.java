@@ -0,0 +1,212 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.springframework.core.env.Environment;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * A registry stored in a relational database, shared by all nodes that use the same database.
+ * 
+ * The tables are created if they do not exist yet. The JDBC driver of the database must be on the classpath.
+ * For a local stand-in, an H2 database in server mode can be used.
+ * Connections are pooled (up to proxy.registry.jdbc.max-connections), as lookups happen on request threads.
+ */
+public class JdbcProxyRegistry implements IProxyRegistry, AutoCloseable {
+
+	private static final String PROXY_COLUMNS = "proxy_id, user_id, spec_id, status, node_id, startup_timestamp, updated, last_activity, targets";
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private String url;
+	private HikariDataSource dataSource;
+
+	@Inject
+	private Environment environment;
+
+	@Override
+	public void initialize() {
+		url = environment.getProperty("proxy.registry.jdbc.url");
+		if (url == null) throw new IllegalArgumentException("Missing setting: proxy.registry.jdbc.url");
+
+		HikariConfig config = new HikariConfig();
+		config.setPoolName("proxy-registry");
+		config.setJdbcUrl(url);
+		config.setUsername(environment.getProperty("proxy.registry.jdbc.username"));
+		config.setPassword(environment.getProperty("proxy.registry.jdbc.password"));
+		config.setMaximumPoolSize(Integer.parseInt(environment.getProperty("proxy.registry.jdbc.max-connections", "10")));
+		dataSource = new HikariDataSource(config);
+
+		try (Connection connection = getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE IF NOT EXISTS shinyproxy_proxies ("
+					+ "proxy_id VARCHAR(255) PRIMARY KEY, user_id VARCHAR(255) NOT NULL, spec_id VARCHAR(255) NOT NULL,"
+					+ " status VARCHAR(32), node_id VARCHAR(255), startup_timestamp BIGINT, updated BIGINT, last_activity BIGINT,"
+					+ " targets VARCHAR(4000))");
+			statement.execute("CREATE TABLE IF NOT EXISTS shinyproxy_launch_claims ("
+					+ "user_id VARCHAR(255) NOT NULL, spec_id VARCHAR(255) NOT NULL, node_id VARCHAR(255) NOT NULL,"
+					+ " expires_at BIGINT NOT NULL, PRIMARY KEY (user_id, spec_id))");
+		} catch (SQLException e) {
+			throw new RuntimeException("Failed to initialize proxy registry at " + url, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (dataSource != null) dataSource.close();
+	}
+
+	@Override
+	public boolean isShared() {
+		return true;
+	}
+
+	@Override
+	public ProxyRecord find(String userId, String specId) {
+		List<ProxyRecord> records = query("SELECT " + PROXY_COLUMNS + " FROM shinyproxy_proxies WHERE user_id = ? AND spec_id = ?", userId, specId);
+		return records.isEmpty() ? null : records.get(0);
+	}
+
+	@Override
+	public List<ProxyRecord> getAll() {
+		return query("SELECT " + PROXY_COLUMNS + " FROM shinyproxy_proxies");
+	}
+
+	@Override
+	public void register(ProxyRecord record) {
+		String targets = writeTargets(record.getTargets());
+		int updated = update("UPDATE shinyproxy_proxies SET status = ?, node_id = ?, startup_timestamp = ?, updated = ?, targets = ? WHERE proxy_id = ?",
+				record.getStatus(), record.getNodeId(), record.getStartupTimestamp(), record.getUpdated(), targets, record.getProxyId());
+		if (updated == 0) {
+			update("INSERT INTO shinyproxy_proxies (" + PROXY_COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+					record.getProxyId(), record.getUserId(), record.getSpecId(), record.getStatus(), record.getNodeId(),
+					record.getStartupTimestamp(), record.getUpdated(), record.getLastActivity(), targets);
+		}
+	}
+
+	@Override
+	public void unregister(String proxyId) {
+		update("DELETE FROM shinyproxy_proxies WHERE proxy_id = ?", proxyId);
+	}
+
+	@Override
+	public void touch(String proxyId, long timestamp) {
+		update("UPDATE shinyproxy_proxies SET last_activity = ? WHERE proxy_id = ? AND last_activity < ?", timestamp, proxyId, timestamp);
+	}
+
+	@Override
+	public boolean claimLaunch(String userId, String specId, String nodeId, long expiresAt) {
+		// Renew our own claim, or take over an expired one. Otherwise, the primary key makes the insert fail if another node holds the claim.
+		int updated = update("UPDATE shinyproxy_launch_claims SET node_id = ?, expires_at = ? WHERE user_id = ? AND spec_id = ? AND (node_id = ? OR expires_at < ?)",
+				nodeId, expiresAt, userId, specId, nodeId, System.currentTimeMillis());
+		if (updated > 0) return true;
+		try (Connection connection = getConnection();
+				PreparedStatement statement = prepare(connection, "INSERT INTO shinyproxy_launch_claims (user_id, spec_id, node_id, expires_at) VALUES (?, ?, ?, ?)",
+						userId, specId, nodeId, expiresAt)) {
+			statement.executeUpdate();
+			return true;
+		} catch (SQLException e) {
+			// A constraint violation means that the claim is held by another node; anything else is a real error.
+			if (e.getSQLState() != null && e.getSQLState().startsWith("23")) return false;
+			throw new RuntimeException("Error claiming launch in proxy registry", e);
+		}
+	}
+
+	@Override
+	public void releaseLaunch(String userId, String specId, String nodeId) {
+		update("DELETE FROM shinyproxy_launch_claims WHERE user_id = ? AND spec_id = ? AND node_id = ?", userId, specId, nodeId);
+	}
+
+	private Connection getConnection() throws SQLException {
+		return dataSource.getConnection();
+	}
+
+	private int update(String sql, Object... params) {
+		try (Connection connection = getConnection(); PreparedStatement statement = prepare(connection, sql, params)) {
+			return statement.executeUpdate();
+		} catch (SQLException e) {
+			throw new RuntimeException("Error updating proxy registry", e);
+		}
+	}
+
+	private List<ProxyRecord> query(String sql, Object... params) {
+		try (Connection connection = getConnection(); PreparedStatement statement = prepare(connection, sql, params);
+				ResultSet resultSet = statement.executeQuery()) {
+			List<ProxyRecord> records = new ArrayList<>();
+			while (resultSet.next()) {
+				ProxyRecord record = new ProxyRecord();
+				record.setProxyId(resultSet.getString("proxy_id"));
+				record.setUserId(resultSet.getString("user_id"));
+				record.setSpecId(resultSet.getString("spec_id"));
+				record.setStatus(resultSet.getString("status"));
+				record.setNodeId(resultSet.getString("node_id"));
+				record.setStartupTimestamp(resultSet.getLong("startup_timestamp"));
+				record.setUpdated(resultSet.getLong("updated"));
+				record.setLastActivity(resultSet.getLong("last_activity"));
+				record.setTargets(readTargets(resultSet.getString("targets")));
+				records.add(record);
+			}
+			return records;
+		} catch (SQLException e) {
+			throw new RuntimeException("Error querying proxy registry", e);
+		}
+	}
+
+	private static PreparedStatement prepare(Connection connection, String sql, Object... params) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		for (int i = 0; i < params.length; i++) {
+			statement.setObject(i + 1, params[i]);
+		}
+		return statement;
+	}
+
+	private String writeTargets(Map<String, String> targets) {
+		try {
+			return objectMapper.writeValueAsString(targets);
+		} catch (Exception e) {
+			throw new RuntimeException("Error serializing proxy targets", e);
+		}
+	}
+
+	private Map<String, String> readTargets(String targets) {
+		if (targets == null || targets.isEmpty()) return new HashMap<>();
+		try {
+			return objectMapper.readValue(targets, new TypeReference<Map<String, String>>() {});
+		} catch (Exception e) {
+			throw new RuntimeException("Error deserializing proxy targets", e);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+/**
+ * A claim of a node on the launch of a proxy for a user and spec.
+ */
+public class LaunchClaim {
+
+	private String nodeId;
+	private long expiresAt;
+
+	public LaunchClaim() {
+		// For deserialization.
+	}
+
+	public LaunchClaim(String nodeId, long expiresAt) {
+		this.nodeId = nodeId;
+		this.expiresAt = expiresAt;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	public void setExpiresAt(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
+	public boolean canBeClaimedBy(String nodeId, long now) {
+		return this.nodeId.equals(nodeId) || expiresAt < now;
+	}
+}
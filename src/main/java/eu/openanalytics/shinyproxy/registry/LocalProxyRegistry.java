@@ -0,0 +1,76 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+import java.util.List;
+
+/**
+ * A registry that lives in the memory of a single node. This is the default, for deployments with one ShinyProxy node.
+ */
+public class LocalProxyRegistry implements IProxyRegistry {
+
+	private final RegistryState state = new RegistryState();
+
+	@Override
+	public void initialize() {
+		// Nothing to prepare.
+	}
+
+	@Override
+	public boolean isShared() {
+		return false;
+	}
+
+	@Override
+	public synchronized ProxyRecord find(String userId, String specId) {
+		return state.find(userId, specId);
+	}
+
+	@Override
+	public synchronized List<ProxyRecord> getAll() {
+		return state.listRecords();
+	}
+
+	@Override
+	public synchronized void register(ProxyRecord record) {
+		state.register(record);
+	}
+
+	@Override
+	public synchronized void unregister(String proxyId) {
+		state.unregister(proxyId);
+	}
+
+	@Override
+	public synchronized void touch(String proxyId, long timestamp) {
+		state.touch(proxyId, timestamp);
+	}
+
+	@Override
+	public synchronized boolean claimLaunch(String userId, String specId, String nodeId, long expiresAt) {
+		return state.claimLaunch(userId, specId, nodeId, expiresAt);
+	}
+
+	@Override
+	public synchronized void releaseLaunch(String userId, String specId, String nodeId) {
+		state.releaseLaunch(userId, specId, nodeId);
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The shared state of a proxy: enough to route requests to its containers from any node.
+ */
+public class ProxyRecord {
+
+	private String proxyId;
+	private String userId;
+	private String specId;
+	private String status;
+	private String nodeId;
+	private long startupTimestamp;
+	private long updated;
+	private long lastActivity;
+	private Map<String, String> targets = new HashMap<>();
+
+	public String getProxyId() {
+		return proxyId;
+	}
+
+	public void setProxyId(String proxyId) {
+		this.proxyId = proxyId;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public void setUserId(String userId) {
+		this.userId = userId;
+	}
+
+	public String getSpecId() {
+		return specId;
+	}
+
+	public void setSpecId(String specId) {
+		this.specId = specId;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	/**
+	 * The node that runs the proxy, and is responsible for stopping it.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public long getStartupTimestamp() {
+		return startupTimestamp;
+	}
+
+	public void setStartupTimestamp(long startupTimestamp) {
+		this.startupTimestamp = startupTimestamp;
+	}
+
+	/**
+	 * The last time the owning node confirmed that the proxy is still running.
+	 */
+	public long getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(long updated) {
+		this.updated = updated;
+	}
+
+	/**
+	 * The last time any node served a request for the proxy.
+	 */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	public void setLastActivity(long lastActivity) {
+		this.lastActivity = lastActivity;
+	}
+
+	/**
+	 * The targets of the proxy: a map of mapping paths to target URIs.
+	 */
+	public Map<String, String> getTargets() {
+		return targets;
+	}
+
+	public void setTargets(Map<String, String> targets) {
+		this.targets = targets;
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+import javax.inject.Inject;
+
+import org.springframework.beans.factory.config.AbstractFactoryBean;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+/**
+ * Creates the proxy registry selected by proxy.registry.type: local (the default), file or jdbc.
+ */
+@Service(value="proxyRegistry")
+@Primary
+public class ProxyRegistryFactory extends AbstractFactoryBean<IProxyRegistry> {
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private ApplicationContext applicationContext;
+
+	@Override
+	public Class<?> getObjectType() {
+		return IProxyRegistry.class;
+	}
+
+	@Override
+	protected IProxyRegistry createInstance() throws Exception {
+		String type = environment.getProperty("proxy.registry.type", "local");
+
+		IProxyRegistry registry;
+		switch (type) {
+		case "local":
+			registry = new LocalProxyRegistry();
+			break;
+		case "file":
+			registry = new FileProxyRegistry();
+			break;
+		case "jdbc":
+			registry = new JdbcProxyRegistry();
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid proxy registry type: " + type);
+		}
+
+		applicationContext.getAutowireCapableBeanFactory().autowireBean(registry);
+		registry.initialize();
+		return registry;
+	}
+
+	@Override
+	protected void destroyInstance(IProxyRegistry instance) throws Exception {
+		if (instance instanceof AutoCloseable) ((AutoCloseable) instance).close();
+	}
+}
@@ -0,0 +1,342 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.containerproxy.event.ProxyStartEvent;
+import eu.openanalytics.containerproxy.event.ProxyStopEvent;
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.service.HeartbeatService;
+import eu.openanalytics.containerproxy.service.ProxyService;
+import eu.openanalytics.containerproxy.util.ProxyMappingManager;
+import eu.openanalytics.shinyproxy.ProxyPoolService;
+import eu.openanalytics.shinyproxy.SharedProxyService;
+
+/**
+ * Keeps the {@link IProxyRegistry} in sync with the proxies of this node, and gives access to the proxies of other nodes.
+ * 
+ * Every proxy.registry.sync-interval, the proxies of this node are (re-)registered, and records of proxies that
+ * are gone are removed. Records that were not refreshed for proxy.registry.node-timeout belong to a node that is down,
+ * and are removed as well.
+ * 
+ * A proxy of another node is served by mapping its targets on this node. Requests on this node are reported to the
+ * registry as activity, which the owning node turns into heartbeats, so that the proxy is not stopped while in use.
+ */
+@Component
+public class ProxyRegistrySync {
+
+	private static final long CLAIM_POLL_MS = 500;
+
+	private final Logger log = LogManager.getLogger(ProxyRegistrySync.class);
+
+	// Proxies of other nodes that are mapped on this node, by proxy id and by user and spec.
+	private final Map<String, Proxy> remoteProxies = new ConcurrentHashMap<>();
+	private final Map<String, Proxy> remoteProxiesByKey = new ConcurrentHashMap<>();
+	private final Map<String, Long> remoteActivity = new ConcurrentHashMap<>();
+
+	// Users and specs without a remote proxy, and until when that answer is reused: lookups happen on request threads.
+	private final Map<String, Long> remoteMisses = new ConcurrentHashMap<>();
+
+	// The last activity of the proxies of this node that was turned into a heartbeat.
+	private final Map<String, Long> forwardedActivity = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService syncExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("proxy-registry-"));
+
+	private String nodeId;
+	private long nodeTimeout;
+	private long syncInterval;
+
+	@Inject
+	private IProxyRegistry registry;
+
+	@Inject
+	private ProxyService proxyService;
+
+	@Inject
+	private HeartbeatService heartbeatService;
+
+	@Inject
+	private ProxyMappingManager mappingManager;
+
+	@Inject
+	private Environment environment;
+
+	@PostConstruct
+	public void init() {
+		nodeId = environment.getProperty("proxy.registry.node-id", UUID.randomUUID().toString());
+		nodeTimeout = Long.parseLong(environment.getProperty("proxy.registry.node-timeout", "60000"));
+		syncInterval = Long.parseLong(environment.getProperty("proxy.registry.sync-interval", "10000"));
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		syncExecutor.scheduleWithFixedDelay(this::sync, 0, syncInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		syncExecutor.shutdownNow();
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Register a proxy of this node, e.g. right after it was launched, so that other nodes see it before the next sync.
+	 */
+	public void register(Proxy proxy) {
+		if (!isShareable(proxy)) return;
+		try {
+			registry.register(toRecord(proxy));
+		} catch (Exception e) {
+			log.warn(String.format("Failed to register proxy %s", proxy.getId()), e);
+		}
+	}
+
+	/**
+	 * Find an active proxy of the given user and spec that runs on another node, and map it on this node.
+	 * If there is none, the registry is not asked again for this user and spec until the next sync.
+	 */
+	public Proxy findRemote(String userId, String specId) {
+		return findRemote(userId, specId, true);
+	}
+
+	private Proxy findRemote(String userId, String specId, boolean useMisses) {
+		if (userId == null || specId == null || !registry.isShared()) return null;
+		String key = getKey(userId, specId);
+		Proxy proxy = remoteProxiesByKey.get(key);
+		if (proxy != null) return proxy;
+
+		long now = System.currentTimeMillis();
+		if (useMisses) {
+			Long missUntil = remoteMisses.get(key);
+			if (missUntil != null && missUntil > now) return null;
+		}
+
+		ProxyRecord record = registry.find(userId, specId);
+		if (record == null || !ProxyStatus.Up.name().equals(record.getStatus()) || isLocal(record.getProxyId())) {
+			remoteMisses.put(key, now + syncInterval);
+			return null;
+		}
+		remoteMisses.remove(key);
+		return adopt(record);
+	}
+
+	/**
+	 * Record a request for a proxy. This is a no-op for proxies of this node, whose activity is tracked locally.
+	 */
+	public void touch(Proxy proxy) {
+		if (remoteProxies.containsKey(proxy.getId())) remoteActivity.put(proxy.getId(), System.currentTimeMillis());
+	}
+
+	/**
+	 * Claim the launch of a proxy for the given user and spec, or wait for the node that holds the claim to launch it.
+	 * 
+	 * @return The proxy launched by another node, or null if this node acquired the claim and should launch the proxy.
+	 * The claim must then be released with {@link #releaseLaunch(String, String)}.
+	 */
+	public Proxy claimOrAwait(String userId, String specId, long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (true) {
+			// Another node may finish its launch at any moment: do not rely on an earlier miss.
+			Proxy proxy = findRemote(userId, specId, false);
+			if (proxy != null) return proxy;
+			if (registry.claimLaunch(userId, specId, nodeId, System.currentTimeMillis() + timeoutMs)) return null;
+			if (System.currentTimeMillis() > deadline) {
+				throw new RuntimeException(String.format("Timed out waiting for another node to launch proxy [user: %s] [spec: %s]", userId, specId));
+			}
+			try {
+				Thread.sleep(CLAIM_POLL_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for another node to launch proxy", e);
+			}
+		}
+	}
+
+	public void releaseLaunch(String userId, String specId) {
+		try {
+			registry.releaseLaunch(userId, specId, nodeId);
+		} catch (Exception e) {
+			log.warn(String.format("Failed to release launch claim [user: %s] [spec: %s]", userId, specId), e);
+		}
+	}
+
+	@EventListener
+	public void onProxyStart(ProxyStartEvent event) {
+		String userId = event.getUserId();
+		String specId = event.getSpecId();
+		if (userId == null || specId == null) return;
+		register(proxyService.findProxy(p -> userId.equals(p.getUserId()) && specId.equals(p.getSpec().getId()), true));
+	}
+
+	@EventListener
+	public void onProxyStop(ProxyStopEvent event) {
+		String userId = event.getUserId();
+		String specId = event.getSpecId();
+		if (userId == null || specId == null) return;
+		try {
+			ProxyRecord record = registry.find(userId, specId);
+			if (record != null && nodeId.equals(record.getNodeId())) registry.unregister(record.getProxyId());
+		} catch (Exception e) {
+			log.warn(String.format("Failed to unregister proxy [user: %s] [spec: %s]", userId, specId), e);
+		}
+	}
+
+	private void sync() {
+		try {
+			long now = System.currentTimeMillis();
+			Set<String> localIds = new HashSet<>();
+			for (Proxy proxy: proxyService.getProxies(null, true)) {
+				if (!isShareable(proxy)) continue;
+				localIds.add(proxy.getId());
+				registry.register(toRecord(proxy));
+			}
+
+			Map<String, ProxyRecord> records = new HashMap<>();
+			for (ProxyRecord record: registry.getAll()) {
+				boolean orphaned = nodeId.equals(record.getNodeId()) && !localIds.contains(record.getProxyId());
+				if (orphaned || record.getUpdated() < now - nodeTimeout) {
+					registry.unregister(record.getProxyId());
+				} else {
+					records.put(record.getProxyId(), record);
+					// Proxies that appeared on other nodes are looked up again on the next request.
+					if (!localIds.contains(record.getProxyId())) remoteMisses.remove(getKey(record.getUserId(), record.getSpecId()));
+				}
+			}
+			remoteMisses.values().removeIf(missUntil -> missUntil <= now);
+
+			// Activity on other nodes keeps the proxies of this node alive.
+			for (String proxyId: localIds) {
+				ProxyRecord record = records.get(proxyId);
+				if (record == null || record.getLastActivity() == 0) continue;
+				Long forwarded = forwardedActivity.put(proxyId, record.getLastActivity());
+				if (forwarded != null && forwarded < record.getLastActivity()) heartbeatService.heartbeatReceived(proxyId);
+			}
+			forwardedActivity.keySet().retainAll(localIds);
+
+			for (Proxy proxy: remoteProxies.values()) {
+				if (!records.containsKey(proxy.getId())) {
+					release(proxy);
+					continue;
+				}
+				Long lastActivity = remoteActivity.remove(proxy.getId());
+				if (lastActivity != null) registry.touch(proxy.getId(), lastActivity);
+			}
+		} catch (Exception e) {
+			log.warn("Failed to sync proxy registry", e);
+		}
+	}
+
+	private synchronized Proxy adopt(ProxyRecord record) {
+		Proxy existing = remoteProxies.get(record.getProxyId());
+		if (existing != null) return existing;
+
+		ProxySpec spec = proxyService.getProxySpec(record.getSpecId());
+		if (spec == null) return null;
+
+		Proxy proxy = new Proxy();
+		proxy.setId(record.getProxyId());
+		proxy.setUserId(record.getUserId());
+		proxy.setSpec(spec);
+		proxy.setStatus(ProxyStatus.Up);
+		proxy.setStartupTimestamp(record.getStartupTimestamp());
+		Map<String, URI> targets = new HashMap<>();
+		for (Map.Entry<String, String> target: record.getTargets().entrySet()) {
+			URI uri = URI.create(target.getValue());
+			targets.put(target.getKey(), uri);
+			mappingManager.addMapping(proxy.getId(), target.getKey(), uri);
+		}
+		proxy.setTargets(targets);
+
+		remoteProxies.put(proxy.getId(), proxy);
+		remoteProxiesByKey.put(getKey(proxy.getUserId(), record.getSpecId()), proxy);
+		log.info(String.format("Mapped proxy of node %s [user: %s] [spec: %s] [id: %s]", record.getNodeId(), proxy.getUserId(), spec.getId(), proxy.getId()));
+		return proxy;
+	}
+
+	private synchronized void release(Proxy proxy) {
+		remoteProxies.remove(proxy.getId());
+		remoteProxiesByKey.remove(getKey(proxy.getUserId(), proxy.getSpec().getId()), proxy);
+		remoteActivity.remove(proxy.getId());
+		for (String mapping: proxy.getTargets().keySet()) {
+			mappingManager.removeMapping(mapping);
+		}
+		proxy.setStatus(ProxyStatus.Stopped);
+	}
+
+	private ProxyRecord toRecord(Proxy proxy) {
+		ProxyRecord record = new ProxyRecord();
+		record.setProxyId(proxy.getId());
+		record.setUserId(proxy.getUserId());
+		record.setSpecId(proxy.getSpec().getId());
+		record.setStatus(proxy.getStatus().name());
+		record.setNodeId(nodeId);
+		record.setStartupTimestamp(proxy.getStartupTimestamp());
+		record.setUpdated(System.currentTimeMillis());
+		Map<String, String> targets = new HashMap<>();
+		for (Map.Entry<String, URI> target: proxy.getTargets().entrySet()) {
+			targets.put(target.getKey(), target.getValue().toString());
+		}
+		record.setTargets(targets);
+		return record;
+	}
+
+	private boolean isLocal(String proxyId) {
+		return proxyService.findProxy(p -> p.getId().equals(proxyId), true) != null;
+	}
+
+	private static boolean isShareable(Proxy proxy) {
+		return proxy != null && proxy.getUserId() != null && proxy.getSpec() != null
+				&& !ProxyPoolService.POOL_USER_ID.equals(proxy.getUserId())
+				&& !SharedProxyService.SHARED_USER_ID.equals(proxy.getUserId())
+				&& proxy.getStatus() != ProxyStatus.Stopping && proxy.getStatus() != ProxyStatus.Stopped;
+	}
+
+	private static String getKey(String userId, String specId) {
+		return userId + "/" + specId;
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The content of an in-memory or file-backed registry.
+ * This class is not thread-safe: the registry using it is responsible for locking.
+ */
+public class RegistryState {
+
+	private Map<String, ProxyRecord> proxies = new HashMap<>();
+	private Map<String, LaunchClaim> claims = new HashMap<>();
+
+	public Map<String, ProxyRecord> getProxies() {
+		return proxies;
+	}
+
+	public void setProxies(Map<String, ProxyRecord> proxies) {
+		this.proxies = proxies;
+	}
+
+	public Map<String, LaunchClaim> getClaims() {
+		return claims;
+	}
+
+	public void setClaims(Map<String, LaunchClaim> claims) {
+		this.claims = claims;
+	}
+
+	public ProxyRecord find(String userId, String specId) {
+		for (ProxyRecord record: proxies.values()) {
+			if (record.getUserId().equals(userId) && record.getSpecId().equals(specId)) return record;
+		}
+		return null;
+	}
+
+	public List<ProxyRecord> listRecords() {
+		return new ArrayList<>(proxies.values());
+	}
+
+	public void register(ProxyRecord record) {
+		ProxyRecord existing = proxies.get(record.getProxyId());
+		if (existing != null) record.setLastActivity(Math.max(record.getLastActivity(), existing.getLastActivity()));
+		proxies.put(record.getProxyId(), record);
+	}
+
+	public boolean unregister(String proxyId) {
+		return proxies.remove(proxyId) != null;
+	}
+
+	public boolean touch(String proxyId, long timestamp) {
+		ProxyRecord record = proxies.get(proxyId);
+		if (record == null || record.getLastActivity() >= timestamp) return false;
+		record.setLastActivity(timestamp);
+		return true;
+	}
+
+	public boolean claimLaunch(String userId, String specId, String nodeId, long expiresAt) {
+		String key = getClaimKey(userId, specId);
+		LaunchClaim claim = claims.get(key);
+		if (claim != null && !claim.canBeClaimedBy(nodeId, System.currentTimeMillis())) return false;
+		claims.put(key, new LaunchClaim(nodeId, expiresAt));
+		return true;
+	}
+
+	public boolean releaseLaunch(String userId, String specId, String nodeId) {
+		String key = getClaimKey(userId, specId);
+		LaunchClaim claim = claims.get(key);
+		if (claim == null || !claim.getNodeId().equals(nodeId)) return false;
+		claims.remove(key);
+		return true;
+	}
+
+	private static String getClaimKey(String userId, String specId) {
+		return userId + "/" + specId;
+	}
+}
@@ -0,0 +1,458 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.upstream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.DigestUtils;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+import eu.openanalytics.shinyproxy.image.ImagePrePuller;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * A cache of static app assets (e.g. shiny.min.js, jQuery, htmlwidgets) that are the same in every container of an image.
+ * 
+ * Caching is enabled per spec, by listing the paths to cache in its asset-cache-paths (e.g. /shared/**).
+ * Assets are keyed by container image and path, so all users of an image share one copy, and a hit does not touch the container.
+ * If the image is pre-pulled, the key also holds the id of the image version at the first asset request of the proxy,
+ * so that containers of a new version of a mutable tag do not get the assets of the old version, or a mix of both.
+ * The cache honours the Cache-Control and ETag headers of the app: responses marked no-store, no-cache or private are not cached,
+ * and expired entries are revalidated with a conditional request.
+ * 
+ * Entries live in a bounded memory tier; the least recently used entries move to an optional, bounded disk tier
+ * (proxy.asset-cache.disk-path) before they are dropped.
+ */
+@Component
+public class AssetCache {
+
+	private static final String CACHE_HEADER = "X-ShinyProxy-Cache";
+
+	private final Logger log = LogManager.getLogger(AssetCache.class);
+
+	private final AntPathMatcher pathMatcher = new AntPathMatcher();
+
+	private final Map<String, CachedAsset> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, CachedAsset> disk = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<Proxy, String> proxyImageIds = Collections.synchronizedMap(new WeakHashMap<>());
+	private long memoryBytes;
+	private long diskBytes;
+
+	private long memoryLimit;
+	private long diskLimit;
+	private long maxEntrySize;
+	private long defaultTtl;
+	private Path diskPath;
+
+	private Counter hits;
+	private Counter misses;
+	private Counter revalidations;
+	private Counter uncacheable;
+
+	@Inject
+	private ShinyProxySpecProvider specProvider;
+
+	@Inject
+	private UpstreamClient upstreamClient;
+
+	@Inject
+	private ResponseCompressor compressor;
+
+	@Inject
+	private ImagePrePuller imagePrePuller;
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private MeterRegistry registry;
+
+	@PostConstruct
+	public void init() throws IOException {
+		memoryLimit = Long.parseLong(environment.getProperty("proxy.asset-cache.memory-size", "67108864"));
+		diskLimit = Long.parseLong(environment.getProperty("proxy.asset-cache.disk-size", "536870912"));
+		maxEntrySize = Long.parseLong(environment.getProperty("proxy.asset-cache.max-entry-size", "5242880"));
+		defaultTtl = Long.parseLong(environment.getProperty("proxy.asset-cache.default-ttl", "3600000"));
+
+		String path = environment.getProperty("proxy.asset-cache.disk-path");
+		if (path != null) {
+			diskPath = Paths.get(path);
+			Files.createDirectories(diskPath);
+			// The index is not persisted, so files from a previous run are of no use.
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(diskPath, "*.asset")) {
+				for (Path file: files) Files.deleteIfExists(file);
+			}
+		}
+
+		hits = counter("hit");
+		misses = counter("miss");
+		revalidations = counter("revalidated");
+		uncacheable = counter("uncacheable");
+		Gauge.builder("shinyproxy.asset.cache.hit.ratio", this, c -> c.getHitRatio())
+			.description("Fraction of cacheable asset requests served from the cache")
+			.register(registry);
+		Gauge.builder("shinyproxy.asset.cache.size", this, c -> c.getSize(false))
+			.description("Size of the cached assets").baseUnit("bytes").tag("tier", "memory")
+			.register(registry);
+		Gauge.builder("shinyproxy.asset.cache.size", this, c -> c.getSize(true))
+			.description("Size of the cached assets").baseUnit("bytes").tag("tier", "disk")
+			.register(registry);
+	}
+
+	/**
+	 * Whether the given app_direct request is for an asset that should be served through this cache.
+	 */
+	public boolean canServe(Proxy proxy, String subPath, HttpServletRequest request) {
+		if (!"GET".equals(request.getMethod()) || request.getHeader("Upgrade") != null) return false;
+		ShinyProxySpec spec = specProvider.getShinyProxySpec(proxy.getSpec().getId());
+		if (spec == null || spec.getAssetCachePaths() == null) return false;
+		for (String pattern: spec.getAssetCachePaths()) {
+			if (pathMatcher.match(pattern, subPath)) return true;
+		}
+		return false;
+	}
+
+	public void serve(Proxy proxy, String mapping, String subPath, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String key = getKey(proxy, subPath, request);
+		long now = System.currentTimeMillis();
+
+		CachedAsset asset = get(key);
+		if (asset != null && asset.expires > now) {
+			byte[] data = load(asset);
+			if (data != null) {
+				hits.increment();
+				write(asset, data, "HIT", request, response);
+				return;
+			}
+			asset = null;
+		}
+
+		// Fetch a complete, uncompressed copy, or revalidate the expired copy.
+		Map<String, String> headerOverrides = new HashMap<>();
+		headerOverrides.put("Accept-Encoding", "identity");
+		headerOverrides.put("If-None-Match", (asset == null) ? null : asset.etag);
+		headerOverrides.put("If-Modified-Since", (asset == null || asset.etag != null) ? null : asset.lastModified);
+
+		try (CloseableHttpResponse upstreamResponse = upstreamClient.execute(proxy, mapping, subPath, request, headerOverrides)) {
+			int status = upstreamResponse.getStatusLine().getStatusCode();
+			if (asset != null && status == 304) {
+				EntityUtils.consume(upstreamResponse.getEntity());
+				byte[] data = load(asset);
+				if (data != null) {
+					asset.expires = now + getTtl(upstreamResponse);
+					revalidations.increment();
+					write(asset, data, "REVALIDATED", request, response);
+					return;
+				}
+			}
+
+			HttpEntity entity = upstreamResponse.getEntity();
+			if (status != 200 || entity == null || entity.getContentLength() > maxEntrySize || !isCacheable(upstreamResponse)) {
+				uncacheable.increment();
+				upstreamClient.copyResponse(request, upstreamResponse, response, null);
+				return;
+			}
+
+			BoundedBuffer buffer = new BoundedBuffer(maxEntrySize);
+			response.setHeader(CACHE_HEADER, "MISS");
+			upstreamClient.copyResponse(request, upstreamResponse, response, buffer);
+			if (buffer.isOverflowed()) {
+				uncacheable.increment();
+			} else {
+				misses.increment();
+				put(new CachedAsset(key, upstreamResponse, buffer.toByteArray(), now + getTtl(upstreamResponse)));
+			}
+		}
+	}
+
+	private String getKey(Proxy proxy, String subPath, HttpServletRequest request) {
+		String image = proxy.getSpec().getId();
+		if (proxy.getSpec().getContainerSpecs() != null && !proxy.getSpec().getContainerSpecs().isEmpty()) {
+			image = proxy.getSpec().getContainerSpecs().get(0).getImage();
+		}
+		// Pin the image version once per proxy: a later pull of the tag does not change the container that is already running.
+		String imageName = image;
+		String imageId = proxyImageIds.computeIfAbsent(proxy, p -> {
+			String id = imagePrePuller.getImageId(imageName);
+			return (id == null) ? "" : id;
+		});
+		if (!imageId.isEmpty()) image += "@" + imageId;
+		String key = image + "|" + subPath;
+		if (request.getQueryString() != null) key += "?" + request.getQueryString();
+		return key;
+	}
+
+	private void write(CachedAsset asset, byte[] data, String result, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		boolean compress = compressor.shouldCompress(request, asset.getHeader("Content-Type"), asset.getHeader("Content-Encoding"), data.length);
+		response.setHeader(CACHE_HEADER, result);
+		for (String[] header: asset.headers) {
+			if (compress && header[0].equalsIgnoreCase("ETag")) {
+				response.addHeader(header[0], ResponseCompressor.toCompressedETag(header[1]));
+			} else {
+				response.addHeader(header[0], header[1]);
+			}
+		}
+		// The client may hold either the plain or the compressed (weak) variant of the ETag.
+		if (ResponseCompressor.matchesETag(asset.etag, request.getHeader("If-None-Match"))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+		if (compress) {
+			data = compressor.getCompressed(asset.key, asset.getVersion(), data);
+			compressor.setHeaders(response);
+		}
+		response.setContentLength(data.length);
+		response.getOutputStream().write(data);
+	}
+
+	private static boolean isCacheable(HttpResponse response) {
+		if (response.containsHeader("Set-Cookie") || response.containsHeader("Vary")) return false;
+		for (Header header: response.getHeaders("Cache-Control")) {
+			for (HeaderElement element: header.getElements()) {
+				String name = element.getName().toLowerCase();
+				if (name.equals("no-store") || name.equals("no-cache") || name.equals("private")) return false;
+			}
+		}
+		return true;
+	}
+
+	private long getTtl(HttpResponse response) {
+		Long maxAge = null;
+		for (Header header: response.getHeaders("Cache-Control")) {
+			for (HeaderElement element: header.getElements()) {
+				String name = element.getName().toLowerCase();
+				if ((name.equals("s-maxage") || (name.equals("max-age") && maxAge == null)) && element.getValue() != null) {
+					try {
+						maxAge = Long.parseLong(element.getValue()) * 1000;
+					} catch (NumberFormatException ignore) {}
+				}
+			}
+		}
+		return (maxAge == null) ? defaultTtl : maxAge;
+	}
+
+	private synchronized CachedAsset get(String key) {
+		CachedAsset asset = memory.get(key);
+		return (asset == null) ? disk.get(key) : asset;
+	}
+
+	private byte[] load(CachedAsset asset) {
+		if (asset.data != null) return asset.data;
+		try {
+			return Files.readAllBytes(asset.file);
+		} catch (IOException e) {
+			synchronized (this) {
+				if (disk.remove(asset.key, asset)) diskBytes -= asset.size;
+			}
+			return null;
+		}
+	}
+
+	private void put(CachedAsset asset) {
+		List<CachedAsset> demoted = new ArrayList<>();
+		synchronized (this) {
+			CachedAsset previous = memory.put(asset.key, asset);
+			if (previous != null) memoryBytes -= previous.size;
+			memoryBytes += asset.size;
+			Iterator<CachedAsset> it = memory.values().iterator();
+			while (memoryBytes > memoryLimit && it.hasNext()) {
+				CachedAsset eldest = it.next();
+				it.remove();
+				memoryBytes -= eldest.size;
+				demoted.add(eldest);
+			}
+		}
+		for (CachedAsset eldest: demoted) {
+			demote(eldest);
+		}
+	}
+
+	private void demote(CachedAsset asset) {
+		if (diskPath == null) return;
+		Path file = diskPath.resolve(DigestUtils.md5DigestAsHex(asset.key.getBytes(StandardCharsets.UTF_8)) + ".asset");
+		try {
+			Files.write(file, asset.data);
+		} catch (IOException e) {
+			log.warn("Failed to write cached asset to disk: " + file, e);
+			return;
+		}
+
+		List<Path> evicted = new ArrayList<>();
+		synchronized (this) {
+			CachedAsset previous = disk.put(asset.key, asset.onDisk(file));
+			if (previous != null) diskBytes -= previous.size;
+			diskBytes += asset.size;
+			Iterator<CachedAsset> it = disk.values().iterator();
+			while (diskBytes > diskLimit && it.hasNext()) {
+				CachedAsset eldest = it.next();
+				it.remove();
+				diskBytes -= eldest.size;
+				evicted.add(eldest.file);
+			}
+		}
+		for (Path evictedFile: evicted) {
+			try {
+				Files.deleteIfExists(evictedFile);
+			} catch (IOException e) {
+				log.warn("Failed to delete cached asset: " + evictedFile, e);
+			}
+		}
+	}
+
+	private synchronized long getSize(boolean onDisk) {
+		return onDisk ? diskBytes : memoryBytes;
+	}
+
+	private double getHitRatio() {
+		double served = hits.count() + revalidations.count();
+		double total = served + misses.count();
+		return (total == 0) ? 0 : served / total;
+	}
+
+	private Counter counter(String result) {
+		return Counter.builder("shinyproxy.asset.cache.requests")
+			.description("Requests for cacheable assets, by cache result")
+			.tag("result", result)
+			.register(registry);
+	}
+
+	private static class CachedAsset {
+
+		private final String key;
+		private final List<String[]> headers;
+		private final byte[] data;
+		private final Path file;
+		private final long size;
+		private final String etag;
+		private final String lastModified;
+		private volatile long expires;
+
+		private CachedAsset(String key, HttpResponse response, byte[] data, long expires) {
+			this.key = key;
+			this.headers = new ArrayList<>();
+			for (Header header: response.getAllHeaders()) {
+				String name = header.getName();
+				if (UpstreamClient.isHopByHop(name) || name.equalsIgnoreCase("Date")) continue;
+				headers.add(new String[] { name, header.getValue() });
+			}
+			this.data = data;
+			this.file = null;
+			this.size = data.length;
+			this.etag = (response.getFirstHeader("ETag") == null) ? null : response.getFirstHeader("ETag").getValue();
+			this.lastModified = (response.getFirstHeader("Last-Modified") == null) ? null : response.getFirstHeader("Last-Modified").getValue();
+			this.expires = expires;
+		}
+
+		private CachedAsset(CachedAsset other, Path file) {
+			this.key = other.key;
+			this.headers = other.headers;
+			this.data = null;
+			this.file = file;
+			this.size = other.size;
+			this.etag = other.etag;
+			this.lastModified = other.lastModified;
+			this.expires = other.expires;
+		}
+
+		private CachedAsset onDisk(Path file) {
+			return new CachedAsset(this, file);
+		}
+
+		private String getHeader(String name) {
+			for (String[] header: headers) {
+				if (header[0].equalsIgnoreCase(name)) return header[1];
+			}
+			return null;
+		}
+
+		/**
+		 * Identifies the content of this asset, or null if the app gave no validator for it.
+		 */
+		private String getVersion() {
+			if (etag != null) return etag;
+			if (lastModified != null) return lastModified + "/" + size;
+			return null;
+		}
+	}
+
+	/**
+	 * Collects a response body up to a maximum size; larger bodies are passed on but not kept.
+	 */
+	private static class BoundedBuffer extends ByteArrayOutputStream {
+
+		private final long limit;
+		private boolean overflowed;
+
+		private BoundedBuffer(long limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			if (overflowed) return;
+			if (count + len > limit) {
+				overflowed = true;
+				reset();
+				return;
+			}
+			super.write(b, off, len);
+		}
+
+		private boolean isOverflowed() {
+			return overflowed;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.upstream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Compresses app responses on the upstream path (see {@link UpstreamClient} and {@link AssetCache}) for clients that accept gzip.
+ * 
+ * Only complete (200) responses of a compressible content type and of at least proxy.compression.min-size bytes are compressed,
+ * and only if the app did not compress them already. The ETag of a compressed response is made weak, as its bytes differ from the original.
+ * Requests that go through the regular proxy mapping (i.e. when proxy.upstream.enabled is off, and for websockets and requests with a body)
+ * are never compressed.
+ * Compressed variants of cached assets are kept in a bounded cache, so a shared asset is compressed once instead of for every user.
+ */
+@Component
+public class ResponseCompressor {
+
+	private static final String DEFAULT_MIME_TYPES = "text/html,text/css,text/plain,text/javascript,application/javascript,application/json,application/xml,image/svg+xml";
+
+	private final Logger log = LogManager.getLogger(ResponseCompressor.class);
+
+	private final Map<String, CompressedVariant> variants = new LinkedHashMap<>(16, 0.75f, true);
+	private long variantBytes;
+
+	private boolean enabled;
+	private int level;
+	private long minSize;
+	private long cacheSize;
+	private Set<String> mimeTypes;
+
+	private Counter bytesIn;
+	private Counter bytesOut;
+	private Counter variantHits;
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private MeterRegistry registry;
+
+	@PostConstruct
+	public void init() {
+		enabled = Boolean.parseBoolean(environment.getProperty("proxy.compression.enabled", "false"));
+		level = Integer.parseInt(environment.getProperty("proxy.compression.level", "6"));
+		minSize = Long.parseLong(environment.getProperty("proxy.compression.min-size", "1024"));
+		cacheSize = Long.parseLong(environment.getProperty("proxy.compression.cache-size", "33554432"));
+		mimeTypes = new HashSet<>(Arrays.asList(environment.getProperty("proxy.compression.mime-types", DEFAULT_MIME_TYPES).toLowerCase().split("\\s*,\\s*")));
+
+		bytesIn = Counter.builder("shinyproxy.compression.bytes").description("Bytes before and after compression").baseUnit("bytes").tag("stage", "in").register(registry);
+		bytesOut = Counter.builder("shinyproxy.compression.bytes").description("Bytes before and after compression").baseUnit("bytes").tag("stage", "out").register(registry);
+		variantHits = Counter.builder("shinyproxy.compression.cache.hits").description("Responses served from a cached compressed variant").register(registry);
+
+		if (enabled && !Boolean.parseBoolean(environment.getProperty("proxy.upstream.enabled", "false"))) {
+			log.warn("proxy.compression.enabled only applies to responses of the upstream client and the asset cache: "
+					+ "set proxy.upstream.enabled to compress app responses in general");
+		}
+	}
+
+	/**
+	 * Whether a response with the given properties should be compressed for the given request.
+	 * 
+	 * @param contentLength The length of the response, or -1 if it is not known in advance.
+	 */
+	public boolean shouldCompress(HttpServletRequest request, String contentType, String contentEncoding, long contentLength) {
+		if (!enabled || contentType == null) return false;
+		if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) return false;
+		if (contentLength >= 0 && contentLength < minSize) return false;
+		if (!acceptsGzip(request.getHeader("Accept-Encoding"))) return false;
+
+		int separator = contentType.indexOf(';');
+		String mimeType = (separator == -1) ? contentType : contentType.substring(0, separator);
+		return mimeTypes.contains(mimeType.trim().toLowerCase());
+	}
+
+	/**
+	 * Mark the response as gzip-encoded, and return a stream that compresses everything written to it into the response.
+	 * The caller must call {@link GZIPOutputStream#finish()} when done.
+	 */
+	public GZIPOutputStream compress(HttpServletResponse response) throws IOException {
+		setHeaders(response);
+		return new CountingGzipStream(response.getOutputStream(), level, bytesIn, bytesOut);
+	}
+
+	/**
+	 * Get the compressed variant of a cached asset, compressing and caching it if needed.
+	 * 
+	 * @param version Identifies the content of the asset (e.g. its ETag). If null, the variant is not cached.
+	 */
+	public byte[] getCompressed(String key, String version, byte[] data) throws IOException {
+		if (version != null) {
+			synchronized (variants) {
+				CompressedVariant variant = variants.get(key);
+				if (variant != null && variant.version.equals(version)) {
+					variantHits.increment();
+					return variant.data;
+				}
+			}
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + 64);
+		try (GZIPOutputStream gzip = new CountingGzipStream(out, level, bytesIn, bytesOut)) {
+			gzip.write(data);
+		}
+		byte[] compressed = out.toByteArray();
+
+		if (version != null && compressed.length <= cacheSize) {
+			synchronized (variants) {
+				CompressedVariant previous = variants.put(key, new CompressedVariant(version, compressed));
+				if (previous != null) variantBytes -= previous.data.length;
+				variantBytes += compressed.length;
+				Iterator<CompressedVariant> it = variants.values().iterator();
+				while (variantBytes > cacheSize && it.hasNext()) {
+					variantBytes -= it.next().data.length;
+					it.remove();
+				}
+			}
+		}
+		return compressed;
+	}
+
+	/**
+	 * The ETag to send with the compressed variant of a response that has the given ETag.
+	 */
+	public static String toCompressedETag(String etag) {
+		if (etag == null || etag.startsWith("W/")) return etag;
+		return "W/" + etag;
+	}
+
+	/**
+	 * Whether an If-None-Match header matches the given ETag, using the weak comparison that applies to If-None-Match.
+	 */
+	public static boolean matchesETag(String etag, String ifNoneMatch) {
+		if (etag == null || ifNoneMatch == null) return false;
+		if (ifNoneMatch.trim().equals("*")) return true;
+		String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+		for (String candidate: ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+			if (candidate.equals(opaqueTag)) return true;
+		}
+		return false;
+	}
+
+	public void setHeaders(HttpServletResponse response) {
+		response.setHeader("Content-Encoding", "gzip");
+		response.addHeader("Vary", "Accept-Encoding");
+	}
+
+	private static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) return false;
+		for (String coding: acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=") && param.substring(2).trim().matches("0(\\.0*)?")) return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private static class CompressedVariant {
+
+		private final String version;
+		private final byte[] data;
+
+		private CompressedVariant(String version, byte[] data) {
+			this.version = version;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * A gzip stream with a configurable level, that counts the bytes before and after compression.
+	 */
+	private static class CountingGzipStream extends GZIPOutputStream {
+
+		private final Counter bytesIn;
+		private final Counter bytesOut;
+
+		private CountingGzipStream(OutputStream out, int level, Counter bytesIn, Counter bytesOut) throws IOException {
+			super(out, 8192);
+			this.def.setLevel(level);
+			this.bytesIn = bytesIn;
+			this.bytesOut = bytesOut;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (def.finished()) return;
+			super.finish();
+			bytesIn.increment(def.getBytesRead());
+			bytesOut.increment(def.getBytesWritten());
+		}
+	}
+}
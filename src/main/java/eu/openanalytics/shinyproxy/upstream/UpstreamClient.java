@@ -0,0 +1,286 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.upstream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.pool.PoolStats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Forwards app_direct requests to the app containers over a pool of keep-alive connections,
+ * so that the many asset requests of a page load do not each open a new connection to the container.
+ * 
+ * Forwarding all requests through this client is opt-in (proxy.upstream.enabled); the {@link AssetCache} uses it regardless.
+ * It only handles GET and HEAD requests, which make up the bulk of a page load; websocket upgrades
+ * and requests with a body keep going through the regular proxy mapping.
+ */
+@Component
+public class UpstreamClient {
+
+	private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<>(Arrays.asList(
+			"connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailer",
+			"transfer-encoding", "upgrade", "host", "content-length"));
+
+	private final Logger log = LogManager.getLogger(UpstreamClient.class);
+
+	private boolean enabled;
+	private PoolingHttpClientConnectionManager connectionManager;
+	private CloseableHttpClient httpClient;
+
+	@Inject
+	private Environment environment;
+
+	@Inject
+	private MeterRegistry registry;
+
+	@Inject
+	private ResponseCompressor compressor;
+
+	@PostConstruct
+	public void init() {
+		enabled = Boolean.parseBoolean(environment.getProperty("proxy.upstream.enabled", "false"));
+
+		int maxPerContainer = Integer.parseInt(environment.getProperty("proxy.upstream.max-connections-per-container", "20"));
+		int maxTotal = Integer.parseInt(environment.getProperty("proxy.upstream.max-connections", "1000"));
+		long keepAlive = Long.parseLong(environment.getProperty("proxy.upstream.keep-alive", "30000"));
+		long idleTimeout = Long.parseLong(environment.getProperty("proxy.upstream.idle-timeout", "60000"));
+		int connectTimeout = Integer.parseInt(environment.getProperty("proxy.upstream.connect-timeout", "5000"));
+		int socketTimeout = Integer.parseInt(environment.getProperty("proxy.upstream.socket-timeout", "60000"));
+
+		connectionManager = new PoolingHttpClientConnectionManager(keepAlive, TimeUnit.MILLISECONDS);
+		connectionManager.setDefaultMaxPerRoute(maxPerContainer);
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setValidateAfterInactivity(2000);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectTimeout)
+				.setSocketTimeout(socketTimeout)
+				.setRedirectsEnabled(false)
+				.build();
+
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(keepAliveStrategy(keepAlive))
+				.evictExpiredConnections()
+				.evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+				.disableContentCompression()
+				.disableCookieManagement()
+				.disableRedirectHandling()
+				.disableAutomaticRetries()
+				.build();
+
+		registerGauge("leased", PoolStats::getLeased);
+		registerGauge("available", PoolStats::getAvailable);
+		registerGauge("pending", PoolStats::getPending);
+		registerGauge("max", PoolStats::getMax);
+		if (enabled) log.info(String.format("Pooled upstream connections enabled [max per container: %d] [max total: %d]", maxPerContainer, maxTotal));
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (httpClient == null) return;
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			log.warn("Failed to close upstream client", e);
+		}
+	}
+
+	/**
+	 * Whether the given request can be forwarded by this client, instead of by the regular proxy mapping.
+	 */
+	public boolean canForward(HttpServletRequest request) {
+		if (!enabled) return false;
+		if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) return false;
+		return request.getHeader("Upgrade") == null;
+	}
+
+	/**
+	 * Forward the request to the target of the given proxy mapping, and copy the response back to the client.
+	 * 
+	 * @param subPath The path of the request below the proxy mapping, starting with a slash.
+	 */
+	public void forward(Proxy proxy, String mapping, String subPath, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		try (CloseableHttpResponse upstreamResponse = execute(proxy, mapping, subPath, request, Collections.emptyMap())) {
+			copyResponse(request, upstreamResponse, response, null);
+		}
+	}
+
+	/**
+	 * Send the request to the target of the given proxy mapping, without handling the response.
+	 * The caller must close the returned response, which hands the connection back to the pool.
+	 * 
+	 * @param headerOverrides Headers to set on the upstream request, replacing those of the original request.
+	 * A null value removes the header.
+	 */
+	public CloseableHttpResponse execute(Proxy proxy, String mapping, String subPath, HttpServletRequest request, Map<String, String> headerOverrides) throws IOException {
+		URI target = proxy.getTargets().get(mapping);
+		if (target == null) throw new IllegalArgumentException("Unknown proxy mapping: " + mapping);
+
+		String path = target.getRawPath();
+		if (path == null || path.equals("/")) path = "";
+		else if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+		String requestURI = path + subPath;
+		if (request.getQueryString() != null) requestURI += "?" + request.getQueryString();
+
+		BasicHttpRequest upstreamRequest = new BasicHttpRequest(request.getMethod(), requestURI);
+		copyRequestHeaders(request, upstreamRequest);
+		for (Map.Entry<String, String> override: headerOverrides.entrySet()) {
+			if (override.getValue() == null) upstreamRequest.removeHeaders(override.getKey());
+			else upstreamRequest.setHeader(override.getKey(), override.getValue());
+		}
+
+		HttpHost host = new HttpHost(target.getHost(), target.getPort(), target.getScheme());
+		return httpClient.execute(host, upstreamRequest);
+	}
+
+	/**
+	 * Copy the status, headers and body of an upstream response to the client, compressing the body if the client accepts it.
+	 * Partial (206) and other non-200 responses are never compressed, as their headers describe the uncompressed body.
+	 * 
+	 * @param tap If not null, every chunk of the (uncompressed) body is also written to this stream.
+	 */
+	public void copyResponse(HttpServletRequest request, CloseableHttpResponse upstreamResponse, HttpServletResponse response, OutputStream tap) throws IOException {
+		HttpEntity entity = upstreamResponse.getEntity();
+		int status = upstreamResponse.getStatusLine().getStatusCode();
+		boolean compress = entity != null && status == HttpServletResponse.SC_OK && !upstreamResponse.containsHeader("Content-Range")
+				&& compressor.shouldCompress(request, getHeader(upstreamResponse, "Content-Type"), getHeader(upstreamResponse, "Content-Encoding"), entity.getContentLength());
+
+		response.setStatus(status);
+		for (Header header: upstreamResponse.getAllHeaders()) {
+			if (isHopByHop(header.getName())) continue;
+			if (compress && header.getName().equalsIgnoreCase("ETag")) {
+				response.addHeader(header.getName(), ResponseCompressor.toCompressedETag(header.getValue()));
+			} else {
+				response.addHeader(header.getName(), header.getValue());
+			}
+		}
+
+		if (entity == null) return;
+		GZIPOutputStream gzip = null;
+		OutputStream out;
+		if (compress) {
+			out = gzip = compressor.compress(response);
+		} else {
+			if (entity.getContentLength() >= 0) response.setContentLengthLong(entity.getContentLength());
+			out = response.getOutputStream();
+		}
+
+		// Reading the entity to the end hands the connection back to the pool.
+		try (InputStream in = entity.getContent()) {
+			byte[] buffer = new byte[8192];
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				out.write(buffer, 0, len);
+				if (tap != null) tap.write(buffer, 0, len);
+			}
+		}
+		if (gzip != null) gzip.finish();
+	}
+
+	private static String getHeader(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return (header == null) ? null : header.getValue();
+	}
+
+	public static boolean isHopByHop(String headerName) {
+		return HOP_BY_HOP_HEADERS.contains(headerName.toLowerCase());
+	}
+
+	private static void copyRequestHeaders(HttpServletRequest request, BasicHttpRequest upstreamRequest) {
+		for (String name: Collections.list(request.getHeaderNames())) {
+			if (isHopByHop(name)) continue;
+			Enumeration<String> values = request.getHeaders(name);
+			while (values.hasMoreElements()) {
+				upstreamRequest.addHeader(name, values.nextElement());
+			}
+		}
+		String forwardedFor = request.getHeader("X-Forwarded-For");
+		upstreamRequest.setHeader("X-Forwarded-For", (forwardedFor == null) ? request.getRemoteAddr() : forwardedFor + ", " + request.getRemoteAddr());
+		if (request.getHeader("X-Forwarded-Proto") == null) upstreamRequest.setHeader("X-Forwarded-Proto", request.getScheme());
+		if (request.getHeader("X-Forwarded-Host") == null) upstreamRequest.setHeader("X-Forwarded-Host", request.getServerName());
+		if (request.getHeader("X-Forwarded-Port") == null) upstreamRequest.setHeader("X-Forwarded-Port", String.valueOf(request.getServerPort()));
+	}
+
+	private static ConnectionKeepAliveStrategy keepAliveStrategy(long defaultKeepAlive) {
+		return (response, context) -> {
+			// Honour the timeout the container announces, if any.
+			BasicHeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator("Keep-Alive"));
+			while (it.hasNext()) {
+				HeaderElement element = it.nextElement();
+				if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+					try {
+						return Math.min(Long.parseLong(element.getValue()) * 1000, defaultKeepAlive);
+					} catch (NumberFormatException ignore) {}
+				}
+			}
+			return defaultKeepAlive;
+		};
+	}
+
+	private void registerGauge(String state, ToIntFunction<PoolStats> value) {
+		Gauge.builder("shinyproxy.upstream.connections", connectionManager, m -> value.applyAsInt(m.getTotalStats()))
+			.description("Pooled upstream connections to the app containers")
+			.tag("state", state)
+			.register(registry);
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Checks that {@link AppRoute} finds the same app names as the pattern that was used before it.
+ */
+public class AppRouteTest {
+
+	private static final Pattern APP_PATTERN = Pattern.compile(".*?/app[^/]*/([^/]*)/?.*");
+
+	private static final String[] URIS = {
+			"",
+			"/",
+			"/app",
+			"/app/",
+			"/app//x",
+			"/app/01_hello",
+			"/app/01_hello/",
+			"/app/01_hello/sub/path",
+			"/app_direct/01_hello/session/abc/websocket",
+			"/apple",
+			"/apple/",
+			"/apple/x",
+			"/apps/x/y",
+			"/ap/x",
+			"/foo/app/x",
+			"/foo/bar",
+			"/app/a/app/b",
+			"/app_direct/a/app_direct/b/c",
+			"/app/app/app",
+			"/application/x/app/y",
+			"http://localhost:8080/app/01_hello",
+			"http://localhost:8080/app_direct/01_hello/sub",
+			"http://apphost/x/y",
+			"https://host/context/app/x?y=/app/z"
+	};
+
+	@Test
+	public void testParityWithPattern() {
+		for (String uri: URIS) {
+			AppRoute route = AppRoute.parse(uri);
+			assertEquals(matchPattern(uri), route.getAppName(), "App name of " + uri);
+			assertEquals(route.getAppName() != null, route.isRoute(), "Route of " + uri);
+		}
+	}
+
+	@Test
+	public void testModeAndSubPath() {
+		AppRoute route = AppRoute.parse("/app_direct/01_hello/session/abc");
+		assertEquals("app_direct", route.getMode());
+		assertEquals("01_hello", route.getAppName());
+		assertEquals("/session/abc", route.getSubPath());
+
+		route = AppRoute.parse("/app/01_hello");
+		assertEquals("app", route.getMode());
+		assertEquals("", route.getSubPath());
+		assertFalse(route.isMode("app_direct"));
+
+		route = AppRoute.parse("/app//x");
+		assertEquals("", route.getAppName());
+		assertEquals("/x", route.getSubPath());
+
+		assertFalse(AppRoute.parse("/app").isRoute());
+		assertFalse(AppRoute.parse(null).isRoute());
+	}
+
+	@Test
+	public void testContextPathContainingApp() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/apps/app/01_hello/sub");
+		request.setContextPath("/apps");
+		AppRoute route = AppRoute.of(request);
+		assertEquals("app", route.getMode());
+		assertEquals("01_hello", route.getAppName());
+		assertEquals("/sub", route.getSubPath());
+		// The pattern matches the same name once the context path is left out.
+		assertEquals(matchPattern("/app/01_hello/sub"), route.getAppName());
+
+		request = new MockHttpServletRequest("GET", "/shinyapp");
+		request.setContextPath("/shinyapp");
+		assertFalse(AppRoute.of(request).isRoute());
+	}
+
+	@Test
+	public void testCachedOnRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/app/01_hello");
+		AppRoute route = AppRoute.of(request);
+		assertSame(route, AppRoute.of(request));
+
+		request.setRequestURI("/app/06_tabsets");
+		assertEquals("06_tabsets", AppRoute.of(request).getAppName());
+	}
+
+	private static String matchPattern(String uri) {
+		Matcher matcher = APP_PATTERN.matcher(uri);
+		return matcher.matches() ? matcher.group(1) : null;
+	}
+}
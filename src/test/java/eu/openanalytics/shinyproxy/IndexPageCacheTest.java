@@ -0,0 +1,135 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.openanalytics.containerproxy.auth.IAuthenticationBackend;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.service.ProxyService;
+import eu.openanalytics.containerproxy.service.UserService;
+import eu.openanalytics.containerproxy.spec.IProxySpecProvider;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+
+/**
+ * Checks the cached app lists against the specs that {@link ProxyService} considers accessible, which is what the main page showed before.
+ */
+public class IndexPageCacheTest {
+
+	private IAuthenticationBackend authenticationBackend;
+	private ProxyService proxyService;
+	private IndexPageCache indexPageCache;
+
+	@BeforeEach
+	public void setup() {
+		ShinyProxySpecProvider specProvider = new ShinyProxySpecProvider();
+		specProvider.setEnvironment(new MockEnvironment());
+		specProvider.setSpecs(Arrays.asList(
+				spec("app1"),
+				spec("app2", "scientists"),
+				spec("app3", "Mathematicians", "scientists"),
+				spec("app4", "admins")));
+
+		authenticationBackend = mock(IAuthenticationBackend.class);
+		UserService userService = new UserService();
+		ReflectionTestUtils.setField(userService, null, authenticationBackend, IAuthenticationBackend.class);
+		proxyService = new ProxyService();
+		ReflectionTestUtils.setField(proxyService, null, specProvider, IProxySpecProvider.class);
+		ReflectionTestUtils.setField(proxyService, null, userService, UserService.class);
+
+		indexPageCache = new IndexPageCache();
+		ReflectionTestUtils.setField(indexPageCache, "specProvider", specProvider);
+		ReflectionTestUtils.setField(indexPageCache, "authenticationBackend", authenticationBackend);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	public void testAuthenticatedUsers() {
+		assertSameApps(user());
+		assertSameApps(user("ROLE_SCIENTISTS"));
+		assertSameApps(user("ROLE_MATHEMATICIANS"));
+		assertSameApps(user("ROLE_SCIENTISTS", "ROLE_ADMINS"));
+		assertSameApps(user("ROLE_Scientists", "ROLE_OTHERS"));
+		// Authorities without the role prefix count as groups as well.
+		assertSameApps(user("admins"));
+	}
+
+	@Test
+	public void testAnonymousUsers() {
+		Authentication anonymous = new AnonymousAuthenticationToken("key", "anonymousUser", AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS"));
+
+		// Without authorization (e.g. authentication 'none'), anonymous users can access every spec.
+		when(authenticationBackend.hasAuthorization()).thenReturn(false);
+		assertSameApps(anonymous);
+		assertEquals(4, indexPageCache.getAppList(anonymous).getApps().length);
+
+		when(authenticationBackend.hasAuthorization()).thenReturn(true);
+		assertSameApps(anonymous);
+		assertEquals(0, indexPageCache.getAppList(anonymous).getApps().length);
+	}
+
+	@Test
+	public void testNoAuthentication() {
+		assertSameApps(null);
+	}
+
+	private void assertSameApps(Authentication authentication) {
+		SecurityContextHolder.getContext().setAuthentication(authentication);
+		List<String> expected = new ArrayList<>();
+		for (ProxySpec spec: proxyService.getProxySpecs(null, false)) expected.add(spec.getId());
+		List<String> actual = new ArrayList<>();
+		for (ProxySpec spec: indexPageCache.getAppList(authentication).getApps()) actual.add(spec.getId());
+		assertEquals(expected, actual, String.valueOf(authentication));
+	}
+
+	private static Authentication user(String... roles) {
+		return new UsernamePasswordAuthenticationToken("user", "", AuthorityUtils.createAuthorityList(roles));
+	}
+
+	private static ShinyProxySpec spec(String id, String... accessGroups) {
+		ShinyProxySpec spec = new ShinyProxySpec();
+		spec.setId(id);
+		spec.setContainerImage("openanalytics/shinyproxy-demo");
+		if (accessGroups.length > 0) spec.setAccessGroups(accessGroups);
+		return spec;
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.service.HeartbeatService;
+import eu.openanalytics.containerproxy.service.ProxyService;
+
+public class ProxyActivityTrackerTest {
+
+	private static final long IDLE_TIMEOUT = 60000;
+
+	private final List<Proxy> activeProxies = new ArrayList<>();
+
+	private ProxyService proxyService;
+	private HeartbeatService heartbeatService;
+	private ProxyActivityTracker activityTracker;
+
+	@BeforeEach
+	public void setup() {
+		proxyService = mock(ProxyService.class);
+		when(proxyService.getProxies(any(), eq(true))).thenReturn(activeProxies);
+		heartbeatService = mock(HeartbeatService.class);
+
+		activityTracker = new ProxyActivityTracker();
+		ReflectionTestUtils.setField(activityTracker, "proxyService", proxyService);
+		ReflectionTestUtils.setField(activityTracker, "heartbeatService", heartbeatService);
+		ReflectionTestUtils.setField(activityTracker, "windowMinutes", 15);
+		ReflectionTestUtils.setField(activityTracker, "idleTimeout", IDLE_TIMEOUT);
+		setNodeStartedAgo(3600000);
+	}
+
+	@Test
+	public void testProxyThatWasNeverOpenedIsReaped() {
+		Proxy proxy = createProxy("proxy1", ProxyStatus.Up, 2 * IDLE_TIMEOUT);
+		flush();
+		verify(proxyService).stopProxy(proxy, true, true);
+	}
+
+	@Test
+	public void testRecentlyStartedProxyIsKept() {
+		Proxy proxy = createProxy("proxy1", ProxyStatus.Up, IDLE_TIMEOUT / 2);
+		flush();
+		verify(proxyService, never()).stopProxy(any(), anyBoolean(), anyBoolean());
+		assertEquals(proxy.getStartupTimestamp(), activityTracker.getActivity(proxy.getId()).getLastSeen());
+		assertEquals(0, activityTracker.getActivity(proxy.getId()).getRequests());
+	}
+
+	@Test
+	public void testIdleTimeStartsAtNodeStartup() {
+		// The proxy was started long ago, but its traffic before the restart of this node is not known.
+		setNodeStartedAgo(IDLE_TIMEOUT / 2);
+		createProxy("proxy1", ProxyStatus.Up, 10 * IDLE_TIMEOUT);
+		flush();
+		verify(proxyService, never()).stopProxy(any(), anyBoolean(), anyBoolean());
+	}
+
+	@Test
+	public void testActiveProxyGetsHeartbeat() {
+		Proxy proxy = createProxy("proxy1", ProxyStatus.Up, 2 * IDLE_TIMEOUT);
+		activityTracker.track(proxy);
+		flush();
+		verify(heartbeatService).heartbeatReceived("proxy1");
+		verify(proxyService, never()).stopProxy(any(), anyBoolean(), anyBoolean());
+		assertEquals(1, activityTracker.getActivity(proxy.getId()).getRequests());
+	}
+
+	@Test
+	public void testStartingProxyIsNotTracked() {
+		createProxy("proxy1", ProxyStatus.Starting, 2 * IDLE_TIMEOUT);
+		flush();
+		verify(proxyService, never()).stopProxy(any(), anyBoolean(), anyBoolean());
+		assertNull(activityTracker.getActivity("proxy1"));
+	}
+
+	private void flush() {
+		ReflectionTestUtils.invokeMethod(activityTracker, "flush");
+	}
+
+	private void setNodeStartedAgo(long millis) {
+		ReflectionTestUtils.setField(activityTracker, "startTime", System.currentTimeMillis() - millis);
+	}
+
+	private Proxy createProxy(String id, ProxyStatus status, long startedAgo) {
+		ProxySpec spec = new ProxySpec();
+		spec.setId("spec");
+		Proxy proxy = new Proxy();
+		proxy.setId(id);
+		proxy.setUserId("user");
+		proxy.setSpec(spec);
+		proxy.setStatus(status);
+		proxy.setStartupTimestamp(System.currentTimeMillis() - startedAgo);
+		activeProxies.add(proxy);
+		return proxy;
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.service.ProxyService;
+
+public class ProxyIndexTest {
+
+	private final List<Proxy> activeProxies = new ArrayList<>();
+
+	private ProxyService proxyService;
+	private ProxyIndex proxyIndex;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		proxyService = mock(ProxyService.class);
+		when(proxyService.findProxy(any(), eq(true))).thenAnswer(invocation -> {
+			Predicate<Proxy> filter = invocation.getArgument(0);
+			return activeProxies.stream().filter(filter).findAny().orElse(null);
+		});
+		proxyIndex = new ProxyIndex();
+		ReflectionTestUtils.setField(proxyIndex, "proxyService", proxyService);
+	}
+
+	@Test
+	public void testStartingProxyIsFound() {
+		// A proxy started through the API is not indexed while it is starting.
+		Proxy proxy = createProxy("proxy-1", "user", "spec", ProxyStatus.Starting);
+		activeProxies.add(proxy);
+
+		assertNull(proxyIndex.findIndexed("user", "spec"));
+		assertSame(proxy, proxyIndex.find("user", "spec"));
+		assertEquals(0, proxyIndex.size());
+
+		// Once it is up, the next lookup indexes it and later lookups no longer scan.
+		proxy.setStatus(ProxyStatus.Up);
+		assertSame(proxy, proxyIndex.find("user", "spec"));
+		assertSame(proxy, proxyIndex.find("user", "spec"));
+		assertSame(proxy, proxyIndex.findIndexed("user", "spec"));
+		verify(proxyService, times(2)).findProxy(any(), eq(true));
+	}
+
+	@Test
+	public void testStoppedProxyIsDropped() {
+		Proxy proxy = createProxy("proxy-1", "user", "spec", ProxyStatus.Up);
+		proxyIndex.put(proxy);
+		assertSame(proxy, proxyIndex.findIndexed("user", "spec"));
+
+		proxy.setStatus(ProxyStatus.Stopped);
+		assertNull(proxyIndex.find("user", "spec"));
+		assertEquals(0, proxyIndex.size());
+	}
+
+	@Test
+	public void testPoolAndSharedProxiesAreNotIndexed() {
+		Proxy pooled = createProxy("proxy-1", ProxyPoolService.POOL_USER_ID, "spec", ProxyStatus.Up);
+		Proxy shared = createProxy("proxy-2", SharedProxyService.SHARED_USER_ID, "spec", ProxyStatus.Up);
+		activeProxies.add(pooled);
+		activeProxies.add(shared);
+
+		assertSame(pooled, proxyIndex.find(ProxyPoolService.POOL_USER_ID, "spec"));
+		assertSame(shared, proxyIndex.find(SharedProxyService.SHARED_USER_ID, "spec"));
+		assertEquals(0, proxyIndex.size());
+	}
+
+	private static Proxy createProxy(String id, String userId, String specId, ProxyStatus status) {
+		ProxySpec spec = new ProxySpec();
+		spec.setId(specId);
+		Proxy proxy = new Proxy();
+		proxy.setId(id);
+		proxy.setUserId(userId);
+		proxy.setSpec(spec);
+		proxy.setStatus(status);
+		return proxy;
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.openanalytics.shinyproxy.ProxyProbeEngine.ProbeResult;
+
+public class ProxyProbeEngineTest {
+
+	private static final long TIMEOUT_MS = 10000;
+
+	private ProxyProbeEngine probeEngine;
+	private ServerSocket server;
+
+	@BeforeEach
+	public void setup() throws Exception {
+		MockEnvironment environment = new MockEnvironment();
+		environment.setProperty("proxy.probe.initial-interval", "10");
+		environment.setProperty("proxy.probe.max-interval", "50");
+		environment.setProperty("proxy.container-wait-timeout", "500");
+		probeEngine = new ProxyProbeEngine();
+		ReflectionTestUtils.setField(probeEngine, "environment", environment);
+		probeEngine.init();
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		probeEngine.shutdown();
+		if (server != null) server.close();
+	}
+
+	@Test
+	public void testParseStatusCode() {
+		assertEquals(200, parse("HTTP/1.1 200 OK\r\n"));
+		assertEquals(302, parse("HTTP/1.0 302 Found\r\n"));
+		assertEquals(200, parse("HTTP/2 200 \r\n"));
+		assertEquals(404, parse("HTTP/1.1 404\r\n"));
+		assertEquals(503, parse("HTTP/1.1 503 Service Unavailable"));
+	}
+
+	@Test
+	public void testParsePartialStatusLine() {
+		assertNull(parse(""));
+		assertNull(parse("HTT"));
+		assertNull(parse("HTTP/1.1"));
+		assertNull(parse("HTTP/1.1 20"));
+		// The status code may continue.
+		assertNull(parse("HTTP/1.1 200"));
+	}
+
+	@Test
+	public void testParseNonHttpResponse() {
+		assertEquals(-1, parse("SSH-2.0-OpenSSH_8.9\r\n"));
+		assertEquals(-1, parse("+OK Redis 200\r\n"));
+		assertEquals(-1, parse("xxxxxxxx 200 OK\r\n"));
+		assertEquals(-1, parse("HTTP/ 200 OK\r\n"));
+		assertEquals(-1, parse("HTTP/1.1x200 OK\r\n"));
+		assertEquals(-1, parse("HTTP/1.1 2000 OK\r\n"));
+		assertEquals(-1, parse("HTTP/1.1 2x0 OK\r\n"));
+	}
+
+	@Test
+	public void testProbeSucceedsOnHttpResponse() throws Exception {
+		serve("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+		ProbeResult result = probe(TIMEOUT_MS).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertTrue(result.isSuccess());
+		assertEquals(1, result.getAttempts());
+	}
+
+	@Test
+	public void testProbeFailsOnNonHttpResponse() throws Exception {
+		// Something answers on the port, but it is not the app.
+		serve("SSH-2.0-OpenSSH_8.9\r\n");
+		ProbeResult result = probe(500).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertFalse(result.isSuccess());
+		assertTrue(result.getAttempts() > 1);
+	}
+
+	@Test
+	public void testUnresolvableHostFails() throws Exception {
+		ProbeResult result = probeEngine.probe(URI.create("http://unresolvable.invalid:3838"), 300).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertFalse(result.isSuccess());
+		assertTrue(result.getAttempts() >= 1);
+	}
+
+	@Test
+	public void testPendingProbesFailOnShutdown() throws Exception {
+		// Nothing listens on the port, so the probe keeps retrying.
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		int port = server.getLocalPort();
+		server.close();
+		CompletableFuture<ProbeResult> future = probeEngine.probe(URI.create("http://127.0.0.1:" + port), 60000);
+		Thread.sleep(100);
+		assertFalse(future.isDone());
+
+		probeEngine.shutdown();
+		assertFalse(future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).isSuccess());
+	}
+
+	@Test
+	public void testProbeAfterShutdownFails() throws Exception {
+		serve("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+		probeEngine.shutdown();
+		Thread engineThread = (Thread) ReflectionTestUtils.getField(probeEngine, "engineThread");
+		engineThread.join(TIMEOUT_MS);
+		assertFalse(engineThread.isAlive());
+
+		for (int i = 0; i < 100; i++) {
+			CompletableFuture<ProbeResult> future = probe(TIMEOUT_MS);
+			assertTrue(future.isDone());
+			assertFalse(future.get().isSuccess());
+		}
+	}
+
+	private CompletableFuture<ProbeResult> probe(long timeoutMs) {
+		return probeEngine.probe(URI.create("http://127.0.0.1:" + server.getLocalPort() + "/"), timeoutMs);
+	}
+
+	/**
+	 * Answer every connection with the given response, as soon as the request has arrived.
+	 */
+	private void serve(String response) throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread serverThread = new Thread(() -> {
+			while (!server.isClosed()) {
+				try (Socket socket = server.accept()) {
+					socket.getInputStream().read(new byte[1024]);
+					OutputStream out = socket.getOutputStream();
+					out.write(response.getBytes(StandardCharsets.US_ASCII));
+					out.flush();
+				} catch (IOException ignore) {}
+			}
+		});
+		serverThread.setDaemon(true);
+		serverThread.start();
+	}
+
+	private static Integer parse(String received) {
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		buffer.put(received.getBytes(StandardCharsets.US_ASCII));
+		return ProxyProbeEngine.parseStatusCode(buffer);
+	}
+}
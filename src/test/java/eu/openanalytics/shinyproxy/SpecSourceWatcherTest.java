@@ -0,0 +1,124 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.shinyproxy.SpecSourceWatcher.ReloadResult;
+
+public class SpecSourceWatcherTest {
+
+	@TempDir
+	Path tempDir;
+
+	private Path specsFile;
+	private ShinyProxySpecProvider specProvider;
+	private SpecSourceWatcher watcher;
+	private final List<Object> events = new ArrayList<>();
+
+	@BeforeEach
+	public void setup() {
+		specsFile = tempDir.resolve("specs.yml");
+		MockEnvironment environment = new MockEnvironment();
+		specProvider = new ShinyProxySpecProvider();
+		specProvider.setEnvironment(environment);
+
+		watcher = new SpecSourceWatcher();
+		ReflectionTestUtils.setField(watcher, "specProvider", specProvider);
+		ReflectionTestUtils.setField(watcher, "environment", environment);
+		ReflectionTestUtils.setField(watcher, "applicationEventPublisher", (ApplicationEventPublisher) events::add);
+		ReflectionTestUtils.setField(watcher, "sourcePath", specsFile);
+	}
+
+	@Test
+	public void testOnlyEditedSpecIsChanged() throws IOException {
+		writeSpecs(spec("app1", "openanalytics/shinyproxy-demo"), spec("app2", "openanalytics/shinyproxy-demo"));
+		ReloadResult result = watcher.reload();
+		assertEquals(Arrays.asList("app1", "app2"), result.getAddedSpecs());
+		ProxySpec app1 = specProvider.getSpec("app1");
+		ProxySpec app2 = specProvider.getSpec("app2");
+
+		writeSpecs(spec("app1", "openanalytics/shinyproxy-demo"), spec("app2", "openanalytics/shinyproxy-demo:2.0"));
+		result = watcher.reload();
+		assertEquals(Collections.emptyList(), result.getAddedSpecs());
+		assertEquals(Collections.singletonList("app2"), result.getChangedSpecs());
+		assertEquals(Collections.emptyList(), result.getRemovedSpecs());
+		assertEquals(2, events.size());
+
+		// The unchanged spec is not converted again.
+		assertSame(app1, specProvider.getSpec("app1"));
+		assertNotSame(app2, specProvider.getSpec("app2"));
+		assertEquals("openanalytics/shinyproxy-demo:2.0", specProvider.getSpec("app2").getContainerSpecs().get(0).getImage());
+	}
+
+	@Test
+	public void testReorderedSpecsAreNotChanged() throws IOException {
+		writeSpecs(spec("app1", "openanalytics/shinyproxy-demo"), spec("app2", "openanalytics/shinyproxy-demo"));
+		watcher.reload();
+
+		// The comment changes the size of the file, so that it is parsed again.
+		writeSpecs(spec("app2", "openanalytics/shinyproxy-demo"), spec("app1", "openanalytics/shinyproxy-demo") + "# reordered\n");
+		ReloadResult result = watcher.reload();
+		assertEquals(Collections.emptyList(), result.getChangedSpecs());
+		assertEquals(1, events.size());
+	}
+
+	@Test
+	public void testRemovedSpec() throws IOException {
+		writeSpecs(spec("app1", "openanalytics/shinyproxy-demo"), spec("app2", "openanalytics/shinyproxy-demo"));
+		watcher.reload();
+
+		writeSpecs(spec("app1", "openanalytics/shinyproxy-demo"));
+		ReloadResult result = watcher.reload();
+		assertEquals(Collections.emptyList(), result.getChangedSpecs());
+		assertEquals(Collections.singletonList("app2"), result.getRemovedSpecs());
+	}
+
+	private static String spec(String id, String image) {
+		return "  - id: " + id + "\n"
+				+ "    container-image: " + image + "\n";
+	}
+
+	private void writeSpecs(String... specs) throws IOException {
+		StringBuilder content = new StringBuilder("proxy:\n  specs:\n");
+		for (String spec: specs) content.append(spec);
+		Files.write(specsFile, content.toString().getBytes(StandardCharsets.UTF_8));
+	}
+}
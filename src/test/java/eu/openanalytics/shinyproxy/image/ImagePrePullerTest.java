@@ -0,0 +1,251 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+import eu.openanalytics.shinyproxy.SpecsReloadedEvent;
+import eu.openanalytics.shinyproxy.image.ImagePrePuller.ImageStats;
+import eu.openanalytics.shinyproxy.image.ImagePrePuller.ImageStatus;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Runs the pre-puller against a stand-in puller, which plays the part of both the registry and the container backend.
+ */
+public class ImagePrePullerTest {
+
+	private static final long TIMEOUT_MS = 10000;
+
+	private final StandInImagePuller imagePuller = new StandInImagePuller();
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final MockEnvironment environment = new MockEnvironment();
+	private ShinyProxySpecProvider specProvider;
+	private ImagePrePuller prePuller;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		environment.setProperty("proxy.image-pull.enabled", "true");
+		// Only the initial check: the tests trigger all other pulls themselves.
+		environment.setProperty("proxy.image-pull.check-interval", "3600000");
+		specProvider = new ShinyProxySpecProvider();
+		specProvider.setEnvironment(environment);
+
+		ObjectProvider<IImagePuller> imagePullerProvider = mock(ObjectProvider.class);
+		when(imagePullerProvider.getIfAvailable()).thenReturn(imagePuller);
+
+		prePuller = new ImagePrePuller();
+		ReflectionTestUtils.setField(prePuller, "imagePullerProvider", imagePullerProvider);
+		ReflectionTestUtils.setField(prePuller, "specProvider", specProvider);
+		ReflectionTestUtils.setField(prePuller, "registry", meterRegistry);
+		ReflectionTestUtils.setField(prePuller, "environment", environment);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		imagePuller.gate.countDown();
+		prePuller.shutdown();
+	}
+
+	@Test
+	public void testParallelismIsBounded() throws Exception {
+		environment.setProperty("proxy.image-pull.parallelism", "2");
+		specProvider.setSpecs(Arrays.asList(spec("app1", "image1"), spec("app2", "image2"), spec("app3", "image3"), spec("app4", "image4"), spec("app5", "image5")));
+		imagePuller.closeGate();
+		prePuller.init();
+
+		waitFor(() -> imagePuller.active.get() == 2);
+		Thread.sleep(200);
+		assertEquals(2, imagePuller.active.get());
+
+		imagePuller.gate.countDown();
+		waitForReady("image1", "image2", "image3", "image4", "image5");
+		assertEquals(2, imagePuller.maxActive.get());
+		for (int i = 1; i <= 5; i++) assertEquals(1, imagePuller.getPullCount("image" + i));
+	}
+
+	@Test
+	public void testQueuedPullsAreDeduplicated() throws Exception {
+		environment.setProperty("proxy.image-pull.parallelism", "1");
+		specProvider.setSpecs(Arrays.asList(spec("app1", "image1"), spec("app2", "image2")));
+		imagePuller.closeGate();
+		prePuller.init();
+		waitFor(() -> imagePuller.active.get() == 1);
+
+		// Both images are already queued or being pulled: the reload must not queue them again.
+		prePuller.onSpecsReloaded(new SpecsReloadedEvent(this, Collections.emptyList(), Arrays.asList("app1", "app2"), Collections.emptyList(), 0));
+
+		imagePuller.gate.countDown();
+		waitForReady("image1", "image2");
+		Thread.sleep(200);
+		assertEquals(1, imagePuller.getPullCount("image1"));
+		assertEquals(1, imagePuller.getPullCount("image2"));
+	}
+
+	@Test
+	public void testOutcomes() throws Exception {
+		specProvider.setSpecs(Collections.singletonList(spec("app1", "image1")));
+		prePuller.init();
+		waitFor(() -> getOutcomeCount("image1", "success") == 1);
+
+		// A new version of the tag is pushed to the registry.
+		imagePuller.push("image1");
+		reload(Collections.emptyList(), Collections.singletonList("app1"));
+		waitFor(() -> getOutcomeCount("image1", "updated") == 1);
+		assertEquals(imagePuller.getLatestId("image1"), getStats("image1").getImageId());
+
+		reload(Collections.emptyList(), Collections.singletonList("app1"));
+		waitFor(() -> getOutcomeCount("image1", "unchanged") == 1);
+		assertEquals(3, imagePuller.getPullCount("image1"));
+	}
+
+	@Test
+	public void testReloadOnlyPullsAddedAndChangedSpecs() throws Exception {
+		specProvider.setSpecs(Arrays.asList(spec("app1", "image1"), spec("app2", "image2")));
+		prePuller.init();
+		waitForReady("image1", "image2");
+
+		specProvider.setSpecs(Arrays.asList(spec("app1", "image1"), spec("app2", "image2:2.0"), spec("app3", "image3")));
+		reload(Collections.singletonList("app3"), Collections.singletonList("app2"));
+		waitForReady("image2:2.0", "image3");
+		Thread.sleep(200);
+
+		assertEquals(1, imagePuller.getPullCount("image1"));
+		assertEquals(1, imagePuller.getPullCount("image2"));
+		assertEquals(1, imagePuller.getPullCount("image2:2.0"));
+		assertEquals(1, imagePuller.getPullCount("image3"));
+	}
+
+	private void reload(List<String> addedSpecs, List<String> changedSpecs) {
+		prePuller.onSpecsReloaded(new SpecsReloadedEvent(this, addedSpecs, changedSpecs, Collections.emptyList(), 0));
+	}
+
+	private ImageStats getStats(String image) {
+		for (ImageStats stats: prePuller.getImageStats()) {
+			if (stats.getImage().equals(image)) return stats;
+		}
+		return null;
+	}
+
+	private long getOutcomeCount(String image, String outcome) {
+		Timer timer = meterRegistry.find("shinyproxy.image.pull").tag("image", image).tag("outcome", outcome).timer();
+		return (timer == null) ? 0 : timer.count();
+	}
+
+	private void waitForReady(String... images) throws InterruptedException {
+		for (String image: images) {
+			waitFor(() -> {
+				ImageStats stats = getStats(image);
+				return stats != null && stats.getStatus() == ImageStatus.Ready;
+			});
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for condition");
+			Thread.sleep(10);
+		}
+	}
+
+	private static ShinyProxySpec spec(String id, String image) {
+		ShinyProxySpec spec = new ShinyProxySpec();
+		spec.setId(id);
+		spec.setContainerImage(image);
+		return spec;
+	}
+
+	/**
+	 * Keeps the latest id of each image as "the registry" and the pulled id as "the backend".
+	 * Pulls can be held back by closing the gate, to observe how many run at once.
+	 */
+	private static class StandInImagePuller implements IImagePuller {
+
+		private final Map<String, Integer> versions = new ConcurrentHashMap<>();
+		private final Map<String, String> pulledIds = new ConcurrentHashMap<>();
+		private final Map<String, AtomicInteger> pullCounts = new ConcurrentHashMap<>();
+		private final AtomicInteger active = new AtomicInteger();
+		private final AtomicInteger maxActive = new AtomicInteger();
+		private volatile CountDownLatch gate = new CountDownLatch(0);
+
+		public void closeGate() {
+			gate = new CountDownLatch(1);
+		}
+
+		public void push(String image) {
+			versions.merge(image, 1, Integer::sum);
+		}
+
+		public String getLatestId(String image) {
+			return "sha256:" + image + "-" + versions.getOrDefault(image, 0);
+		}
+
+		public int getPullCount(String image) {
+			AtomicInteger count = pullCounts.get(image);
+			return (count == null) ? 0 : count.get();
+		}
+
+		@Override
+		public String pull(String image, PullProgressListener listener) throws Exception {
+			pullCounts.computeIfAbsent(image, i -> new AtomicInteger()).incrementAndGet();
+			int current = active.incrementAndGet();
+			maxActive.accumulateAndGet(current, Math::max);
+			try {
+				assertTrue(gate.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+				listener.onProgress("layer", 100, 100);
+				String imageId = getLatestId(image);
+				pulledIds.put(image, imageId);
+				return imageId;
+			} finally {
+				active.decrementAndGet();
+			}
+		}
+
+		@Override
+		public String getImageId(String image) {
+			return pulledIds.get(image);
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.issue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.BodyPart;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.SimpleMailMessage;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessagePreparator;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import eu.openanalytics.containerproxy.auth.IAuthenticationBackend;
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.service.LogService;
+import eu.openanalytics.shinyproxy.UISettingsProvider;
+import eu.openanalytics.shinyproxy.controllers.IssueController.IssueForm;
+
+/**
+ * Runs the queue against a stand-in mail sender, calling the sender directly instead of waiting for its schedule.
+ */
+public class IssueReportQueueTest {
+
+	@TempDir
+	Path tempDir;
+
+	private final MockEnvironment environment = new MockEnvironment();
+	private final StubMailSender mailSender = new StubMailSender();
+	private final LogService logService = mock(LogService.class);
+	private final List<IssueReportQueue> queues = new ArrayList<>();
+	private Path queuePath;
+
+	@BeforeEach
+	public void setup() {
+		queuePath = tempDir.resolve("queue");
+		environment.setProperty("proxy.support.mail-to-address", "support@example.com");
+		environment.setProperty("proxy.support.queue-path", queuePath.toString());
+		// The tests trigger all sends themselves.
+		environment.setProperty("proxy.support.send-interval", "3600000");
+		environment.setProperty("proxy.support.retry-delay", "0");
+	}
+
+	@AfterEach
+	public void tearDown() {
+		for (IssueReportQueue queue: queues) queue.shutdown();
+	}
+
+	@Test
+	public void testReportsAreSentInBatches() throws Exception {
+		environment.setProperty("proxy.support.batch-size", "2");
+		IssueReportQueue queue = createQueue();
+		List<String> ticketIds = new ArrayList<>();
+		for (int i = 0; i < 5; i++) ticketIds.add(enqueue(queue, form("user" + i), null));
+		assertEquals(5, queue.getQueueSize());
+		assertEquals(ticketIds, listPending());
+
+		send(queue);
+		assertEquals(3, queue.getQueueSize());
+		send(queue);
+		send(queue);
+
+		assertEquals(Arrays.asList(2, 2, 1), mailSender.batchSizes);
+		assertEquals(0, queue.getQueueSize());
+		assertTrue(listPending().isEmpty());
+		// Reports are sent in the order they were queued.
+		for (int i = 0; i < 5; i++) assertTrue(getBody(mailSender.sent.get(i)).contains("Ticket: " + ticketIds.get(i)));
+		assertEquals("support@example.com", mailSender.sent.get(0).getAllRecipients()[0].toString());
+	}
+
+	@Test
+	public void testFailedReportsAreRetried() throws Exception {
+		IssueReportQueue queue = createQueue();
+		String ticketId = enqueue(queue, form("user1"), null);
+
+		mailSender.failAll = true;
+		send(queue);
+		assertEquals(1, queue.getQueueSize());
+		assertEquals(1, readReport(ticketId).getAttempts());
+
+		mailSender.failAll = false;
+		send(queue);
+		assertEquals(0, queue.getQueueSize());
+		assertEquals(1, mailSender.sent.size());
+	}
+
+	@Test
+	public void testOnlyFailedMessagesOfBatchAreRetried() throws Exception {
+		IssueReportQueue queue = createQueue();
+		String ticketId1 = enqueue(queue, form("user1"), null);
+		String ticketId2 = enqueue(queue, form("user2"), null);
+
+		mailSender.failTicket = ticketId2;
+		send(queue);
+		assertEquals(Arrays.asList(ticketId2), listPending());
+		assertEquals(1, readReport(ticketId2).getAttempts());
+		assertTrue(getBody(mailSender.sent.get(0)).contains(ticketId1));
+
+		mailSender.failTicket = null;
+		send(queue);
+		assertTrue(listPending().isEmpty());
+	}
+
+	@Test
+	public void testRetriesAreDelayed() throws Exception {
+		environment.setProperty("proxy.support.retry-delay", "3600000");
+		IssueReportQueue queue = createQueue();
+		enqueue(queue, form("user1"), null);
+
+		mailSender.failAll = true;
+		send(queue);
+		mailSender.failAll = false;
+		send(queue);
+		assertEquals(Arrays.asList(1), mailSender.batchSizes);
+		assertEquals(1, queue.getQueueSize());
+	}
+
+	@Test
+	public void testGivesUpAfterMaxAttempts() throws Exception {
+		environment.setProperty("proxy.support.max-attempts", "3");
+		IssueReportQueue queue = createQueue();
+		String ticketId = enqueue(queue, form("user1"), null);
+
+		mailSender.failAll = true;
+		for (int i = 0; i < 3; i++) send(queue);
+		assertEquals(0, queue.getQueueSize());
+		assertTrue(listPending().isEmpty());
+		assertTrue(Files.exists(queuePath.resolve("failed").resolve(ticketId).resolve("report.json")));
+
+		send(queue);
+		assertEquals(3, mailSender.batchSizes.size());
+	}
+
+	@Test
+	public void testQueueIsBounded() throws Exception {
+		environment.setProperty("proxy.support.queue-size", "2");
+		IssueReportQueue queue = createQueue();
+		enqueue(queue, form("user1"), null);
+		enqueue(queue, form("user2"), null);
+		assertThrows(RuntimeException.class, () -> queue.enqueue(form("user3"), null));
+		assertEquals(2, listPending().size());
+
+		send(queue);
+		enqueue(queue, form("user3"), null);
+		assertEquals(1, queue.getQueueSize());
+	}
+
+	@Test
+	public void testQueuedReportsSurviveRestart() throws Exception {
+		IssueReportQueue queue = createQueue();
+		String ticketId1 = enqueue(queue, form("user1"), null);
+		String ticketId2 = enqueue(queue, form("user2"), null);
+		// A report that was still being written when ShinyProxy stopped.
+		Files.createDirectories(queuePath.resolve(".12345-abcdef01"));
+		queue.shutdown();
+
+		IssueReportQueue restartedQueue = createQueue();
+		assertEquals(2, restartedQueue.getQueueSize());
+		assertFalse(Files.exists(queuePath.resolve(".12345-abcdef01")));
+
+		send(restartedQueue);
+		assertEquals(2, mailSender.sent.size());
+		assertTrue(getBody(mailSender.sent.get(0)).contains(ticketId1));
+		assertTrue(getBody(mailSender.sent.get(1)).contains(ticketId2));
+		assertEquals(0, restartedQueue.getQueueSize());
+	}
+
+	@Test
+	public void testLogsAreCompressedAndAttached() throws Exception {
+		Path stdout = tempDir.resolve("stdout.log");
+		Path stderr = tempDir.resolve("stderr.log");
+		Files.write(stdout, "Listening on http://0.0.0.0:3838".getBytes(StandardCharsets.UTF_8));
+		Files.write(stderr, "Error in library(foo)".getBytes(StandardCharsets.UTF_8));
+		when(logService.getLogs(any(Proxy.class))).thenReturn(new String[] { stdout.toString(), stderr.toString() });
+
+		IssueReportQueue queue = createQueue();
+		String ticketId = enqueue(queue, form("user1"), new Proxy());
+		assertEquals(Arrays.asList(stdout.toString(), stderr.toString()), readReport(ticketId).getLogFiles());
+
+		send(queue);
+		List<String> attachments = new ArrayList<>();
+		Multipart content = (Multipart) mailSender.sent.get(0).getContent();
+		for (int i = 0; i < content.getCount(); i++) {
+			BodyPart part = content.getBodyPart(i);
+			if (part.getFileName() != null) attachments.add(part.getFileName());
+		}
+		assertEquals(Arrays.asList("stdout.log.gz", "stderr.log.gz"), attachments);
+	}
+
+	@Test
+	public void testNothingIsQueuedWithoutSupportAddress() throws Exception {
+		MockEnvironment noSupportEnvironment = new MockEnvironment();
+		noSupportEnvironment.setProperty("proxy.support.queue-path", queuePath.toString());
+		IssueReportQueue queue = createQueue(noSupportEnvironment);
+		assertThrows(RuntimeException.class, () -> queue.enqueue(form("user1"), null));
+		assertFalse(Files.exists(queuePath));
+	}
+
+	private IssueReportQueue createQueue() throws Exception {
+		return createQueue(environment);
+	}
+
+	@SuppressWarnings("unchecked")
+	private IssueReportQueue createQueue(MockEnvironment environment) throws Exception {
+		IAuthenticationBackend authenticationBackend = mock(IAuthenticationBackend.class);
+		UISettingsProvider uiSettingsProvider = new UISettingsProvider();
+		ReflectionTestUtils.setField(uiSettingsProvider, "environment", environment);
+		ReflectionTestUtils.setField(uiSettingsProvider, "authenticationBackend", authenticationBackend);
+		uiSettingsProvider.refresh();
+
+		ObjectProvider<JavaMailSender> mailSenderProvider = mock(ObjectProvider.class);
+		when(mailSenderProvider.getIfAvailable()).thenReturn(mailSender);
+		when(mailSenderProvider.getObject()).thenReturn(mailSender);
+
+		IssueReportQueue queue = new IssueReportQueue();
+		ReflectionTestUtils.setField(queue, "environment", environment);
+		ReflectionTestUtils.setField(queue, "logService", logService);
+		ReflectionTestUtils.setField(queue, "uiSettingsProvider", uiSettingsProvider);
+		ReflectionTestUtils.setField(queue, "mailSender", mailSenderProvider);
+		queue.init();
+		queues.add(queue);
+		return queue;
+	}
+
+	private static String enqueue(IssueReportQueue queue, IssueForm form, Proxy proxy) throws InterruptedException {
+		String ticketId = queue.enqueue(form, proxy);
+		// Reports are sent in the order of their ticket ids, which start with the time they were queued.
+		Thread.sleep(2);
+		return ticketId;
+	}
+
+	private static void send(IssueReportQueue queue) {
+		ReflectionTestUtils.invokeMethod(queue, "sendPending");
+	}
+
+	private List<String> listPending() throws Exception {
+		try (Stream<Path> paths = Files.list(queuePath)) {
+			return paths
+					.map(p -> p.getFileName().toString())
+					.filter(name -> !name.equals("failed"))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	private IssueReport readReport(String ticketId) throws Exception {
+		return new ObjectMapper().readValue(queuePath.resolve(ticketId).resolve("report.json").toFile(), IssueReport.class);
+	}
+
+	private static IssueForm form(String userName) {
+		IssueForm form = new IssueForm();
+		form.setUserName(userName);
+		form.setAppName("app1");
+		form.setCustomMessage("The app does not load");
+		return form;
+	}
+
+	private static String getBody(MimeMessage message) throws Exception {
+		Multipart content = (Multipart) message.getContent();
+		Multipart related = (Multipart) content.getBodyPart(0).getContent();
+		return (String) related.getBodyPart(0).getContent();
+	}
+
+	/**
+	 * Records the messages it sends. It can fail a whole batch, like a lost SMTP connection,
+	 * or only the report with a given ticket, like a rejected recipient.
+	 */
+	private static class StubMailSender implements JavaMailSender {
+
+		private final Session session = Session.getInstance(new Properties());
+		private final List<MimeMessage> sent = new ArrayList<>();
+		private final List<Integer> batchSizes = new ArrayList<>();
+		private volatile boolean failAll;
+		private volatile String failTicket;
+
+		@Override
+		public MimeMessage createMimeMessage() {
+			return new MimeMessage(session);
+		}
+
+		@Override
+		public MimeMessage createMimeMessage(InputStream contentStream) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void send(MimeMessage mimeMessage) {
+			send(new MimeMessage[] { mimeMessage });
+		}
+
+		@Override
+		public void send(MimeMessage... mimeMessages) {
+			batchSizes.add(mimeMessages.length);
+			Map<Object, Exception> failedMessages = new HashMap<>();
+			for (MimeMessage message: mimeMessages) {
+				if (failAll || (failTicket != null && contains(message, failTicket))) {
+					failedMessages.put(message, new RuntimeException("Rejected"));
+				} else {
+					sent.add(message);
+				}
+			}
+			if (!failedMessages.isEmpty()) throw new MailSendException(failedMessages);
+		}
+
+		@Override
+		public void send(MimeMessagePreparator mimeMessagePreparator) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void send(MimeMessagePreparator... mimeMessagePreparators) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void send(SimpleMailMessage simpleMessage) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void send(SimpleMailMessage... simpleMessages) {
+			throw new UnsupportedOperationException();
+		}
+
+		private static boolean contains(MimeMessage message, String text) {
+			try {
+				return getBody(message).contains(text);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Two registries on the same (in-memory H2) database stand in for two nodes.
+ */
+public class JdbcProxyRegistryTest {
+
+	private final String url = "jdbc:h2:mem:registry-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+	private final List<JdbcProxyRegistry> registries = new ArrayList<>();
+
+	@AfterEach
+	public void tearDown() {
+		for (JdbcProxyRegistry registry: registries) registry.close();
+	}
+
+	@Test
+	public void testNodesSeeEachOthersRecords() {
+		JdbcProxyRegistry node1 = createRegistry();
+		JdbcProxyRegistry node2 = createRegistry();
+
+		ProxyRecord record = RegistryStateTest.record("proxy-1", "user", "spec", 0);
+		record.setTargets(Collections.singletonMap("endpoint", "http://10.0.0.1:3838"));
+		node1.register(record);
+
+		ProxyRecord found = node2.find("user", "spec");
+		assertEquals("proxy-1", found.getProxyId());
+		assertEquals("http://10.0.0.1:3838", found.getTargets().get("endpoint"));
+
+		node2.touch("proxy-1", 500);
+		assertEquals(500, node1.find("user", "spec").getLastActivity());
+		// Activity never moves back.
+		node1.touch("proxy-1", 400);
+		assertEquals(500, node2.find("user", "spec").getLastActivity());
+
+		node2.unregister("proxy-1");
+		assertNull(node1.find("user", "spec"));
+		assertTrue(node1.getAll().isEmpty());
+	}
+
+	@Test
+	public void testClaimIsExclusiveBetweenNodes() {
+		JdbcProxyRegistry node1 = createRegistry();
+		JdbcProxyRegistry node2 = createRegistry();
+		long now = System.currentTimeMillis();
+
+		assertTrue(node1.claimLaunch("user", "spec", "node-1", now + 60000));
+		assertFalse(node2.claimLaunch("user", "spec", "node-2", now + 60000));
+		// The holder can renew its own claim.
+		assertTrue(node1.claimLaunch("user", "spec", "node-1", now + 120000));
+
+		node2.releaseLaunch("user", "spec", "node-2");
+		assertFalse(node2.claimLaunch("user", "spec", "node-2", now + 60000));
+
+		node1.releaseLaunch("user", "spec", "node-1");
+		assertTrue(node2.claimLaunch("user", "spec", "node-2", now + 60000));
+	}
+
+	@Test
+	public void testExpiredClaimCanBeTakenOver() {
+		JdbcProxyRegistry node1 = createRegistry();
+		JdbcProxyRegistry node2 = createRegistry();
+		long now = System.currentTimeMillis();
+
+		// E.g. node 1 went down while launching.
+		assertTrue(node1.claimLaunch("user", "spec", "node-1", now - 1));
+		assertTrue(node2.claimLaunch("user", "spec", "node-2", now + 60000));
+		assertFalse(node1.claimLaunch("user", "spec", "node-1", now + 60000));
+	}
+
+	@Test
+	public void testStateSurvivesRestart() {
+		JdbcProxyRegistry registry = createRegistry();
+		registry.register(RegistryStateTest.record("proxy-1", "user", "spec", 100));
+		assertTrue(registry.claimLaunch("user", "other-spec", "node-1", System.currentTimeMillis() + 60000));
+		registry.close();
+
+		JdbcProxyRegistry restarted = createRegistry();
+		assertEquals(100, restarted.find("user", "spec").getLastActivity());
+		assertFalse(restarted.claimLaunch("user", "other-spec", "node-2", System.currentTimeMillis() + 60000));
+	}
+
+	@Test
+	public void testOtherErrorsAreNotContention() {
+		JdbcProxyRegistry registry = createRegistry();
+		// Too long for the column: a data error (SQLState 22001), not a constraint violation.
+		String userId = String.join("", Collections.nCopies(300, "u"));
+		assertThrows(RuntimeException.class, () -> registry.claimLaunch(userId, "spec", "node-1", System.currentTimeMillis() + 60000));
+	}
+
+	private JdbcProxyRegistry createRegistry() {
+		MockEnvironment environment = new MockEnvironment();
+		environment.setProperty("proxy.registry.jdbc.url", url);
+		environment.setProperty("proxy.registry.jdbc.max-connections", "2");
+		JdbcProxyRegistry registry = new JdbcProxyRegistry();
+		ReflectionTestUtils.setField(registry, "environment", environment);
+		registry.initialize();
+		registries.add(registry);
+		return registry;
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.registry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class RegistryStateTest {
+
+	@Test
+	public void testClaimIsExclusiveUntilExpired() {
+		RegistryState state = new RegistryState();
+		long now = System.currentTimeMillis();
+
+		assertTrue(state.claimLaunch("user", "spec", "node-1", now + 60000));
+		assertFalse(state.claimLaunch("user", "spec", "node-2", now + 60000));
+		// The holder can renew its own claim.
+		assertTrue(state.claimLaunch("user", "spec", "node-1", now + 120000));
+		// Claims are per user and spec.
+		assertTrue(state.claimLaunch("user", "other-spec", "node-2", now + 60000));
+		assertTrue(state.claimLaunch("other-user", "spec", "node-2", now + 60000));
+	}
+
+	@Test
+	public void testExpiredClaimCanBeTakenOver() {
+		RegistryState state = new RegistryState();
+		long now = System.currentTimeMillis();
+
+		assertTrue(state.claimLaunch("user", "spec", "node-1", now - 1));
+		assertTrue(state.claimLaunch("user", "spec", "node-2", now + 60000));
+		assertFalse(state.claimLaunch("user", "spec", "node-1", now + 60000));
+		assertEquals("node-2", state.getClaims().get("user/spec").getNodeId());
+	}
+
+	@Test
+	public void testOnlyHolderReleasesClaim() {
+		RegistryState state = new RegistryState();
+		long now = System.currentTimeMillis();
+
+		assertTrue(state.claimLaunch("user", "spec", "node-1", now + 60000));
+		assertFalse(state.releaseLaunch("user", "spec", "node-2"));
+		assertFalse(state.claimLaunch("user", "spec", "node-2", now + 60000));
+
+		assertTrue(state.releaseLaunch("user", "spec", "node-1"));
+		assertFalse(state.releaseLaunch("user", "spec", "node-1"));
+		assertTrue(state.claimLaunch("user", "spec", "node-2", now + 60000));
+	}
+
+	@Test
+	public void testRegisterKeepsMostRecentActivity() {
+		RegistryState state = new RegistryState();
+		state.register(record("proxy-1", "user", "spec", 100));
+		assertTrue(state.touch("proxy-1", 200));
+		assertFalse(state.touch("proxy-1", 150));
+		assertFalse(state.touch("unknown", 300));
+
+		// A re-registration by the owning node does not reset activity reported by other nodes.
+		state.register(record("proxy-1", "user", "spec", 0));
+		assertEquals(200, state.find("user", "spec").getLastActivity());
+
+		state.register(record("proxy-1", "user", "spec", 300));
+		assertEquals(300, state.find("user", "spec").getLastActivity());
+	}
+
+	@Test
+	public void testFindAndUnregister() {
+		RegistryState state = new RegistryState();
+		state.register(record("proxy-1", "user", "spec-1", 0));
+		state.register(record("proxy-2", "user", "spec-2", 0));
+
+		assertEquals("proxy-2", state.find("user", "spec-2").getProxyId());
+		assertNull(state.find("other-user", "spec-1"));
+		assertEquals(2, state.listRecords().size());
+
+		assertTrue(state.unregister("proxy-1"));
+		assertFalse(state.unregister("proxy-1"));
+		assertNull(state.find("user", "spec-1"));
+		assertEquals(1, state.listRecords().size());
+	}
+
+	static ProxyRecord record(String proxyId, String userId, String specId, long lastActivity) {
+		ProxyRecord record = new ProxyRecord();
+		record.setProxyId(proxyId);
+		record.setUserId(userId);
+		record.setSpecId(specId);
+		record.setStatus("Up");
+		record.setNodeId("node-1");
+		record.setUpdated(System.currentTimeMillis());
+		record.setLastActivity(lastActivity);
+		return record;
+	}
+}
@@ -0,0 +1,303 @@
+/**
+ * ShinyProxy
+ *
+ * Copyright (C) 2016-2021 Open Analytics
+ *
+ * ===========================================================================
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the Apache License as published by
+ * The Apache Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * Apache License for more details.
+ *
+ * You should have received a copy of the Apache License
+ * along with this program.  If not, see <http://www.apache.org/licenses/>
+ */
+package eu.openanalytics.shinyproxy.upstream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider;
+import eu.openanalytics.shinyproxy.ShinyProxySpecProvider.ShinyProxySpec;
+import eu.openanalytics.shinyproxy.image.ImagePrePuller;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Serves assets through the cache, with an upstream client that answers from a queue of canned responses
+ * instead of an app container.
+ */
+public class AssetCacheTest {
+
+	private static final String MAPPING = "default";
+	private static final String ASSET_PATH = "/shared/shiny.min.js";
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final MockEnvironment environment = new MockEnvironment();
+	private final Queue<CloseableHttpResponse> upstreamResponses = new LinkedList<>();
+	private final List<Map<String, String>> upstreamRequests = new ArrayList<>();
+	private final Map<String, String> imageIds = new HashMap<>();
+	private ShinyProxySpecProvider specProvider;
+	private AssetCache assetCache;
+
+	@BeforeEach
+	public void setup() throws Exception {
+		ShinyProxySpec spec = new ShinyProxySpec();
+		spec.setId("app1");
+		spec.setContainerImage("openanalytics/shinyproxy-demo");
+		spec.setAssetCachePaths(new String[] { "/shared/**" });
+		specProvider = new ShinyProxySpecProvider();
+		specProvider.setEnvironment(environment);
+		specProvider.setSpecs(Collections.singletonList(spec));
+
+		ResponseCompressor compressor = new ResponseCompressor();
+		ReflectionTestUtils.setField(compressor, "environment", environment);
+		ReflectionTestUtils.setField(compressor, "registry", meterRegistry);
+		compressor.init();
+
+		UpstreamClient upstreamClient = spy(new UpstreamClient());
+		ReflectionTestUtils.setField(upstreamClient, "compressor", compressor);
+		doAnswer(invocation -> {
+			upstreamRequests.add(new HashMap<>(invocation.getArgument(4)));
+			return upstreamResponses.remove();
+		}).when(upstreamClient).execute(any(Proxy.class), anyString(), anyString(), any(HttpServletRequest.class), anyMap());
+
+		ImagePrePuller imagePrePuller = mock(ImagePrePuller.class);
+		when(imagePrePuller.getImageId(anyString())).thenAnswer(invocation -> imageIds.get(invocation.getArgument(0)));
+
+		assetCache = new AssetCache();
+		ReflectionTestUtils.setField(assetCache, "specProvider", specProvider);
+		ReflectionTestUtils.setField(assetCache, "upstreamClient", upstreamClient);
+		ReflectionTestUtils.setField(assetCache, "compressor", compressor);
+		ReflectionTestUtils.setField(assetCache, "imagePrePuller", imagePrePuller);
+		ReflectionTestUtils.setField(assetCache, "environment", environment);
+		ReflectionTestUtils.setField(assetCache, "registry", meterRegistry);
+	}
+
+	@Test
+	public void testCanServe() throws Exception {
+		assetCache.init();
+		Proxy proxy = createProxy("proxy1");
+		assertTrue(assetCache.canServe(proxy, ASSET_PATH, new MockHttpServletRequest("GET", ASSET_PATH)));
+		assertFalse(assetCache.canServe(proxy, "/session/data.json", new MockHttpServletRequest("GET", "/session/data.json")));
+		assertFalse(assetCache.canServe(proxy, ASSET_PATH, new MockHttpServletRequest("POST", ASSET_PATH)));
+	}
+
+	@Test
+	public void testMissThenHit() throws Exception {
+		assetCache.init();
+		Proxy proxy = createProxy("proxy1");
+		upstreamResponses.add(response(200, "asset-v1", "\"v1\"", "max-age=60"));
+
+		MockHttpServletResponse response = serve(proxy, null);
+		assertEquals("MISS", response.getHeader("X-ShinyProxy-Cache"));
+		assertEquals("asset-v1", response.getContentAsString());
+		// The cache fetches a complete, uncompressed copy, without the validators of the client.
+		assertEquals("identity", upstreamRequests.get(0).get("Accept-Encoding"));
+		assertNull(upstreamRequests.get(0).get("If-None-Match"));
+
+		response = serve(proxy, null);
+		assertEquals(200, response.getStatus());
+		assertEquals("HIT", response.getHeader("X-ShinyProxy-Cache"));
+		assertEquals("asset-v1", response.getContentAsString());
+		assertEquals("\"v1\"", response.getHeader("ETag"));
+
+		// A client that holds the current version gets a 304, still without a request to the container.
+		response = serve(proxy, "\"v1\"");
+		assertEquals(304, response.getStatus());
+		assertEquals("", response.getContentAsString());
+
+		assertEquals(1, upstreamRequests.size());
+		assertEquals(1, getCount("miss"));
+		assertEquals(2, getCount("hit"));
+	}
+
+	@Test
+	public void testExpiredEntryIsRevalidated() throws Exception {
+		assetCache.init();
+		Proxy proxy = createProxy("proxy1");
+		upstreamResponses.add(response(200, "asset-v1", "\"v1\"", "max-age=0"));
+		upstreamResponses.add(response(304, null, "\"v1\"", "max-age=60"));
+		serve(proxy, null);
+		Thread.sleep(5);
+
+		MockHttpServletResponse response = serve(proxy, null);
+		assertEquals(200, response.getStatus());
+		assertEquals("REVALIDATED", response.getHeader("X-ShinyProxy-Cache"));
+		assertEquals("asset-v1", response.getContentAsString());
+		assertEquals("\"v1\"", upstreamRequests.get(1).get("If-None-Match"));
+
+		// The 304 of the container renewed the entry.
+		response = serve(proxy, null);
+		assertEquals("HIT", response.getHeader("X-ShinyProxy-Cache"));
+		assertEquals(2, upstreamRequests.size());
+		assertEquals(1, getCount("revalidated"));
+	}
+
+	@Test
+	public void testChangedAssetReplacesExpiredEntry() throws Exception {
+		assetCache.init();
+		Proxy proxy = createProxy("proxy1");
+		upstreamResponses.add(response(200, "asset-v1", "\"v1\"", "max-age=0"));
+		upstreamResponses.add(response(200, "asset-v2", "\"v2\"", "max-age=60"));
+		serve(proxy, null);
+		Thread.sleep(5);
+
+		MockHttpServletResponse response = serve(proxy, null);
+		assertEquals("MISS", response.getHeader("X-ShinyProxy-Cache"));
+		assertEquals("asset-v2", response.getContentAsString());
+
+		response = serve(proxy, null);
+		assertEquals("HIT", response.getHeader("X-ShinyProxy-Cache"));
+		assertEquals("asset-v2", response.getContentAsString());
+		assertEquals(0, getCount("revalidated"));
+	}
+
+	@Test
+	public void testUncacheableResponsesAreCountedSeparately() throws Exception {
+		assetCache.init();
+		Proxy proxy = createProxy("proxy1");
+		upstreamResponses.add(response(200, "private", "\"v1\"", "no-store"));
+		upstreamResponses.add(response(404, "not found", null, null));
+		upstreamResponses.add(response(200, "asset-v1", "\"v1\"", "max-age=60"));
+
+		MockHttpServletResponse response = serve(proxy, null);
+		assertEquals("private", response.getContentAsString());
+		assertNull(response.getHeader("X-ShinyProxy-Cache"));
+		response = serve(proxy, null);
+		assertEquals(404, response.getStatus());
+		serve(proxy, null);
+		serve(proxy, null);
+
+		assertEquals(3, upstreamRequests.size());
+		assertEquals(2, getCount("uncacheable"));
+		assertEquals(1, getCount("miss"));
+		assertEquals(1, getCount("hit"));
+		assertEquals(0.5, meterRegistry.find("shinyproxy.asset.cache.hit.ratio").gauge().value());
+	}
+
+	@Test
+	public void testNewImageVersionDoesNotShareAssets() throws Exception {
+		assetCache.init();
+		imageIds.put("openanalytics/shinyproxy-demo", "sha256:1");
+		Proxy oldProxy = createProxy("proxy1");
+		upstreamResponses.add(response(200, "asset-v1", "\"v1\"", "max-age=60"));
+		serve(oldProxy, null);
+
+		// A new version of the tag is pulled: new containers must not get the assets of the old version.
+		imageIds.put("openanalytics/shinyproxy-demo", "sha256:2");
+		Proxy newProxy = createProxy("proxy2");
+		upstreamResponses.add(response(200, "asset-v2", "\"v2\"", "max-age=60"));
+		MockHttpServletResponse response = serve(newProxy, null);
+		assertEquals("MISS", response.getHeader("X-ShinyProxy-Cache"));
+		assertEquals("asset-v2", response.getContentAsString());
+
+		// The container of the old version keeps getting the old assets.
+		response = serve(oldProxy, null);
+		assertEquals("HIT", response.getHeader("X-ShinyProxy-Cache"));
+		assertEquals("asset-v1", response.getContentAsString());
+		response = serve(newProxy, null);
+		assertEquals("HIT", response.getHeader("X-ShinyProxy-Cache"));
+		assertEquals("asset-v2", response.getContentAsString());
+		assertEquals(2, upstreamRequests.size());
+	}
+
+	@Test
+	public void testEvictedEntriesAreServedFromDisk(@TempDir Path diskPath) throws Exception {
+		environment.setProperty("proxy.asset-cache.memory-size", "4");
+		environment.setProperty("proxy.asset-cache.disk-path", diskPath.toString());
+		assetCache.init();
+		Proxy proxy = createProxy("proxy1");
+		upstreamResponses.add(response(200, "asset-v1", "\"v1\"", "max-age=60"));
+		serve(proxy, null);
+
+		MockHttpServletResponse response = serve(proxy, null);
+		assertEquals("HIT", response.getHeader("X-ShinyProxy-Cache"));
+		assertEquals("asset-v1", response.getContentAsString());
+		assertEquals(0, meterRegistry.find("shinyproxy.asset.cache.size").tag("tier", "memory").gauge().value());
+		assertEquals(8, meterRegistry.find("shinyproxy.asset.cache.size").tag("tier", "disk").gauge().value());
+		assertEquals(1, upstreamRequests.size());
+	}
+
+	private MockHttpServletResponse serve(Proxy proxy, String ifNoneMatch) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/app_direct/app1" + ASSET_PATH);
+		if (ifNoneMatch != null) request.addHeader("If-None-Match", ifNoneMatch);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		assetCache.serve(proxy, MAPPING, ASSET_PATH, request, response);
+		return response;
+	}
+
+	private double getCount(String result) {
+		Counter counter = meterRegistry.find("shinyproxy.asset.cache.requests").tag("result", result).counter();
+		return (counter == null) ? 0 : counter.count();
+	}
+
+	private Proxy createProxy(String id) {
+		Proxy proxy = new Proxy();
+		proxy.setId(id);
+		proxy.setSpec(specProvider.getSpec("app1"));
+		proxy.setTargets(Collections.singletonMap(MAPPING, URI.create("http://localhost:3838")));
+		return proxy;
+	}
+
+	private static CloseableHttpResponse response(int status, String body, String etag, String cacheControl) {
+		StubResponse response = new StubResponse(status);
+		if (body != null) response.setEntity(new StringEntity(body, ContentType.TEXT_PLAIN));
+		if (etag != null) response.setHeader("ETag", etag);
+		if (cacheControl != null) response.setHeader("Cache-Control", cacheControl);
+		return response;
+	}
+
+	private static class StubResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+		private StubResponse(int status) {
+			super(HttpVersion.HTTP_1_1, status, null);
+		}
+
+		@Override
+		public void close() {
+			// Nothing to hand back: there is no connection.
+		}
+	}
+}